@@ -0,0 +1,105 @@
+package io.github.killrea1.logreader;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import org.apache.derby.iapi.services.crypto.CipherFactory;
+
+/**
+ * <p>
+ * A handle on LogFileReader for the benchmarks. Each run builds a fresh
+ * LogFile, just as main() does, and prints it to a stream which only counts
+ * the bytes it is handed.
+ * </p>
+ */
+public  final   class   LogReader
+{
+    ////////////////////////////////////////////////////////////////////////
+    //
+    //  CONSTANTS
+    //
+    ////////////////////////////////////////////////////////////////////////
+
+    // LogFileReader.READ_ALL_RECORDS
+    private static  final   long    READ_ALL_RECORDS = -1L;
+
+    ////////////////////////////////////////////////////////////////////////
+    //
+    //  STATE
+    //
+    ////////////////////////////////////////////////////////////////////////
+
+    // how the log is read
+    private File    _log;
+    private boolean _verbose;
+    private boolean _memoryMapped;
+    private LogFileReader.OutputFormat  _outputFormat;
+    private int     _threadCount = 1;
+    private CipherFactory   _cipherFactory;
+
+    ////////////////////////////////////////////////////////////////////////
+    //
+    //  CONSTRUCTOR
+    //
+    ////////////////////////////////////////////////////////////////////////
+
+    /** A reader which prints the whole log in the given output format (xml, json or binary) */
+    public  LogReader( File log, String outputFormat )
+    {
+        _log = log;
+        _outputFormat = LogFileReader.OutputFormat.valueOf( outputFormat.toUpperCase() );
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    //
+    //  PUBLIC BEHAVIOR
+    //
+    ////////////////////////////////////////////////////////////////////////
+
+    /** Deserialize the operations, like -v */
+    public  LogReader   verbose() { _verbose = true; return this; }
+
+    /** Memory-map the log files, like -m */
+    public  LogReader   memoryMapped() { _memoryMapped = true; return this; }
+
+    /** Decode on several threads, like -j */
+    public  LogReader   threads( int threadCount ) { _threadCount = threadCount; return this; }
+
+    /** Decrypt the log, like -e */
+    public  LogReader   encrypted( String bootPassword, File serviceProperties )    throws Exception
+    {
+        _cipherFactory = LogFileReader.makeCipherFactory( bootPassword, serviceProperties );
+        return this;
+    }
+
+    /** Read the log and return the number of bytes of output */
+    public  long    read()  throws Exception
+    {
+        CountingOutputStream    output = new CountingOutputStream();
+        LogFileReader.LogFile   logFile = new LogFileReader.LogFile
+            ( _log, _verbose, _memoryMapped, false, false, _outputFormat, _threadCount, 0L, READ_ALL_RECORDS, null, _cipherFactory );
+
+        logFile.printMe( new PrintStream( output ) );
+
+        return output.getCount();
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    //
+    //  NESTED CLASSES
+    //
+    ////////////////////////////////////////////////////////////////////////
+
+    /** Discards its output, keeping count of it so that the JIT cannot prove the output is unused */
+    public  static  final   class   CountingOutputStream    extends OutputStream
+    {
+        private long    _count;
+
+        public  long    getCount() { return _count; }
+
+        public  void    write( int b ) { _count++; }
+
+        public  void    write( byte[] buffer, int offset, int length ) { _count += length; }
+    }
+}
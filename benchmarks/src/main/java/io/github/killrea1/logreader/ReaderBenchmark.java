@@ -0,0 +1,116 @@
+package io.github.killrea1.logreader;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>
+ * Times a whole read of a synthetic log directory, the way the command line
+ * tool does it, in each output format:
+ * </p>
+ *
+ * <ul>
+ * <li>headerOnly - the default scan, which only decodes the record headers</li>
+ * <li>headerOnlyMapped - the same scan over memory-mapped log files (-m)</li>
+ * <li>parallel - the header scan on 4 threads (-j 4)</li>
+ * <li>verbose - deserializing every operation (-v)</li>
+ * <li>encrypted - the header scan of an encrypted database's log (-e)</li>
+ * </ul>
+ *
+ * <p>
+ * The logs are generated into the directory named by the logreader.benchmark.dir
+ * system property (target/synthetic-logs by default) the first time they are
+ * needed and reused afterwards. Sizes and record mixes can be varied with the
+ * usual JMH -p option, e.g. -p megabytes=64 -p mix=insert=100,update=0,delete=0.
+ * </p>
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( value = 1, jvmArgsAppend = { "-Xms1g", "-Xmx1g" } )
+public  class   ReaderBenchmark
+{
+    ////////////////////////////////////////////////////////////////////////
+    //
+    //  STATE
+    //
+    ////////////////////////////////////////////////////////////////////////
+
+    @Param( { "16" } )
+    public  int     megabytes;
+
+    @Param( { SyntheticLog.DEFAULT_MIX } )
+    public  String  mix;
+
+    @Param( { "10" } )
+    public  int     rowsPerTransaction;
+
+    @Param( { "100" } )
+    public  int     rowWidth;
+
+    @Param( { "xml", "json", "binary" } )
+    public  String  outputFormat;
+
+    private LogReader   _headerOnly;
+    private LogReader   _headerOnlyMapped;
+    private LogReader   _parallel;
+    private LogReader   _verbose;
+    private LogReader   _encrypted;
+
+    ////////////////////////////////////////////////////////////////////////
+    //
+    //  SETUP
+    //
+    ////////////////////////////////////////////////////////////////////////
+
+    @Setup
+    public  void    setUp() throws Exception
+    {
+        File            workDirectory = new File( System.getProperty( "logreader.benchmark.dir", "target/synthetic-logs" ) );
+        SyntheticLog    plain = new SyntheticLog( megabytes, mix, rowsPerTransaction, rowWidth, false );
+        SyntheticLog    encrypted = new SyntheticLog( megabytes, mix, rowsPerTransaction, rowWidth, true );
+        File            plainLog = plain.getLogDirectory( workDirectory );
+
+        _headerOnly = new LogReader( plainLog, outputFormat );
+        _headerOnlyMapped = new LogReader( plainLog, outputFormat ).memoryMapped();
+        _parallel = new LogReader( plainLog, outputFormat ).threads( 4 );
+        _verbose = new LogReader( plainLog, outputFormat ).verbose();
+        _encrypted = new LogReader( encrypted.getLogDirectory( workDirectory ), outputFormat )
+            .encrypted( SyntheticLog.BOOT_PASSWORD, encrypted.getServiceProperties( workDirectory ) );
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    //
+    //  BENCHMARKS
+    //
+    ////////////////////////////////////////////////////////////////////////
+
+    @Benchmark
+    public  long    headerOnly()    throws Exception { return _headerOnly.read(); }
+
+    @Benchmark
+    public  long    headerOnlyMapped()  throws Exception { return _headerOnlyMapped.read(); }
+
+    @Benchmark
+    public  long    parallel()  throws Exception { return _parallel.read(); }
+
+    @Benchmark
+    public  long    verbose()   throws Exception { return _verbose.read(); }
+
+    @Benchmark
+    public  long    encrypted() throws Exception { return _encrypted.read(); }
+}
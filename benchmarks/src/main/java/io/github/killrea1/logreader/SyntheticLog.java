@@ -0,0 +1,308 @@
+package io.github.killrea1.logreader;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+
+/**
+ * <p>
+ * Generates a Derby transaction log to benchmark the reader against. Rather
+ * than faking the record format, this drives a real embedded database through
+ * a seeded workload of inserts, updates and deletes until its log reaches the
+ * requested size, so that the operations in the log deserialize exactly like
+ * the ones on a production host. Log archive mode is switched on first so that
+ * checkpoints do not delete the older log files.
+ * </p>
+ *
+ * <p>
+ * Logs are generated once per set of settings and kept in a work directory, so
+ * repeated benchmark runs read the same bytes. To generate one by hand:
+ * </p>
+ *
+ * <pre>
+ * java -cp benchmarks.jar io.github.killrea1.logreader.SyntheticLog $workDirectory $megabytes [ $mix [ $rowsPerTransaction [ $rowWidth [ encrypted ] ] ] ]
+ * </pre>
+ */
+public  final   class   SyntheticLog
+{
+    ////////////////////////////////////////////////////////////////////////
+    //
+    //  CONSTANTS
+    //
+    ////////////////////////////////////////////////////////////////////////
+
+    public  static  final   String  DEFAULT_MIX = "insert=60,update=30,delete=10";
+    public  static  final   int     DEFAULT_ROWS_PER_TRANSACTION = 10;
+    public  static  final   int     DEFAULT_ROW_WIDTH = 100;
+
+    public  static  final   String  BOOT_PASSWORD = "syntheticLogBootPassword";
+
+    // the same seed every time, so that the same settings always produce the same workload
+    private static  final   long    SEED = 5195L;
+
+    // marks a database whose generation ran to completion
+    private static  final   String  COMPLETE_MARKER = "synthetic.complete";
+
+    private static  final   String  ALPHABET = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+
+    ////////////////////////////////////////////////////////////////////////
+    //
+    //  STATE
+    //
+    ////////////////////////////////////////////////////////////////////////
+
+    private long    _targetBytes;
+    private int     _insertPercent;
+    private int     _updatePercent;
+    private int     _deletePercent;
+    private int     _rowsPerTransaction;
+    private int     _rowWidth;
+    private boolean _encrypted;
+
+    ////////////////////////////////////////////////////////////////////////
+    //
+    //  ENTRY POINT
+    //
+    ////////////////////////////////////////////////////////////////////////
+
+    public  static  void    main( String... args )  throws Exception
+    {
+        if ( args.length < 2 )
+        {
+            System.out.println( "Usage: java " + SyntheticLog.class.getName() +
+                                " $workDirectory $megabytes [ $mix [ $rowsPerTransaction [ $rowWidth [ encrypted ] ] ] ]" );
+            System.exit( 1 );
+        }
+
+        SyntheticLog    log = new SyntheticLog
+            (
+             Integer.parseInt( args[ 1 ] ),
+             (args.length > 2) ? args[ 2 ] : DEFAULT_MIX,
+             (args.length > 3) ? Integer.parseInt( args[ 3 ] ) : DEFAULT_ROWS_PER_TRANSACTION,
+             (args.length > 4) ? Integer.parseInt( args[ 4 ] ) : DEFAULT_ROW_WIDTH,
+             (args.length > 5) && "encrypted".equals( args[ 5 ] )
+             );
+
+        System.out.println( log.getLogDirectory( new File( args[ 0 ] ) ).getPath() );
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    //
+    //  CONSTRUCTOR
+    //
+    ////////////////////////////////////////////////////////////////////////
+
+    /**
+     * <p>
+     * Describe a log. The mix is a comma-separated list of percentages, e.g.
+     * insert=60,update=30,delete=10, which must add up to 100.
+     * </p>
+     */
+    public  SyntheticLog( int megabytes, String mix, int rowsPerTransaction, int rowWidth, boolean encrypted )
+    {
+        _targetBytes = megabytes * 1024L * 1024L;
+        _rowsPerTransaction = rowsPerTransaction;
+        _rowWidth = rowWidth;
+        _encrypted = encrypted;
+
+        for ( String part : mix.split( "," ) )
+        {
+            String[]    pair = part.trim().split( "=" );
+            int         percent = Integer.parseInt( pair[ 1 ].trim() );
+
+            if ( "insert".equals( pair[ 0 ].trim() ) ) { _insertPercent = percent; }
+            else if ( "update".equals( pair[ 0 ].trim() ) ) { _updatePercent = percent; }
+            else if ( "delete".equals( pair[ 0 ].trim() ) ) { _deletePercent = percent; }
+            else { throw new IllegalArgumentException( "Unknown operation in record mix: " + part ); }
+        }
+
+        if ( _insertPercent + _updatePercent + _deletePercent != 100 )
+        {
+            throw new IllegalArgumentException( "The record mix should add up to 100 percent: " + mix );
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    //
+    //  PUBLIC BEHAVIOR
+    //
+    ////////////////////////////////////////////////////////////////////////
+
+    /** Get the log directory of the database for these settings, generating it first if necessary */
+    public  File    getLogDirectory( File workDirectory )   throws Exception
+    {
+        return new File( getDatabase( workDirectory ), "log" );
+    }
+
+    /** Get the service.properties which the reader needs in order to decrypt the log */
+    public  File    getServiceProperties( File workDirectory )  throws Exception
+    {
+        return new File( getDatabase( workDirectory ), "service.properties" );
+    }
+
+    /** A name which distinguishes these settings from all others */
+    public  String  getName()
+    {
+        return "log-" + (_targetBytes / (1024L * 1024L)) + "mb-" +
+            _insertPercent + "i" + _updatePercent + "u" + _deletePercent + "d-" +
+            _rowsPerTransaction + "x" + _rowWidth +
+            (_encrypted ? "-encrypted" : "");
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    //
+    //  MINIONS
+    //
+    ////////////////////////////////////////////////////////////////////////
+
+    private synchronized    File    getDatabase( File workDirectory )   throws Exception
+    {
+        File    database = new File( workDirectory, getName() ).getAbsoluteFile();
+
+        if ( !new File( database, COMPLETE_MARKER ).exists() )
+        {
+            delete( database );
+            delete( new File( workDirectory, getName() + "-backup" ) );
+            workDirectory.mkdirs();
+
+            generate( database, new File( workDirectory, getName() + "-backup" ).getAbsoluteFile() );
+
+            if ( !new File( database, COMPLETE_MARKER ).createNewFile() )
+            {
+                throw new IOException( "Could not mark " + database + " as complete." );
+            }
+        }
+
+        return database;
+    }
+
+    private void    generate( File database, File backup )  throws Exception
+    {
+        String  url = "jdbc:derby:" + database.getPath();
+        String  createAttributes = ";create=true" + (_encrypted ? ";dataEncryption=true;bootPassword=" + BOOT_PASSWORD : "");
+
+        // keep derby.log next to the logs rather than in the current directory
+        if ( System.getProperty( "derby.stream.error.file" ) == null )
+        {
+            System.setProperty( "derby.stream.error.file", new File( database.getParentFile(), "derby.log" ).getPath() );
+        }
+
+        Class.forName( "org.apache.derby.jdbc.EmbeddedDriver" );
+
+        Connection  conn = DriverManager.getConnection( url + createAttributes );
+        try {
+            // otherwise checkpoints delete the log files which are no longer needed for recovery
+            CallableStatement   archive = conn.prepareCall( "call syscs_util.syscs_backup_database_and_enable_log_archive_mode( ?, 0 )" );
+            archive.setString( 1, backup.getPath() );
+            archive.execute();
+            archive.close();
+
+            Statement   ddl = conn.createStatement();
+            ddl.execute( "create table synthetic( id int primary key, payload varchar( " + _rowWidth + " ) )" );
+            ddl.close();
+
+            runWorkload( conn, new File( database, "log" ) );
+        }
+        finally { conn.close(); }
+
+        // stop the whole engine, so that the reader boots its own minimal environment just as it does on the command line
+        try {
+            DriverManager.getConnection( "jdbc:derby:;shutdown=true" );
+        }
+        catch (SQLException se)
+        {
+            if ( !"XJ015".equals( se.getSQLState() ) ) { throw se; }
+        }
+    }
+
+    private void    runWorkload( Connection conn, File logDirectory )   throws Exception
+    {
+        Random  random = new Random( SEED );
+
+        PreparedStatement   insert = conn.prepareStatement( "insert into synthetic( id, payload ) values ( ?, ? )" );
+        PreparedStatement   update = conn.prepareStatement( "update synthetic set payload = ? where id = ?" );
+        PreparedStatement   delete = conn.prepareStatement( "delete from synthetic where id = ?" );
+
+        // the live rows are the ids between oldestID (inclusive) and nextID (exclusive)
+        int     oldestID = 0;
+        int     nextID = 0;
+        int     transactionCount = 0;
+
+        conn.setAutoCommit( false );
+
+        while ( (transactionCount++ % 100 != 0) || (logSize( logDirectory ) < _targetBytes) )
+        {
+            for ( int i = 0; i < _rowsPerTransaction; i++ )
+            {
+                int     dice = random.nextInt( 100 );
+
+                if ( (oldestID == nextID) || (dice < _insertPercent) )
+                {
+                    insert.setInt( 1, nextID++ );
+                    insert.setString( 2, payload( random ) );
+                    insert.executeUpdate();
+                }
+                else if ( dice < _insertPercent + _updatePercent )
+                {
+                    update.setString( 1, payload( random ) );
+                    update.setInt( 2, oldestID + random.nextInt( nextID - oldestID ) );
+                    update.executeUpdate();
+                }
+                else
+                {
+                    delete.setInt( 1, oldestID++ );
+                    delete.executeUpdate();
+                }
+            }
+
+            conn.commit();
+        }
+
+        insert.close();
+        update.close();
+        delete.close();
+    }
+
+    private String  payload( Random random )
+    {
+        char[]  chars = new char[ _rowWidth ];
+
+        for ( int i = 0; i < chars.length; i++ ) { chars[ i ] = ALPHABET.charAt( random.nextInt( ALPHABET.length() ) ); }
+
+        return new String( chars );
+    }
+
+    private static  long    logSize( File logDirectory )
+    {
+        long    size = 0L;
+        File[]  files = logDirectory.listFiles();
+
+        if ( files != null )
+        {
+            for ( File file : files )
+            {
+                if ( file.getName().endsWith( ".dat" ) ) { size += file.length(); }
+            }
+        }
+
+        return size;
+    }
+
+    private static  void    delete( File file ) throws IOException
+    {
+        File[]  children = file.listFiles();
+
+        if ( children != null )
+        {
+            for ( File child : children ) { delete( child ); }
+        }
+
+        if ( file.exists() && !file.delete() ) { throw new IOException( "Could not delete " + file ); }
+    }
+}
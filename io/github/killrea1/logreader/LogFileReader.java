@@ -0,0 +1,8358 @@
+package io.github.killrea1.logreader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.sql.DriverManager;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Text;
+
+import org.apache.derby.iapi.error.StandardException;
+import org.apache.derby.iapi.services.crypto.CipherFactory;
+import org.apache.derby.iapi.services.crypto.CipherProvider;
+import org.apache.derby.iapi.services.io.CompressedNumber;
+import org.apache.derby.iapi.services.io.FormatIdInputStream;
+import org.apache.derby.iapi.services.io.FormatIdUtil;
+import org.apache.derby.iapi.services.io.RegisteredFormatIds;
+import org.apache.derby.iapi.services.io.StoredFormatIds;
+import org.apache.derby.iapi.services.monitor.Monitor;
+import org.apache.derby.iapi.store.raw.Loggable;
+import org.apache.derby.shared.common.reference.Attribute;
+import org.apache.derby.impl.services.jce.JCECipherFactoryBuilder;
+import org.apache.derby.impl.store.raw.data.ContainerBasicOperation;
+import org.apache.derby.impl.store.raw.data.PageBasicOperation;
+import org.apache.derby.impl.store.raw.xact.XactFactory;
+
+/**
+ * Utility to read a log file in the log directory of a
+ * Derby database. This is based on the 10.8 version of
+ * log records handled by LogToFile.
+ */
+public  class   LogFileReader
+{
+    ////////////////////////////////////////////////////////////////////////
+    //
+    //  CONSTANTS
+    //
+    ////////////////////////////////////////////////////////////////////////
+
+    private static  final   String  USAGE =
+        "Usage:\n" +
+        "\n" +
+        "    java LogFileReader $logFileName [ -v ] [ -m ] [ -s ] [ -b ] [ -t ] [ -r ] [ -k ] [ -a ] [ -o $O ] [ -j $J ] [ -p $P ] [ -n $N ] [ -f $F ] [ -c $C ] [ -x $X ] [ -z $Z ] [ -d $D ] [ -i $I | -l $I $L ] [ -g $G | -h $G $P ] [ -e $bootPassword $serviceProperties ]\n" +
+        "\n" +
+        "    $logFileName may also be a log directory, in which case all of its logN.dat files are read in log file number order\n" +
+        "    as one continuous sequence of records, and breaks in the chain of log files are reported.\n" +
+        "\n" +
+        "    $logFileName may also be an archive: a log file compressed by gzip, xz or zstd, or a tarball of a log directory,\n" +
+        "    compressed or not. The archive is decompressed on a background thread as the records are parsed, without writing\n" +
+        "    anything to disk. xz and zstd archives are decompressed by running the xz and zstd programs. An archive can only be\n" +
+        "    read forward, so it cannot be combined with -m, -s, -b, -t, -k, -j, -i, -l, -g or -h.\n" +
+        "\n" +
+        "    -v   Verbose. Deserialize the logged operations. If you do not set this flag, the tool just decodes the wrapper headers.\n" +
+        "    -m   Memory-mapped. Map the log file into memory and scan the records in place instead of reading them through a stream.\n" +
+        "    -s   Salvage. Check the framing of every record and, when a record is damaged (an implausible length, a log instant\n" +
+        "         which is not its own position, or a backward length which differs from the forward length), report the damaged\n" +
+        "         byte range and carry on from the next whole record. This reads the log files memory-mapped, like -m.\n" +
+        "    -b   Backward. Walk the log from its end towards its start, using the backward length which trails every record,\n" +
+        "         and print the records newest first. With -p, the walk starts with the record at $P instead of the last record.\n" +
+        "         With -n, this prints the last $N records without reading the rest of the log. For a log directory, the log files\n" +
+        "         are walked newest first. This reads the log files memory-mapped, like -m, and cannot be combined with -s or -j.\n" +
+        "    -t   Follow. Keep reading a live log as Derby writes it, printing each record once all of it is on disk and moving on\n" +
+        "         to the next log file when Derby switches to it. For a log directory, this starts with the newest log file. The tool\n" +
+        "         runs until -n records have been printed or it is interrupted. This cannot be combined with -j, -i or -l.\n" +
+        "    -r   Report. Instead of printing the records, print a summary of each transaction: its outcome, how many records and\n" +
+        "         bytes it logged, its first and last log instants and how many of each kind of operation it logged. A summary is\n" +
+        "         printed as soon as the transaction's last record is read, and unfinished transactions are printed at the end.\n" +
+        "         This cannot be combined with -t, -j, -i or -l.\n" +
+        "    -k   Checksums. Instead of printing the records, verify the checksum records which Derby writes at the start of every\n" +
+        "         buffer of log records, against the bytes which follow them in the log file. Only the checksums which fail are\n" +
+        "         printed, followed by a summary, and the tool exits with status 2 if any failed. With -j, the log files are\n" +
+        "         verified in chunks on $J threads. This cannot be combined with -b, -t, -r, -i or -l.\n" +
+        "    -a   Analyze. Instead of printing the records, profile them from their headers in one pass: histograms of the record\n" +
+        "         sizes and of the log bytes between checkpoints, the records and bytes of each kind of operation and of each\n" +
+        "         combination of group flags, and the transactions begun, committed and aborted in each log file and per megabyte\n" +
+        "         of log. Use it to size logSwitchInterval and checkpointInterval. This cannot be combined with -b, -t, -r, -k, -j,\n" +
+        "         -i, -l, -g or -h.\n" +
+        "    -o   Output format. $O is xml (the default), json for JSON Lines with one record per line, or binary for a compact\n" +
+        "         stream of tagged binary events.\n" +
+        "    -j   Parallel. $J is a positive number, the number of worker threads which decode records. Log files are split into chunks\n" +
+        "         at verified record boundaries, the chunks are decoded concurrently, and the output is reassembled in log instant order.\n" +
+        "    -p   Starting position. $P is a positive number, the offset of the first log entry to read. This causes the tool to skip reading the file header as well.\n" +
+        "         For a log directory, the offset applies to the first log file.\n" +
+        "    -n   Number of records to read. $N is a non-negative number. If you do not specify this flag, the tool prints all subsequent log entries.\n" +
+        "         For a log directory, this is the number of records to read across all of the log files.\n" +
+        "    -f   Filter. Only print (or index) the records which match $F, a comma-separated list of conditions on the record header:\n" +
+        "         transaction=$T (a transaction id or NULL), group=$G (a group flag such as COMMIT, ABORT or COMPENSATION) and\n" +
+        "         operation=$O (an operation formatable id or class name, e.g. InsertOperation). Conditions on the same field are\n" +
+        "         alternatives, conditions on different fields must all hold. Records which do not match are skipped before their\n" +
+        "         operations are decoded, and -n only counts the records which match.\n" +
+        "    -c   Cache. With -v, remember how the last $C distinct operations were printed, so that an operation whose bytes\n" +
+        "         repeat is not deserialized again. When the tool finishes, it prints the cache's hits and misses on stderr.\n" +
+        "    -x   Metrics. Time the stages which every record goes through: reading its wrapper, decrypting it, deserializing its\n" +
+        "         operation (with -v, also broken down by operation type) and formatting it. When the tool finishes, it prints the\n" +
+        "         records and megabytes read per second and each stage's total time and latency percentiles on stderr. If $X is\n" +
+        "         positive, it also prints them every $X seconds along the way. $X is a non-negative number.\n" +
+        "    -z   Size limit. Keep at most $Z bytes of each record in memory, so that a huge record cannot exhaust the heap. The rest\n" +
+        "         of a longer record is skipped, and the record is printed with its operation's type and full length and a hex\n" +
+        "         preview of its first bytes instead of being deserialized, even with -v. With -v, operation details which are\n" +
+        "         longer than $Z characters are cut short and followed by their full length. $Z is at least 18.\n" +
+        "    -d   Difference. Compare the log with $D, another copy of it (a log file, log directory or archive), and print only\n" +
+        "         the differences: the records which only one of them holds and the records whose bytes differ, matched up by log\n" +
+        "         instant, followed by a summary which includes the first log instant at which they diverge. Records are compared\n" +
+        "         by their lengths and then byte for byte, so only the records which differ are decoded. $D is read with the\n" +
+        "         same options, e.g. -m, -p, -n, -f and -e, and the tool exits with status 2 if the logs differ. This cannot be\n" +
+        "         combined with -s, -b, -t, -r, -k, -a, -j, -z, -i, -l, -g or -h.\n" +
+        "    -i   Index. Instead of printing the records, write an index of them to the file $I. For every record, the index holds\n" +
+        "         its log instant, log file, offset, transaction id and groups, sorted by log instant.\n" +
+        "    -l   Lookup. Use the index $I, built by -i, to print only the records in the log instant range $L, without scanning the log.\n" +
+        "         $L is either a single log instant or a range $first-$last. A log instant is written $logFileNumber:$position.\n" +
+        "    -g   Page index. Instead of printing the records, write an index of the pages which they touch to the file $G. For\n" +
+        "         every record whose operation works on a page, or on a whole container, the index holds the segment, container\n" +
+        "         and page number, and the record's log instant, log file and offset, sorted by page. The pages are read out of\n" +
+        "         the records without deserializing the operations. This cannot be combined with -b, -t, -r, -k, -j, -i or -l.\n" +
+        "    -h   History. Use the page index $G, built by -g, to print the records which touched the page $P, in log order,\n" +
+        "         without scanning the log. $P is written $segment:$container:$page, or $segment:$container for the records which\n" +
+        "         touched the container or any of its pages.\n" +
+        "    -e   If the database is encrypted, you must supply the boot password and the location of service.properties.\n";
+    
+    // enough bytes for RecordFormatID + GroupFlags + TransactionID + OperationFormatID
+    private static  final   int MINIMUM_RECORD_HEADER_LENGTH = 18;
+
+    // number of bytes of a truncated operation which are printed in hex
+    private static  final   int PREVIEW_LENGTH = 64;
+
+    private static  final   long    READ_ALL_RECORDS = -1L;
+
+    // size of the pieces which a log file is cut into for parallel decoding
+    private static  final   int PARALLEL_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    // the longest array which every JVM will allocate
+    private static  final   int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+        
+    ////////////////////////////////////////////////////////////////////////
+    //
+    //  STATE
+    //
+    ////////////////////////////////////////////////////////////////////////
+
+    public  static  final   DevNull devNull = new DevNull();
+
+    //
+    // Args.
+    //
+    private static  String  _logFileName;
+    private static  boolean _verbose;
+    private static  boolean _memoryMapped;
+    private static  boolean _salvage;
+    private static  boolean _backward;
+    private static  boolean _follow;
+    private static  boolean _report;
+    private static  boolean _verify;
+    private static  boolean _profile;
+    private static  OutputFormat    _outputFormat = OutputFormat.XML;
+    private static  long        _startPosition = 0L;
+    private static  long        _maxRecordCount = READ_ALL_RECORDS;
+    private static  RecordFilter    _filter;
+    private static  int         _operationCacheSize;
+    private static  int         _metricsInterval = -1;
+    private static  int         _recordLimit = Integer.MAX_VALUE;
+    private static  String      _otherLogFileName;
+    private static  int         _threadCount = 1;
+    private static  File        _indexFile;
+    private static  boolean     _lookup;
+    private static  long        _firstLookupInstant;
+    private static  long        _lastLookupInstant;
+    private static  File        _pageIndexFile;
+    private static  boolean     _history;
+    private static  long        _historySegment;
+    private static  long        _historyContainer;
+    private static  long        _historyPage;
+    private static  CipherFactory   _cipherFactory;
+    
+    ////////////////////////////////////////////////////////////////////////
+    //
+    //  ENTRY POINT
+    //
+    ////////////////////////////////////////////////////////////////////////
+    
+    public  static  void    main( String... args )  throws Exception
+    {
+        if ( !parseArgs( args ) ) { usage(); }
+
+        LogFile logFile = new LogFile( new File( _logFileName ), _verbose, _memoryMapped, _salvage, _backward, _outputFormat, _threadCount, _startPosition, _maxRecordCount, _filter, _cipherFactory );
+        OperationCache  operationCache = (_operationCacheSize > 0) ? new OperationCache( _operationCacheSize ) : null;
+
+        logFile.setOperationCache( operationCache );
+        logFile.setRecordLimit( _recordLimit );
+
+        Metrics metrics = (_metricsInterval >= 0) ? new Metrics() : null;
+
+        logFile.setMetrics( metrics );
+        if ( (metrics != null) && (_metricsInterval > 0) ) { metrics.startReporting( System.err, _metricsInterval ); }
+
+        boolean intact = true;
+
+        if ( _lookup ) { logFile.lookupMe( _indexFile, _firstLookupInstant, _lastLookupInstant, System.out ); }
+        else if ( _indexFile != null ) { logFile.indexMe( _indexFile, System.out ); }
+        else if ( _history ) { logFile.historyMe( _pageIndexFile, _historySegment, _historyContainer, _historyPage, System.out ); }
+        else if ( _pageIndexFile != null ) { logFile.pageIndexMe( _pageIndexFile, System.out ); }
+        else if ( _follow ) { logFile.followMe( System.out ); }
+        else if ( _report ) { logFile.reportMe( System.out ); }
+        else if ( _verify ) { intact = logFile.verifyMe( System.out ); }
+        else if ( _profile ) { logFile.profileMe( System.out ); }
+        else if ( _otherLogFileName != null ) { intact = logFile.compareMe( new File( _otherLogFileName ), System.out ); }
+        else { logFile.printMe( System.out ); }
+
+        if ( operationCache != null ) { System.err.println( operationCache ); }
+        if ( metrics != null )
+        {
+            metrics.stopReporting();
+            System.err.print( metrics );
+        }
+
+        if ( !intact ) { System.exit( 2 ); }
+    }
+    private static  boolean parseArgs( String... args )
+    {
+        if ( (args == null) || (args.length < 1) ) { return false; }
+
+        int argCount = args.length;
+        int idx = 0;
+
+        _logFileName = args[ idx++ ];
+
+        // optional args
+        while ( idx < argCount )
+        {
+            String  arg = args[ idx++ ];
+
+            if ( "-v".equals( arg )  ) { _verbose = true; }
+            else if ( "-m".equals( arg )  ) { _memoryMapped = true; }
+            else if ( "-s".equals( arg )  ) { _salvage = true; }
+            else if ( "-b".equals( arg )  ) { _backward = true; }
+            else if ( "-t".equals( arg )  ) { _follow = true; }
+            else if ( "-r".equals( arg )  ) { _report = true; }
+            else if ( "-k".equals( arg )  ) { _verify = true; }
+            else if ( "-a".equals( arg )  ) { _profile = true; }
+            else if ( "-p".equals( arg ) )
+            {
+                if ( idx >= argCount ) { return false; }
+                try {
+                    _startPosition = Long.parseLong( args[ idx++ ] );
+                    if ( _startPosition < 0 ) { return false; }
+                }
+                catch (Exception e) { return false; }
+            }
+            else if ( "-o".equals( arg ) )
+            {
+                if ( idx >= argCount ) { return false; }
+                try {
+                    _outputFormat = OutputFormat.valueOf( args[ idx++ ].toUpperCase() );
+                }
+                catch (Exception e) { return false; }
+            }
+            else if ( "-j".equals( arg ) )
+            {
+                if ( idx >= argCount ) { return false; }
+                try {
+                    _threadCount = Integer.parseInt( args[ idx++ ] );
+                    if ( _threadCount <= 0 ) { return false; }
+                }
+                catch (Exception e) { return false; }
+            }
+            else if ( "-n".equals( arg ) )
+            {
+                if ( idx >= argCount ) { return false; }
+                try {
+                    _maxRecordCount = Long.parseLong( args[ idx++ ] );
+                    if ( _maxRecordCount < 0 ) { return false; }
+                }
+                catch (Exception e) { return false; }
+            }
+            else if ( "-c".equals( arg ) )
+            {
+                if ( idx >= argCount ) { return false; }
+                try {
+                    _operationCacheSize = Integer.parseInt( args[ idx++ ] );
+                    if ( _operationCacheSize <= 0 ) { return false; }
+                }
+                catch (Exception e) { return false; }
+            }
+            else if ( "-x".equals( arg ) )
+            {
+                if ( idx >= argCount ) { return false; }
+                try {
+                    _metricsInterval = Integer.parseInt( args[ idx++ ] );
+                    if ( _metricsInterval < 0 ) { return false; }
+                }
+                catch (Exception e) { return false; }
+            }
+            else if ( "-z".equals( arg ) )
+            {
+                if ( idx >= argCount ) { return false; }
+                try {
+                    _recordLimit = Integer.parseInt( args[ idx++ ] );
+                    if ( _recordLimit < MINIMUM_RECORD_HEADER_LENGTH ) { return false; }
+                }
+                catch (Exception e) { return false; }
+            }
+            else if ( "-d".equals( arg ) )
+            {
+                if ( idx >= argCount ) { return false; }
+                _otherLogFileName = args[ idx++ ];
+            }
+            else if ( "-f".equals( arg ) )
+            {
+                if ( idx >= argCount ) { return false; }
+                try {
+                    _filter = RecordFilter.parse( args[ idx++ ] );
+                }
+                catch (Exception e)
+                {
+                    System.out.println( e.getMessage() );
+                    return false;
+                }
+            }
+            else if ( "-i".equals( arg ) )
+            {
+                if ( (idx >= argCount) || (_indexFile != null) ) { return false; }
+                _indexFile = new File( args[ idx++ ] );
+            }
+            else if ( "-l".equals( arg ) )
+            {
+                if ( (idx + 1 >= argCount) || (_indexFile != null) ) { return false; }
+                _indexFile = new File( args[ idx++ ] );
+                _lookup = true;
+                try {
+                    String  range = args[ idx++ ];
+                    int     dash = range.indexOf( '-' );
+
+                    _firstLookupInstant = parseLogInstant( (dash < 0) ? range : range.substring( 0, dash ) );
+                    _lastLookupInstant = (dash < 0) ? _firstLookupInstant : parseLogInstant( range.substring( dash + 1 ) );
+                    if ( _firstLookupInstant > _lastLookupInstant ) { return false; }
+                }
+                catch (Exception e) { return false; }
+            }
+            else if ( "-g".equals( arg ) )
+            {
+                if ( (idx >= argCount) || (_pageIndexFile != null) ) { return false; }
+                _pageIndexFile = new File( args[ idx++ ] );
+            }
+            else if ( "-h".equals( arg ) )
+            {
+                if ( (idx + 1 >= argCount) || (_pageIndexFile != null) ) { return false; }
+                _pageIndexFile = new File( args[ idx++ ] );
+                _history = true;
+                try {
+                    String[]    parts = args[ idx++ ].split( ":" );
+
+                    if ( (parts.length < 2) || (parts.length > 3) ) { return false; }
+
+                    _historySegment = Long.parseLong( parts[ 0 ] );
+                    _historyContainer = Long.parseLong( parts[ 1 ] );
+                    _historyPage = (parts.length == 3) ? Long.parseLong( parts[ 2 ] ) : PageIndex.ALL_PAGES;
+                    if ( (parts.length == 3) && (_historyPage < PageIndex.CONTAINER_PAGE) ) { return false; }
+                }
+                catch (Exception e) { return false; }
+            }
+            else if ( "-e".equals( arg ) )
+            {
+                if ( idx + 1 >= argCount ) { return false; }
+
+                String  bootPassword = args[ idx++ ];
+                File    serviceProperties = new File( args[ idx++ ] );
+                try {
+                    _cipherFactory = makeCipherFactory( bootPassword, serviceProperties );
+                }
+                catch (Exception e)
+                {
+                    System.out.println( e.getMessage() );
+                    return false;
+                }
+            }
+            else { return false; }
+        }
+
+        if ( _follow && ((_indexFile != null) || (_threadCount > 1)) ) { return false; }
+        if ( (_operationCacheSize > 0) && !_verbose ) { return false; }
+        if ( _backward && (_salvage || _follow || _report || (_indexFile != null) || (_threadCount > 1)) ) { return false; }
+        if ( _report && (_follow || (_indexFile != null) || (_threadCount > 1)) ) { return false; }
+        if ( _verify && (_backward || _follow || _report || (_indexFile != null)) ) { return false; }
+        if ( (_pageIndexFile != null) && (_backward || _follow || _report || _verify || (_threadCount > 1) || (_indexFile != null)) ) { return false; }
+        if ( LogArchive.isArchive( new File( _logFileName ) ) &&
+             (_memoryMapped || _salvage || _backward || _follow || _verify || (_threadCount > 1) || (_indexFile != null) || (_pageIndexFile != null)) )
+        {
+            return false;
+        }
+        if ( _profile && (_backward || _follow || _report || _verify || (_threadCount > 1) || (_indexFile != null) || (_pageIndexFile != null)) ) { return false; }
+        if ( (_otherLogFileName != null) &&
+             (_salvage || _backward || _follow || _report || _verify || _profile || (_threadCount > 1) || (_recordLimit != Integer.MAX_VALUE) ||
+              (_indexFile != null) || (_pageIndexFile != null) || (_memoryMapped && LogArchive.isArchive( new File( _otherLogFileName ) ))) )
+        {
+            return false;
+        }
+
+        return true;
+    }
+    private static  void    usage()
+    {
+        System.out.println( USAGE );
+        System.exit( 1 );
+    }
+    /** Make the factory for the ciphers which decrypt the log of an encrypted database (-e) */
+    public  static  CipherFactory   makeCipherFactory
+        ( String bootPassword, File serviceProperties ) throws Exception
+    {
+        Properties  properties = new Properties();
+        properties.load( new FileInputStream( serviceProperties ) );
+
+        properties.setProperty( Attribute.BOOT_PASSWORD, bootPassword );
+
+        return new JCECipherFactoryBuilder()
+            .createCipherFactory( false, properties, false );
+    }
+    
+    /** Parse a log instant written either as $logFileNumber:$position or as a raw long */
+    private static  long    parseLogInstant( String text )
+    {
+        int     colon = text.indexOf( ':' );
+
+        if ( colon < 0 ) { return Long.parseLong( text ); }
+
+        long    logFileNumber = Long.parseLong( text.substring( 0, colon ) );
+        long    position = Long.parseLong( text.substring( colon + 1 ) );
+
+        if ( (logFileNumber < 0) || (position < 0) || (position > 0xFFFFFFFFL) )
+        {
+            throw new IllegalArgumentException( "Bad log instant " + text );
+        }
+
+        return makeLogInstant( logFileNumber, position );
+    }
+
+    /** Build a log instant (aka LogCounter) out of a log file number and a position in that file */
+    private static  long    makeLogInstant( long logFileNumber, long position )
+    {
+        return (logFileNumber << 32) | position;
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    //
+    //  NESTED CLASSES
+    //
+    ////////////////////////////////////////////////////////////////////////
+
+    public  static  final   class   LogFile
+    {
+        // constructor args
+        
+        private File            _file;
+        private boolean     _readWholeRecord;
+        private boolean     _memoryMapped;
+        private boolean     _salvage;
+        private boolean     _backward;
+        private OutputFormat    _outputFormat;
+        private int             _threadCount;
+        private long            _startPosition;
+        private long            _maxRecordCount;
+        private RecordFilter    _filter;
+        private CipherFactory   _cipherFactory;
+
+        // cipher providers are not thread-safe, so every LogFile gets its own
+        private CipherProvider  _decryptionEngine;
+        
+        // control fields
+
+        private long            _recordCount;
+        private Throwable   _error;
+
+        // the log file currently being read
+        private DataInputStream _dais;
+        private FileChannel     _channel;
+        private MappedLogScanner    _scanner;
+
+        // the archive which the log is read out of, if it is compressed or a tarball, and the log file open in it
+        private LogArchive      _archive;
+        private LogArchive.Entry    _archiveEntry;
+
+        // reads and decrypts ahead of pullRecord() if the log is encrypted
+        private DecryptionPipeline  _pipeline;
+
+        // the offset of the next wrapper, and of the last record pulled
+        private long            _position;
+        private long            _recordPosition;
+
+        // the chunk being decoded, if this LogFile is a parallel worker
+        private LogChunk    _chunk;
+        private ByteArrayOutputStream   _chunkOutput;
+
+        // reused for every record, so that scanning does not allocate per record
+        private LogRecordWrapper    _streamWrapper = new LogRecordWrapper();
+        private LogRecordHeader     _recordHeader = new LogRecordHeader();
+
+        // reused to deserialize every operation in verbose mode
+        private ByteBufferInputStream   _operationBytes;
+        private FormatIdInputStream _operationReader;
+
+        // how operations were printed, if -c was specified. shared with the parallel workers
+        private OperationCache  _operationCache;
+
+        // where the time goes, if -x was specified. shared with the parallel workers
+        private Metrics     _metrics;
+
+        // the most bytes kept of a record or printed of its details, if -z was specified
+        private int         _recordLimit = Integer.MAX_VALUE;
+
+        // the time spent decoding the operation of the record being formatted
+        private long        _decodeNanos;
+
+        // the index being built, if -i was specified
+        private LogIndex.Writer _indexWriter;
+        private int             _fileIndex;
+
+        // the transactions being summarized, if -r was specified
+        private TransactionReport   _transactionReport;
+
+        // the profile being built, if -a was specified
+        private LogProfile  _logProfile;
+
+        // the page index being built, if -g was specified
+        private PageIndex.Writer    _pageIndexWriter;
+        private PageIdentity        _pageIdentity = new PageIdentity();
+
+        // the log file which an index lookup has open
+        private File            _indexedFile;
+
+        // the checksums being verified, if -k was specified. shared with the parallel workers
+        private ChecksumVerifier    _checksumVerifier;
+        private CRC32               _crc;
+        private ByteBuffer          _checksumBuffer;
+
+        
+        public  LogFile( File file, boolean readWholeRecord, boolean memoryMapped, boolean salvage, boolean backward, OutputFormat outputFormat, int threadCount, long startPosition, long maxRecordCount, RecordFilter filter, CipherFactory cipherFactory )    throws Exception
+        {
+            _file = file;
+            _readWholeRecord = readWholeRecord;
+            // salvaging and walking backward both move around the mapped file instead of restarting stream reads
+            _memoryMapped = memoryMapped || salvage || backward;
+            _salvage = salvage;
+            _backward = backward;
+            _outputFormat = outputFormat;
+            _threadCount = threadCount;
+            _startPosition = startPosition;
+            _maxRecordCount = maxRecordCount;
+            _filter = filter;
+            _cipherFactory = cipherFactory;
+            _decryptionEngine = (cipherFactory == null) ? null : cipherFactory.createNewCipher( CipherFactory.DECRYPT );
+
+            _archive = LogArchive.forFile( file );
+            if ( (_archive != null) && (_memoryMapped || (threadCount > 1)) ) { throw new IllegalArgumentException( streamOnly() ); }
+        }
+
+        /** Read every record of a log file or directory, forward and on one thread. cipherFactory is null unless the log is encrypted */
+        public  LogFile( File file, boolean readWholeRecord, CipherFactory cipherFactory )    throws Exception
+        {
+            this( file, readWholeRecord, false, false, false, OutputFormat.XML, 1, 0L, READ_ALL_RECORDS, null, cipherFactory );
+        }
+
+        /**
+         * <p>
+         * Iterate over the records, in log order, which lie after the start
+         * position and pass the filter, up to the maximum record count. This
+         * reads the records exactly as printMe() does, through pullRecord(),
+         * but hands them out as LogRecords instead of writing them. Only
+         * one iteration may be in progress per LogFile. The iteration closes
+         * itself at the end of the log, but must be closed if it is abandoned
+         * before then. Records are always read forward, so the thread count
+         * and output format do not apply.
+         * </p>
+         */
+        public  LogRecordIterator   records()   throws Exception
+        {
+            if ( _backward ) { throw new IllegalStateException( "Records can only be iterated forward." ); }
+
+            ArrayList<File> files = new ArrayList<File>();
+
+            if ( _file.isDirectory() || (_archive != null) )
+            {
+                for ( LogFileHeader header : listLogFiles() ) { files.add( header.getFile() ); }
+            }
+            else { files.add( _file ); }
+
+            _recordCount = 0;
+
+            return new LogRecordIterator( this, files );
+        }
+
+        /** The records() iteration as a sequential Stream, which should be closed if it is not consumed to the end */
+        public  Stream<LogRecord>   stream()    throws Exception
+        {
+            final   LogRecordIterator   records = records();
+
+            return StreamSupport.stream( Spliterators.spliteratorUnknownSize( records, Spliterator.ORDERED | Spliterator.NONNULL ), false )
+                .onClose
+                (
+                 new Runnable()
+                 {
+                     public  void    run() { records.close(); }
+                 }
+                 );
+        }
+
+        /** Print repeated operations from this cache in verbose mode. Null turns the cache off */
+        public  void    setOperationCache( OperationCache operationCache ) { _operationCache = operationCache; }
+
+        /**
+         * <p>
+         * Keep at most limit bytes of each record. Longer records are printed
+         * with a hex preview of their operation rather than deserialized, and
+         * verbose details which are longer than the limit are cut short.
+         * </p>
+         */
+        public  void    setRecordLimit( int limit )
+        {
+            _recordLimit = limit;
+            _streamWrapper.setRecordLimit( limit );
+        }
+
+        /** Record the time spent in each stage of reading into these metrics. Null turns the metrics off */
+        public  void    setMetrics( Metrics metrics )   throws Exception
+        {
+            _metrics = metrics;
+
+            // a fresh engine, so that setting the metrics twice does not time decryption twice
+            if ( _cipherFactory != null )
+            {
+                CipherProvider  decryptionEngine = _cipherFactory.createNewCipher( CipherFactory.DECRYPT );
+
+                _decryptionEngine = (metrics == null) ? decryptionEngine : metrics.timed( decryptionEngine );
+            }
+        }
+
+        public  void    printMe( PrintStream printStream )  throws Exception
+        {
+            _recordCount = 0;
+
+            OutputSink  ps = _outputFormat.newSink( printStream );
+            
+            ps.beginDocument();
+
+            try {
+                if ( _file.isDirectory() || ((_archive != null) && _archive.isTarball()) ) { printDirectory( ps ); }
+                else { printFile( ps ); }
+            }
+            finally
+            {
+                ps.flush();
+                closeArchive();
+            }
+        }
+
+        /**
+         * <p>
+         * Write an index of every record to indexFile and print a summary.
+         * </p>
+         */
+        public  void    indexMe( File indexFile, PrintStream printStream )  throws Exception
+        {
+            if ( _archive != null ) { throw new IllegalStateException( streamOnly() ); }
+
+            _recordCount = 0;
+
+            OutputSink  ps = _outputFormat.newSink( printStream );
+            
+            ps.beginDocument();
+
+            try {
+                writeIndex( ps, indexFile );
+            }
+            finally { ps.flush(); }
+        }
+
+        private void    writeIndex( OutputSink ps, File indexFile )  throws Exception
+        {
+            ps.beginTag( "logIndex" );
+            {
+                ArrayList<LogFileHeader>    headers = listLogFiles();
+                String[]    fileNames = new String[ headers.size() ];
+
+                for ( int i = 0; i < fileNames.length; i++ ) { fileNames[ i ] = headers.get( i ).getFile().getName(); }
+
+                _indexWriter = new LogIndex.Writer( indexFile, fileNames );
+                try {
+                    scanLogFiles( ps, headers );
+                }
+                catch (Throwable t) { _error = t; }
+
+                // closing may have to sort the index, which can fail too
+                try {
+                    _indexWriter.close();
+                }
+                catch (Throwable t) { if ( _error == null ) { _error = t; } }
+                finally { _indexWriter = null; }
+
+                createTextElement( ps, "indexFile", indexFile.getPath() );
+                createLongElement( ps, "entryCount", _recordCount );
+
+                if ( _error != null )
+                {
+                    formatError( ps );
+                }
+            }
+            ps.endTag();   // logIndex
+        }
+
+        /**
+         * <p>
+         * Write an index of the pages which the records touch to indexFile and print a summary.
+         * </p>
+         */
+        public  void    pageIndexMe( File indexFile, PrintStream printStream )  throws Exception
+        {
+            if ( _archive != null ) { throw new IllegalStateException( streamOnly() ); }
+
+            _recordCount = 0;
+
+            OutputSink  ps = _outputFormat.newSink( printStream );
+            
+            ps.beginDocument();
+
+            try {
+                writePageIndex( ps, indexFile );
+            }
+            finally { ps.flush(); }
+        }
+
+        private void    writePageIndex( OutputSink ps, File indexFile )  throws Exception
+        {
+            ps.beginTag( "pageIndex" );
+            {
+                ArrayList<LogFileHeader>    headers = listLogFiles();
+                String[]    fileNames = new String[ headers.size() ];
+
+                for ( int i = 0; i < fileNames.length; i++ ) { fileNames[ i ] = headers.get( i ).getFile().getName(); }
+
+                PageIndex.Writer    writer = new PageIndex.Writer( indexFile, fileNames );
+
+                _pageIndexWriter = writer;
+                try {
+                    scanLogFiles( ps, headers );
+                }
+                catch (Throwable t) { _error = t; }
+                finally
+                {
+                    _pageIndexWriter.close();
+                    _pageIndexWriter = null;
+                }
+
+                createTextElement( ps, "indexFile", indexFile.getPath() );
+                createLongElement( ps, "recordCount", _recordCount );
+                createLongElement( ps, "entryCount", writer.getEntryCount() );
+                createLongElement( ps, "pageCount", writer.getPageCount() );
+
+                if ( _error != null )
+                {
+                    formatError( ps );
+                }
+            }
+            ps.endTag();   // pageIndex
+        }
+
+        /**
+         * <p>
+         * Print a summary of every transaction in the log, rather than its records.
+         * </p>
+         */
+        public  void    reportMe( PrintStream printStream )  throws Exception
+        {
+            _recordCount = 0;
+
+            OutputSink  ps = _outputFormat.newSink( printStream );
+            
+            ps.beginDocument();
+
+            try {
+                writeReport( ps );
+            }
+            finally
+            {
+                ps.flush();
+                closeArchive();
+            }
+        }
+
+        private void    writeReport( OutputSink ps )  throws Exception
+        {
+            ps.beginTag( "transactionReport" );
+            {
+                _transactionReport = new TransactionReport();
+                try {
+                    ps.beginTag( "transactions" );
+                    {
+                        try {
+                            scanLogFiles( ps, listLogFiles() );
+                        }
+                        catch (Throwable t) { _error = t; }
+
+                        for ( int slot : _transactionReport.openSlots() ) { formatTransaction( ps, slot ); }
+                    }
+                    ps.endTag();   // transactions
+
+                    createLongElement( ps, "transactionCount", _transactionReport.getTransactionCount() );
+                    createLongElement( ps, "committedCount", _transactionReport.getCommittedCount() );
+                    createLongElement( ps, "abortedCount", _transactionReport.getAbortedCount() );
+                    createLongElement( ps, "incompleteCount", _transactionReport.getOpenCount() );
+                    createLongElement( ps, "nonTransactionalRecordCount", _transactionReport.getNonTransactionalRecordCount() );
+                    createLongElement( ps, "recordCount", _recordCount );
+                }
+                finally { _transactionReport = null; }
+
+                if ( _error != null )
+                {
+                    formatError( ps );
+                }
+            }
+            ps.endTag();   // transactionReport
+        }
+
+        /**
+         * <p>
+         * Verify the checksums in the log, printing only the ones which fail and
+         * a summary. Returns false if a checksum failed or the log could not be read.
+         * </p>
+         */
+        public  boolean verifyMe( PrintStream printStream )  throws Exception
+        {
+            if ( _archive != null ) { throw new IllegalStateException( streamOnly() ); }
+
+            _recordCount = 0;
+
+            OutputSink  ps = _outputFormat.newSink( printStream );
+            
+            ps.beginDocument();
+
+            try {
+                return writeVerification( ps );
+            }
+            finally { ps.flush(); }
+        }
+
+        private boolean writeVerification( OutputSink ps )  throws Exception
+        {
+            boolean intact;
+
+            ps.beginTag( "logVerification" );
+            {
+                _checksumVerifier = new ChecksumVerifier();
+                try {
+                    ps.beginTag( "checksumFailures" );
+                    {
+                        try {
+                            ArrayList<LogFileHeader>    headers = listLogFiles();
+
+                            if ( _threadCount > 1 ) { readChunks( ps, splitLogFiles( headers ) ); }
+                            else { scanLogFiles( ps, headers ); }
+                        }
+                        catch (Throwable t) { _error = t; }
+                    }
+                    ps.endTag();   // checksumFailures
+
+                    createLongElement( ps, "recordCount", _recordCount );
+                    createLongElement( ps, "checksumCount", _checksumVerifier.getChecksumCount() );
+                    createLongElement( ps, "passedCount", _checksumVerifier.getPassedCount() );
+                    createLongElement( ps, "failedCount", _checksumVerifier.getFailedCount() );
+                    createLongElement( ps, "coveredBytes", _checksumVerifier.getCoveredBytes() );
+
+                    intact = (_checksumVerifier.getFailedCount() == 0) && (_error == null);
+                }
+                finally { _checksumVerifier = null; }
+
+                if ( _error != null )
+                {
+                    formatError( ps );
+                }
+            }
+            ps.endTag();   // logVerification
+
+            return intact;
+        }
+
+        /**
+         * <p>
+         * Print a profile of the log's records, sizes, operations and
+         * transactions, rather than its records.
+         * </p>
+         */
+        public  void    profileMe( PrintStream printStream )  throws Exception
+        {
+            _recordCount = 0;
+
+            OutputSink  ps = _outputFormat.newSink( printStream );
+            
+            ps.beginDocument();
+
+            try {
+                writeProfile( ps );
+            }
+            finally
+            {
+                ps.flush();
+                closeArchive();
+            }
+        }
+
+        private void    writeProfile( OutputSink ps )  throws Exception
+        {
+            ps.beginTag( "logProfile" );
+            {
+                LogProfile  profile = new LogProfile();
+
+                _logProfile = profile;
+                try {
+                    scanLogFiles( ps, listLogFiles() );
+                }
+                catch (Throwable t) { _error = t; }
+                finally { _logProfile = null; }
+
+                formatHistogram( ps, "recordSizes", profile.getRecordSizes() );
+
+                ps.beginTag( "operationTypes" );
+                {
+                    for ( int slot : profile.operationsBySize() )
+                    {
+                        ps.beginTag( "operationType" );
+                        {
+                            createTextElement( ps, "name", operationTag( profile.getOperationFormatID( slot ) ) );
+                            createIntElement( ps, "formatableID", profile.getOperationFormatID( slot ) );
+                            createLongElement( ps, "recordCount", profile.getOperationRecordCount( slot ) );
+                            createLongElement( ps, "byteCount", profile.getOperationByteCount( slot ) );
+                            createLongElement( ps, "largestRecord", profile.getOperationLargestRecord( slot ) );
+                        }
+                        ps.endTag();   // operationType
+                    }
+                }
+                ps.endTag();   // operationTypes
+
+                ps.beginTag( "groupCombinations" );
+                {
+                    for ( int slot = 0; slot < profile.getGroupCount(); slot++ )
+                    {
+                        ps.beginTag( "groupCombination" );
+                        {
+                            formatLogGroups( ps, profile.getGroups( slot ) );
+                            createLongElement( ps, "recordCount", profile.getGroupRecordCount( slot ) );
+                            createLongElement( ps, "byteCount", profile.getGroupByteCount( slot ) );
+                        }
+                        ps.endTag();   // groupCombination
+                    }
+                }
+                ps.endTag();   // groupCombinations
+
+                ps.beginTag( "logFiles" );
+                {
+                    for ( int slot = 0; slot < profile.getFileCount(); slot++ )
+                    {
+                        ps.beginTag( "logFile" );
+                        {
+                            createLongElement( ps, "logFileNumber", profile.getLogFileNumber( slot ) );
+                            createLongElement( ps, "recordCount", profile.getFileRecordCount( slot ) );
+                            createLongElement( ps, "byteCount", profile.getFileByteCount( slot ) );
+                            createLongElement( ps, "transactionCount", profile.getFileTransactionCount( slot ) );
+                            createLongElement( ps, "committedCount", profile.getFileCommittedCount( slot ) );
+                            createLongElement( ps, "abortedCount", profile.getFileAbortedCount( slot ) );
+                            createLongElement( ps, "checkpointCount", profile.getFileCheckpointCount( slot ) );
+                            createLongElement
+                                ( ps, "transactionsPerMegabyte", LogProfile.perMegabyte( profile.getFileTransactionCount( slot ), profile.getFileByteCount( slot ) ) );
+                        }
+                        ps.endTag();   // logFile
+                    }
+                }
+                ps.endTag();   // logFiles
+
+                formatHistogram( ps, "checkpointIntervals", profile.getCheckpointIntervals() );
+
+                LogProfile.Histogram    recordSizes = profile.getRecordSizes();
+
+                createLongElement( ps, "recordCount", _recordCount );
+                createLongElement( ps, "byteCount", recordSizes.getSum() );
+                if ( recordSizes.getCount() > 0L )
+                {
+                    formatLogCounter( ps, profile.getFirstInstant(), "firstInstant" );
+                    formatLogCounter( ps, profile.getLastInstant(), "lastInstant" );
+                }
+                formatPercentiles( ps, "recordSize", recordSizes );
+                createLongElement( ps, "transactionCount", profile.getTransactionCount() );
+                createLongElement( ps, "committedCount", profile.getCommittedCount() );
+                createLongElement( ps, "abortedCount", profile.getAbortedCount() );
+                createLongElement( ps, "transactionsPerMegabyte", LogProfile.perMegabyte( profile.getTransactionCount(), recordSizes.getSum() ) );
+                createLongElement( ps, "checkpointCount", profile.getCheckpointCount() );
+                formatPercentiles( ps, "checkpointInterval", profile.getCheckpointIntervals() );
+
+                if ( _error != null )
+                {
+                    formatError( ps );
+                }
+            }
+            ps.endTag();   // logProfile
+        }
+
+        /** Print the non-empty buckets of a histogram */
+        private void    formatHistogram( OutputSink ps, String tag, LogProfile.Histogram histogram )  throws Exception
+        {
+            ps.beginTag( tag );
+            {
+                for ( int i = 0; i < LogProfile.Histogram.BUCKET_COUNT; i++ )
+                {
+                    if ( histogram.getCount( i ) == 0L ) { continue; }
+
+                    ps.beginTag( "bucket" );
+                    {
+                        createLongElement( ps, "lessThan", LogProfile.Histogram.upperBound( i ) );
+                        createLongElement( ps, "count", histogram.getCount( i ) );
+                        createLongElement( ps, "sum", histogram.getSum( i ) );
+                    }
+                    ps.endTag();   // bucket
+                }
+            }
+            ps.endTag();   // tag
+        }
+
+        private void    formatPercentiles( OutputSink ps, String tag, LogProfile.Histogram histogram )  throws Exception
+        {
+            ps.beginTag( tag );
+            {
+                createLongElement( ps, "minimum", histogram.getMinimum() );
+                createLongElement( ps, "mean", histogram.getMean() );
+                createLongElement( ps, "p50", histogram.percentile( 0.50 ) );
+                createLongElement( ps, "p90", histogram.percentile( 0.90 ) );
+                createLongElement( ps, "p99", histogram.percentile( 0.99 ) );
+                createLongElement( ps, "maximum", histogram.getMaximum() );
+            }
+            ps.endTag();   // tag
+        }
+
+        /**
+         * <p>
+         * Compare the log with another copy of it, e.g. on a replica or in a
+         * restored backup, matching up their records by log instant. Only the
+         * differences are printed: records which are missing from one side or
+         * the other and records whose bytes differ, followed by a summary. The
+         * other log is read with the same options as this one. Returns false
+         * if the logs differ or either of them could not be read.
+         * </p>
+         */
+        public  boolean compareMe( File otherFile, PrintStream printStream )  throws Exception
+        {
+            LogFile other = new LogFile
+                ( otherFile, _readWholeRecord, _memoryMapped, _salvage, _backward, _outputFormat, 1, _startPosition, _maxRecordCount, _filter, _cipherFactory );
+
+            other.setOperationCache( _operationCache );
+            other.setRecordLimit( _recordLimit );
+            other.setMetrics( _metrics );
+
+            OutputSink  ps = _outputFormat.newSink( printStream );
+            
+            ps.beginDocument();
+
+            try {
+                return writeComparison( ps, other );
+            }
+            finally { ps.flush(); }
+        }
+
+        private boolean writeComparison( OutputSink ps, LogFile other )  throws Exception
+        {
+            boolean identical;
+
+            ps.beginTag( "logComparison" );
+            {
+                LogComparison   comparison = new LogComparison();
+
+                createTextElement( ps, "leftLog", _file.getPath() );
+                createTextElement( ps, "rightLog", other._file.getPath() );
+
+                ps.beginTag( "differences" );
+                {
+                    LogRecordIterator   left = null;
+                    LogRecordIterator   right = null;
+
+                    try {
+                        left = records();
+                        right = other.records();
+
+                        compareRecords( ps, other, left, right, comparison );
+                    }
+                    catch (Throwable t) { _error = t; }
+                    finally
+                    {
+                        if ( left != null ) { left.close(); }
+                        if ( right != null ) { right.close(); }
+                    }
+                }
+                ps.endTag();   // differences
+
+                createLongElement( ps, "leftRecordCount", _recordCount );
+                createLongElement( ps, "rightRecordCount", other._recordCount );
+                createLongElement( ps, "matchedCount", comparison.getMatchedCount() );
+                createLongElement( ps, "mismatchedCount", comparison.getMismatchedCount() );
+                createLongElement( ps, "leftOnlyCount", comparison.getLeftOnlyCount() );
+                createLongElement( ps, "rightOnlyCount", comparison.getRightOnlyCount() );
+                if ( comparison.diverged() ) { formatLogCounter( ps, comparison.getFirstDivergence(), "firstDivergence" ); }
+
+                identical = !comparison.diverged() && (_error == null);
+
+                if ( _error != null )
+                {
+                    formatError( ps );
+                }
+            }
+            ps.endTag();   // logComparison
+
+            return identical;
+        }
+
+        /** Walk both logs in log instant order, printing the records which do not match */
+        private void    compareRecords( OutputSink ps, LogFile other, LogRecordIterator left, LogRecordIterator right, LogComparison comparison )
+            throws Exception
+        {
+            LogRecordWrapper    leftWrapper = left.nextWrapper();
+            LogRecordWrapper    rightWrapper = right.nextWrapper();
+
+            while ( (leftWrapper != null) || (rightWrapper != null) )
+            {
+                long    leftInstant = (leftWrapper == null) ? Long.MAX_VALUE : leftWrapper.getLogInstant();
+                long    rightInstant = (rightWrapper == null) ? Long.MAX_VALUE : rightWrapper.getLogInstant();
+
+                if ( leftInstant < rightInstant )
+                {
+                    formatDifference( ps, comparison.leftOnly( leftWrapper ), other, leftWrapper, null );
+                    leftWrapper = left.nextWrapper();
+                }
+                else if ( rightInstant < leftInstant )
+                {
+                    formatDifference( ps, comparison.rightOnly( rightWrapper ), other, null, rightWrapper );
+                    rightWrapper = right.nextWrapper();
+                }
+                else
+                {
+                    String  kind = comparison.compare( leftWrapper, rightWrapper );
+
+                    if ( kind != null ) { formatDifference( ps, kind, other, leftWrapper, rightWrapper ); }
+
+                    leftWrapper = left.nextWrapper();
+                    rightWrapper = right.nextWrapper();
+                }
+            }
+        }
+
+        private void    formatDifference( OutputSink ps, String kind, LogFile other, LogRecordWrapper left, LogRecordWrapper right )
+            throws Exception
+        {
+            ps.beginTag( "difference", "kind", kind );
+            {
+                if ( left != null )
+                {
+                    ps.beginTag( "left" );
+                    {
+                        writeWrapper( ps, left );
+                    }
+                    ps.endTag();   // left
+                }
+                if ( right != null )
+                {
+                    ps.beginTag( "right" );
+                    {
+                        other.writeWrapper( ps, right );
+                    }
+                    ps.endTag();   // right
+                }
+            }
+            ps.endTag();   // difference
+        }
+
+        /** Read every record of the given log files in order, starting at -p in the first one */
+        private void    scanLogFiles( OutputSink ps, ArrayList<LogFileHeader> headers )  throws Exception
+        {
+            for ( _fileIndex = 0; (_fileIndex < headers.size()) && !readEnoughRecords(); _fileIndex++ )
+            {
+                long    startPosition = ((_fileIndex == 0) && (_startPosition > 0)) ? _startPosition : LogFileHeader.LENGTH;
+
+                openLogFile( headers.get( _fileIndex ).getFile() );
+                try {
+                    seek( startPosition );
+                    readLogRecords( ps, startPosition, Long.MAX_VALUE );
+                }
+                finally { closeLogFile(); }
+            }
+        }
+
+        /**
+         * <p>
+         * Print the records whose log instants lie between firstInstant and lastInstant
+         * (inclusive), using an index built by indexMe() to go straight to them.
+         * </p>
+         */
+        public  void    lookupMe( File indexFile, long firstInstant, long lastInstant, PrintStream printStream )  throws Exception
+        {
+            if ( _archive != null ) { throw new IllegalStateException( streamOnly() ); }
+
+            _recordCount = 0;
+
+            OutputSink  ps = _outputFormat.newSink( printStream );
+            
+            ps.beginDocument();
+
+            try {
+                printLookup( ps, indexFile, firstInstant, lastInstant );
+            }
+            finally { ps.flush(); }
+        }
+
+        private void    printLookup( OutputSink ps, File indexFile, long firstInstant, long lastInstant )  throws Exception
+        {
+            ps.beginTag( "logLookup" );
+            {
+                LogIndex    index = new LogIndex( indexFile );
+
+                try {
+                    ps.beginTag( "logRecords" );
+                    {
+                        lookupRecords( ps, index, firstInstant, lastInstant );
+                    }
+                    ps.endTag();   // logRecords
+
+                    createLongElement( ps, "recordCount", _recordCount );
+                }
+                catch (Throwable t) { _error = t; }
+                finally
+                {
+                    index.close();
+                    if ( _dais != null ) { closeLogFile(); }
+                }
+
+                if ( _error != null )
+                {
+                    formatError( ps );
+                }
+            }
+            ps.endTag();   // logLookup
+        }
+
+        private void    lookupRecords( OutputSink ps, LogIndex index, long firstInstant, long lastInstant )  throws Exception
+        {
+            for ( long idx = index.find( firstInstant ); (idx < index.size()) && !readEnoughRecords(); idx++ )
+            {
+                LogIndex.Entry  entry = index.getEntry( idx );
+
+                if ( entry.getLogInstant() > lastInstant ) { break; }
+
+                // the index already knows the transaction and groups, so most misses never touch the log
+                if ( (_filter != null) && !_filter.accept( entry.getTransactionID(), entry.getGroups() ) ) { continue; }
+
+                LogRecordWrapper    wrapper = readIndexedRecord( index.getFileName( entry.getFileIndex() ), entry.getOffset(), entry.getLogInstant() );
+
+                if ( (_filter != null) && !_filter.accept( _recordHeader.decode( wrapper ) ) ) { continue; }
+
+                _recordCount++;
+                formatWrapper( ps, wrapper );
+            }
+        }
+
+        /**
+         * <p>
+         * Read the record at an offset of a log file named by an index, and check
+         * that it is the record which the index expects. The entries of an
+         * index are read in instant order, so the log file is only reopened
+         * when the file changes.
+         * </p>
+         */
+        private LogRecordWrapper    readIndexedRecord( String fileName, long offset, long logInstant )  throws Exception
+        {
+            // the index names log files relative to the log directory
+            File    logDirectory = _file.isDirectory() ? _file : _file.getAbsoluteFile().getParentFile();
+            File    file = new File( logDirectory, fileName );
+
+            if ( (_dais == null) || !file.equals( _indexedFile ) )
+            {
+                if ( _dais != null ) { closeLogFile(); }
+
+                openLogFile( file );
+                _indexedFile = file;
+            }
+
+            seek( offset );
+
+            LogRecordWrapper    wrapper = nextWrapper();
+
+            if ( wrapper.getLogInstant() != logInstant )
+            {
+                throw new IOException
+                    (
+                     "The index is out of date. Expected log instant " + logInstant + " at offset " + offset +
+                     " of " + fileName + " but found log instant " + wrapper.getLogInstant()
+                     );
+            }
+
+            return wrapper;
+        }
+
+        /**
+         * <p>
+         * Print the records which touched a page, or a whole container if
+         * pageNumber is PageIndex.ALL_PAGES, using a page index built by
+         * pageIndexMe() to go straight to them.
+         * </p>
+         */
+        public  void    historyMe( File indexFile, long segmentID, long containerID, long pageNumber, PrintStream printStream )  throws Exception
+        {
+            if ( _archive != null ) { throw new IllegalStateException( streamOnly() ); }
+
+            _recordCount = 0;
+
+            OutputSink  ps = _outputFormat.newSink( printStream );
+            
+            ps.beginDocument();
+
+            try {
+                printHistory( ps, indexFile, segmentID, containerID, pageNumber );
+            }
+            finally { ps.flush(); }
+        }
+
+        private void    printHistory( OutputSink ps, File indexFile, long segmentID, long containerID, long pageNumber )  throws Exception
+        {
+            ps.beginTag( "pageHistory" );
+            {
+                PageIndex   index = new PageIndex( indexFile );
+
+                try {
+                    createLongElement( ps, "segmentID", segmentID );
+                    createLongElement( ps, "containerID", containerID );
+                    if ( pageNumber != PageIndex.ALL_PAGES ) { createLongElement( ps, "pageNumber", pageNumber ); }
+
+                    ps.beginTag( "logRecords" );
+                    {
+                        for ( PageIndex.Entry entry : index.find( segmentID, containerID, pageNumber ) )
+                        {
+                            if ( readEnoughRecords() ) { break; }
+
+                            LogRecordWrapper    wrapper = readIndexedRecord( index.getFileName( entry.getFileIndex() ), entry.getOffset(), entry.getLogInstant() );
+
+                            if ( (_filter != null) && !_filter.accept( _recordHeader.decode( wrapper ) ) ) { continue; }
+
+                            _recordCount++;
+                            formatWrapper( ps, wrapper );
+                        }
+                    }
+                    ps.endTag();   // logRecords
+
+                    createLongElement( ps, "recordCount", _recordCount );
+                }
+                catch (Throwable t) { _error = t; }
+                finally
+                {
+                    index.close();
+                    if ( _dais != null ) { closeLogFile(); }
+                }
+
+                if ( _error != null )
+                {
+                    formatError( ps );
+                }
+            }
+            ps.endTag();   // pageHistory
+        }
+
+        /**
+         * <p>
+         * Print the records of a live log as they are written, until enough
+         * records have been printed.
+         * </p>
+         */
+        public  void    followMe( PrintStream printStream )  throws Exception
+        {
+            if ( _archive != null ) { throw new IllegalStateException( streamOnly() ); }
+
+            _recordCount = 0;
+
+            OutputSink  ps = _outputFormat.newSink( printStream );
+            
+            ps.beginDocument();
+
+            try {
+                followLog( ps );
+            }
+            finally { ps.flush(); }
+        }
+
+        private void    followLog( OutputSink ps )  throws Exception
+        {
+            String  rootTag = _file.isDirectory() ? "logDirectory" : "logFile";
+
+            ps.beginTag( rootTag );
+            {
+                LogFollower follower = null;
+
+                try {
+                    LogFileHeader   header;
+                    File            logDirectory;
+
+                    if ( _file.isDirectory() )
+                    {
+                        ArrayList<LogFileHeader>    headers = listLogFiles();
+                        if ( headers.isEmpty() ) { throw new IOException( "There are no log files in " + _file ); }
+
+                        header = headers.get( headers.size() - 1 );
+                        logDirectory = _file;
+                    }
+                    else
+                    {
+                        header = new LogFileHeader( _file );
+                        logDirectory = _file.getAbsoluteFile().getParentFile();
+
+                        if ( (_startPosition == 0) && header.isValid() ) { formatFileHeader( ps, header ); }
+                    }
+
+                    follower = new LogFollower
+                        ( logDirectory, header, (_startPosition > 0) ? _startPosition : LogFileHeader.LENGTH, _decryptionEngine, _recordLimit );
+
+                    ps.beginTag( "logRecords" );
+                    {
+                        followRecords( ps, follower );
+                    }
+                    ps.endTag();   // logRecords
+
+                    createLongElement( ps, "recordCount", _recordCount );
+                }
+                catch (Throwable t) { _error = t; }
+                finally
+                {
+                    if ( follower != null ) { follower.close(); }
+                }
+
+                if ( _error != null )
+                {
+                    formatError( ps );
+                }
+            }
+            ps.endTag();   // rootTag
+        }
+
+        private void    followRecords( OutputSink ps, LogFollower follower )  throws Exception
+        {
+            while ( !readEnoughRecords() )
+            {
+                long                start = (_metrics == null) ? 0L : System.nanoTime();
+                LogRecordWrapper    wrapper = follower.nextWrapper();
+
+                if ( _metrics != null ) { countWrapper( wrapper, System.nanoTime() - start ); }
+
+                if ( wrapper != null )
+                {
+                    if ( (_filter != null) && !_filter.accept( _recordHeader.decode( wrapper ) ) ) { continue; }
+
+                    _recordCount++;
+                    formatWrapper( ps, wrapper );
+                    continue;
+                }
+
+                LogFileHeader   nextHeader = follower.nextLogFile();
+
+                if ( nextHeader != null )
+                {
+                    checkLogChain( ps, follower.getHeader(), follower.position(), nextHeader );
+                    follower.open( nextHeader, LogFileHeader.LENGTH );
+                    continue;
+                }
+
+                // caught up with the writer, so show what we have and go to sleep
+                ps.flush();
+                follower.await();
+            }
+        }
+
+        /** Get the headers of the log files to read, in log order */
+        private ArrayList<LogFileHeader>    listLogFiles()  throws IOException
+        {
+            if ( _archive != null ) { return _archive.getHeaders(); }
+            if ( _file.isDirectory() ) { return new LogDirectory( _file ).getHeaders(); }
+
+            ArrayList<LogFileHeader>    headers = new ArrayList<LogFileHeader>();
+            headers.add( new LogFileHeader( _file ) );
+
+            return headers;
+        }
+
+        private void    printFile( OutputSink ps )  throws Exception
+        {
+            ps.beginTag( "logFile" );
+            {
+                openLogFile( _file );
+
+                readFile( ps );
+                
+                if ( _error != null )
+                {
+                    formatError( ps );
+                }
+
+                closeLogFile();
+            }
+            ps.endTag();   // logFile
+        }
+
+        private void    printDirectory( OutputSink ps )  throws Exception
+        {
+            ps.beginTag( "logDirectory" );
+            {
+                LogDirectory    directory = (_archive == null) ? new LogDirectory( _file ) : new LogDirectory( _file, _archive.getHeaders() );
+
+                ps.beginTag( "logFiles" );
+                {
+                    for ( int i = 0; i < directory.size(); i++ )
+                    {
+                        LogFileHeader   header = directory.getHeader( i );
+
+                        ps.beginTag( "logFile" );
+                        {
+                            createTextElement( ps, "fileName", header.getFile().getName() );
+                            if ( header.isValid() ) { formatFileHeader( ps, header ); }
+                        }
+                        ps.endTag();   // logFile
+                    }
+                }
+                ps.endTag();   // logFiles
+
+                readDirectory( ps, directory );
+
+                if ( _error != null )
+                {
+                    formatError( ps );
+                }
+            }
+            ps.endTag();   // logDirectory
+        }
+
+        //
+        // In memory-mapped mode, the header and any skipped prefix are read
+        // through a stream view of the mapping, and the records themselves
+        // are sliced directly out of the mapped buffer.
+        //
+        private void    openLogFile( File file )    throws Exception
+        {
+            if ( _archive != null )
+            {
+                _archiveEntry = _archive.open( file );
+                _dais = new DataInputStream( _archiveEntry );
+            }
+            else if ( _memoryMapped )
+            {
+                _scanner = new MappedLogScanner( file, _decryptionEngine );
+                _scanner.setRecordLimit( _recordLimit );
+                _dais = new DataInputStream( _scanner.asInputStream() );
+            }
+            else
+            {
+                FileInputStream fis = new FileInputStream( file );
+
+                _channel = fis.getChannel();
+                _dais = new DataInputStream( fis );
+            }
+        }
+        private void    closeLogFile()  throws Exception
+        {
+            _dais.close();
+            _dais = null;
+            _channel = null;
+            _scanner = null;
+            _archiveEntry = null;
+        }
+
+        /** Stop any pass over the archive which is still under way, e.g. because -n records have been read */
+        private void    closeArchive()  throws IOException
+        {
+            if ( _archive != null ) { _archive.close(); }
+        }
+
+        private String  streamOnly()
+        {
+            return _file + " is an archive, which can only be read forward as a stream.";
+        }
+
+        /**
+         * <p>
+         * Move to an absolute offset in the current log file. The stream over
+         * the file does no buffering of its own, so this just positions the
+         * file's channel, and the bytes in between are never read. Like
+         * skipping, moving past the end of the file is not an error, whether
+         * or not it is mapped: the log simply ends there.
+         * </p>
+         */
+        private void    seek( long position )   throws IOException
+        {
+            if ( _archiveEntry != null ) { _archiveEntry.seek( position ); }
+            else if ( _scanner == null ) { _channel.position( position ); }
+            else { _scanner.position( Math.min( position, _scanner.limit() ) ); }
+        }
+
+        private void    readFile( OutputSink ps )
+        {
+            try {
+                if ( _startPosition > 0 )   { seek( _startPosition ); }
+                else { readFileHeader( ps ); }
+                
+                long    firstRecordPosition = (_startPosition > 0) ? _startPosition : LogFileHeader.LENGTH;
+
+                ps.beginTag( "logRecords" );
+                {
+                    if ( _backward ) { readLogRecordsBackward( ps, _startPosition ); }
+                    else if ( _threadCount > 1 )
+                    {
+                        readChunks( ps, LogChunk.split( new LogFileHeader( _file ), firstRecordPosition, PARALLEL_CHUNK_SIZE, _decryptionEngine ) );
+                    }
+                    else { readLogRecords( ps, firstRecordPosition, Long.MAX_VALUE ); }
+                }
+                ps.endTag();   // logRecords
+                
+                createLongElement( ps, "recordCount", _recordCount );
+                
+            } catch (Throwable t)
+            {
+                _error = t;
+            }
+        }
+
+        private void    readDirectory( OutputSink ps, LogDirectory directory )
+        {
+            try {
+                ps.beginTag( "logRecords" );
+                if ( _backward )
+                {
+                    for ( int i = directory.size() - 1; (i >= 0) && !readEnoughRecords(); i-- )
+                    {
+                        openLogFile( directory.getHeader( i ).getFile() );
+                        try {
+                            readLogRecordsBackward( ps, (i == directory.size() - 1) ? _startPosition : 0L );
+                        }
+                        finally { closeLogFile(); }
+                    }
+                }
+                else if ( _threadCount > 1 ) { readChunks( ps, splitLogFiles( directory.getHeaders() ) ); }
+                else
+                {
+                    LogFileHeader   previousHeader = null;
+                    long            previousEndPosition = 0L;
+
+                    for ( int i = 0; (i < directory.size()) && !readEnoughRecords(); i++ )
+                    {
+                        LogFileHeader   header = directory.getHeader( i );
+                        long            startPosition = ((i == 0) && (_startPosition > 0)) ? _startPosition : LogFileHeader.LENGTH;
+
+                        if ( previousHeader != null ) { checkLogChain( ps, previousHeader, previousEndPosition, header ); }
+
+                        openLogFile( header.getFile() );
+                        try {
+                            seek( startPosition );
+                            previousEndPosition = readLogRecords( ps, startPosition, Long.MAX_VALUE );
+                        }
+                        finally { closeLogFile(); }
+
+                        previousHeader = header;
+                    }
+                }
+                ps.endTag();   // logRecords
+
+                createLongElement( ps, "recordCount", _recordCount );
+
+            } catch (Throwable t)
+            {
+                _error = t;
+            }
+        }
+
+        private void    readFileHeader( OutputSink ps ) throws Exception
+        {
+            LogFileHeader   header = new LogFileHeader( _file, _dais );
+
+            if ( !header.isValid() )
+            {
+                new IOException
+                    (
+                     "File header should start with formatable id " + StoredFormatIds.FILE_STREAM_LOG_FILE +
+                     " but instead starts with formatable id " + header.getFormatableID()
+                     );
+            }
+
+            formatFileHeader( ps, header );
+        }
+
+        /**
+         * <p>
+         * Read records from the current log file, starting at the given file offset
+         * and stopping at the end of the log or at the end offset, whichever comes first.
+         * Returns the offset just past the last record which was read.
+         * </p>
+         */
+        private long    readLogRecords( OutputSink ps, long position, long endPosition )  throws Exception
+        {
+            startReading( position );
+            try {
+                LogRecordWrapper    wrapper;
+
+                while ( (wrapper = pullRecord( ps, endPosition )) != null )
+                {
+                    if ( _indexWriter != null )
+                    {
+                        LogRecordHeader recordHeader = _recordHeader.decode( wrapper );
+
+                        _indexWriter.add
+                            ( wrapper.getLogInstant(), _fileIndex, _recordPosition, recordHeader.getTransactionID(), recordHeader.getGroups() );
+                    }
+                    else if ( _transactionReport != null )
+                    {
+                        int     finishedSlot = _transactionReport.add( wrapper.getLogInstant(), wrapper.getWrapperLength(), _recordHeader.decode( wrapper ) );
+
+                        if ( finishedSlot >= 0 )
+                        {
+                            formatTransaction( ps, finishedSlot );
+                            _transactionReport.release( finishedSlot );
+                        }
+                    }
+                    else if ( _checksumVerifier != null ) { verifyChecksum( ps, wrapper ); }
+                    else if ( _logProfile != null ) { _logProfile.add( wrapper.getLogInstant(), wrapper.getWrapperLength(), _recordHeader.decode( wrapper ) ); }
+                    else if ( _pageIndexWriter != null ) { indexPage( wrapper ); }
+                    else { formatWrapper( ps, wrapper ); }
+
+                    if ( _chunk != null ) { _chunk.addRecordEnd( (int) ps.size() ); }
+                }
+            }
+            finally { stopReading(); }
+
+            return _position;
+        }
+
+        /**
+         * <p>
+         * Get ready to pull records from the current log file, which is positioned
+         * at the given offset.
+         * </p>
+         */
+        private void    startReading( long position )
+        {
+            _position = position;
+
+            // salvaging moves the scanner around, parallel workers already decrypt on threads of their own,
+            // and on a single processor the two threads would only take turns
+            if ( (_decryptionEngine == null) || _salvage || (_chunk != null) || (Runtime.getRuntime().availableProcessors() < 2) ) { return; }
+
+            _pipeline = new DecryptionPipeline( _dais, _scanner, _decryptionEngine, _recordLimit );
+        }
+
+        private void    stopReading()   throws InterruptedException
+        {
+            if ( _pipeline == null ) { return; }
+
+            _pipeline.close();
+            _pipeline = null;
+        }
+
+        /**
+         * <p>
+         * Pull the next record which passes the filter out of the current log
+         * file. Returns null at the end of the log, at endPosition, or once
+         * enough records have been read. Salvage reports the damage it skips
+         * to ps, if there is one. Every pass over the log, whether it prints,
+         * indexes or hands out LogRecords, reads its records through here.
+         * </p>
+         */
+        private LogRecordWrapper    pullRecord( OutputSink ps, long endPosition )  throws Exception
+        {
+            while ( (_position < endPosition) && !readEnoughRecords() )
+            {
+                if ( _salvage )
+                {
+                    long    wrapperPosition = salvage( ps, _position );
+
+                    if ( wrapperPosition < 0 ) { return null; }
+                    if ( wrapperPosition >= endPosition ) { return null; }   // the next chunk picks up from there
+                    _position = wrapperPosition;
+                }
+
+                LogRecordWrapper    wrapper = nextWrapper();
+
+                if ( wrapper.getLogRecordLengthForward() <= 0 ) { return null; }
+
+                _recordPosition = _position;
+                _position += wrapper.getWrapperLength();
+
+                // the filter only looks at the record header, so rejected records are never decoded
+                if ( (_filter != null) && !_filter.accept( _recordHeader.decode( wrapper ) ) ) { continue; }
+
+                _recordCount++;
+
+                return wrapper;
+            }
+
+            return null;
+        }
+
+        /**
+         * <p>
+         * If the record which pullRecord() just returned is a checksum record,
+         * check the bytes which it covers and print a checksumFailure if they
+         * do not match. The covered bytes start right after the checksum
+         * record and are read from the file without moving the reader.
+         * </p>
+         */
+        private void    verifyChecksum( OutputSink ps, LogRecordWrapper wrapper )  throws Exception
+        {
+            LogRecordHeader header = _recordHeader.decode( wrapper );
+
+            if ( header.getOperationFormatID() != StoredFormatIds.LOGOP_CHECKSUM ) { return; }
+
+            ByteBuffer  record = wrapper._recordBuffer;
+            // the payload follows the operation's formatable id
+            int         payload = wrapper._recordOffset + header.getOperationOffset() + 2;
+            long        startPosition = _recordPosition + wrapper.getWrapperLength();
+            int         dataLength = 0;
+            long        expectedChecksum = 0L;
+            long        actualChecksum = 0L;
+            String      problem = null;
+
+            if ( wrapper._recordOffset + wrapper._recordLength - payload < ChecksumVerifier.PAYLOAD_LENGTH )
+            {
+                problem = "The checksum record is too short to hold a checksum.";
+            }
+            else
+            {
+                byte    algorithm = record.get( payload );
+
+                dataLength = record.getInt( payload + 1 );
+                expectedChecksum = record.getLong( payload + 5 );
+
+                if ( algorithm != ChecksumVerifier.CRC32_ALGORITHM ) { problem = "Unknown checksum algorithm " + algorithm + "."; }
+                else if ( dataLength < 0 ) { problem = "The checksum record covers a negative number of bytes."; }
+                else
+                {
+                    if ( _crc == null ) { _crc = new CRC32(); }
+                    _crc.reset();
+
+                    int     checkedLength = checksumBytes( _crc, startPosition, dataLength );
+                    actualChecksum = _crc.getValue();
+
+                    if ( checkedLength < dataLength )
+                    {
+                        problem = "The checksum covers " + dataLength + " bytes but the log file ends after " + checkedLength + " of them.";
+                    }
+                    else if ( actualChecksum != expectedChecksum )
+                    {
+                        problem = "The " + dataLength + " bytes which follow the checksum record do not match its checksum.";
+                    }
+                }
+            }
+
+            _checksumVerifier.count( dataLength, problem == null );
+
+            if ( problem == null ) { return; }
+
+            ps.beginTag( "checksumFailure" );
+            {
+                createTextElement( ps, "message", problem );
+                formatLogCounter( ps, wrapper.getLogInstant(), "logInstant" );
+                createLongElement( ps, "startPosition", startPosition );
+                createIntElement( ps, "dataLength", dataLength );
+                createLongElement( ps, "expectedChecksum", expectedChecksum );
+                createLongElement( ps, "actualChecksum", actualChecksum );
+            }
+            ps.endTag();   // checksumFailure
+        }
+
+        /**
+         * <p>
+         * Feed length bytes of the current log file, starting at the given
+         * offset, to a checksum without moving the reader. Returns the number
+         * of bytes fed, which is less than length if the file ends first.
+         * </p>
+         */
+        private int checksumBytes( CRC32 checksum, long position, int length )  throws IOException
+        {
+            if ( _scanner != null ) { return _scanner.checksum( checksum, position, length ); }
+
+            if ( _checksumBuffer == null ) { _checksumBuffer = ByteBuffer.allocate( 64 * 1024 ); }
+
+            int     checkedLength = 0;
+
+            while ( checkedLength < length )
+            {
+                _checksumBuffer.clear();
+                _checksumBuffer.limit( Math.min( _checksumBuffer.capacity(), length - checkedLength ) );
+
+                // a positional read, which leaves the channel where the reader is
+                int     bytesRead = _channel.read( _checksumBuffer, position + checkedLength );
+                if ( bytesRead <= 0 ) { break; }
+
+                _checksumBuffer.flip();
+                checksum.update( _checksumBuffer );
+                checkedLength += bytesRead;
+            }
+
+            return checkedLength;
+        }
+
+        /** Enter the record which pullRecord() just returned in the page index, if its operation works on a page or a container */
+        private void    indexPage( LogRecordWrapper wrapper )  throws Exception
+        {
+            LogRecordHeader header = _recordHeader.decode( wrapper );
+
+            if ( !_pageIdentity.decode( wrapper, header ) ) { return; }
+
+            _pageIndexWriter.add
+                (
+                 _pageIdentity.getSegmentID(), _pageIdentity.getContainerID(), _pageIdentity.getPageNumber(),
+                 wrapper.getLogInstant(), _fileIndex, _recordPosition, _pageIdentity.getVersion(), header.getOperationFormatID()
+                 );
+        }
+
+        /** Decode the record which pullRecord() just returned into a LogRecord of its own */
+        private LogRecord   newLogRecord( LogRecordWrapper wrapper )    throws Exception
+        {
+            LogRecordHeader header = _recordHeader.decode( wrapper );
+
+            boolean decode = _readWholeRecord && !wrapper.isTruncated();
+
+            return new LogRecord( _recordPosition, wrapper, header, decode ? decodeOperation( wrapper, header ) : null );
+        }
+
+        /**
+         * <p>
+         * Walk the current log file from its end towards its start, following
+         * the backward length at the end of each wrapper to the start of the
+         * wrapper before it. If startPosition is not 0, the walk starts with
+         * the wrapper at that position rather than with the last one.
+         * </p>
+         */
+        private void    readLogRecordsBackward( OutputSink ps, long startPosition )  throws Exception
+        {
+            long    end;
+
+            if ( startPosition > 0 )
+            {
+                seek( startPosition );
+
+                // like a forward read, starting past the end of the log reads nothing
+                if ( _scanner.atEndOfLog() ) { return; }
+
+                end = startPosition + nextWrapper().getWrapperLength();
+            }
+            else { end = _scanner.endOfLog(); }
+
+            while ( (end > LogFileHeader.LENGTH) && !readEnoughRecords() )
+            {
+                long    start = _scanner.previousWrapper( end );
+
+                if ( start < 0 )
+                {
+                    throw new IOException( "Cannot walk back past position " + end + " because the record which ends there is damaged." );
+                }
+
+                _scanner.position( start );
+                LogRecordWrapper    wrapper = nextWrapper();
+                end = start;
+
+                if ( (_filter != null) && !_filter.accept( _recordHeader.decode( wrapper ) ) ) { continue; }
+
+                _recordCount++;
+                formatWrapper( ps, wrapper );
+            }
+        }
+
+        /** Cut the given log files into chunks for the parallel workers, starting at -p in the first one */
+        private ArrayList<LogChunk> splitLogFiles( ArrayList<LogFileHeader> headers )  throws Exception
+        {
+            ArrayList<LogChunk> chunks = new ArrayList<LogChunk>();
+
+            for ( int i = 0; i < headers.size(); i++ )
+            {
+                long    startPosition = ((i == 0) && (_startPosition > 0)) ? _startPosition : LogFileHeader.LENGTH;
+
+                chunks.addAll( LogChunk.split( headers.get( i ), startPosition, PARALLEL_CHUNK_SIZE, _decryptionEngine ) );
+            }
+
+            return chunks;
+        }
+
+        /**
+         * <p>
+         * Decode chunks on a pool of worker threads and write their output in
+         * log order. Only a bounded number of chunks are in flight at a time,
+         * so memory use does not grow with the size of the log.
+         * </p>
+         */
+        private void    readChunks( OutputSink ps, ArrayList<LogChunk> chunks )  throws Exception
+        {
+            ForkJoinPool    pool = new ForkJoinPool( _threadCount );
+            ArrayDeque<Future<LogChunk>>    inFlight = new ArrayDeque<Future<LogChunk>>();
+            int     nextChunk = 0;
+
+            LogFileHeader   previousHeader = null;
+            long            previousEndPosition = 0L;
+
+            try {
+                while ( !readEnoughRecords() && (_error == null) )
+                {
+                    while ( (nextChunk < chunks.size()) && (inFlight.size() < 2 * _threadCount) )
+                    {
+                        inFlight.add( pool.submit( newChunkWorker( chunks.get( nextChunk++ ) ) ) );
+                    }
+                    if ( inFlight.isEmpty() ) { break; }
+
+                    LogChunk    chunk;
+                    try {
+                        chunk = inFlight.remove().get();
+                    }
+                    catch (ExecutionException ee)
+                    {
+                        if ( ee.getCause() instanceof Exception ) { throw (Exception) ee.getCause(); }
+                        else { throw ee; }
+                    }
+
+                    if ( chunk.isFirstInFile() )
+                    {
+                        LogFileHeader   header = chunk.getHeader();
+
+                        if ( (previousHeader != null) && _file.isDirectory() ) { checkLogChain( ps, previousHeader, previousEndPosition, header ); }
+                        previousHeader = header;
+                    }
+                    previousEndPosition = chunk.getLastRecordEnd();
+
+                    // only copy as many records as -n still allows
+                    int     recordsWanted = chunk.getRecordCount();
+                    if ( _maxRecordCount != READ_ALL_RECORDS )
+                    {
+                        recordsWanted = (int) Math.min( recordsWanted, _maxRecordCount - _recordCount );
+                    }
+
+                    ps.writeFragment( chunk.getOutput(), chunk.getOutputLength( recordsWanted ) );
+                    _recordCount += recordsWanted;
+
+                    if ( chunk.getError() != null ) { _error = chunk.getError(); }
+                }
+            }
+            finally { pool.shutdownNow(); }
+        }
+
+        private Callable<LogChunk>  newChunkWorker( final LogChunk chunk )  throws Exception
+        {
+            final   LogFile worker = new LogFile( chunk.getHeader().getFile(), _readWholeRecord, _memoryMapped, _salvage, _backward, _outputFormat, 1, 0, _maxRecordCount, _filter, _cipherFactory );
+            final   String[]    enclosingTags = (_checksumVerifier != null) ?
+                new String[] { "logVerification", "checksumFailures" } :
+                new String[] { _file.isDirectory() ? "logDirectory" : "logFile", "logRecords" };
+
+            worker.setOperationCache( _operationCache );
+            worker.setRecordLimit( _recordLimit );
+            worker.setMetrics( _metrics );
+            worker._checksumVerifier = _checksumVerifier;
+
+            return new Callable<LogChunk>()
+            {
+                public  LogChunk    call()  throws Exception
+                {
+                    worker.readChunk( chunk, enclosingTags );
+                    return chunk;
+                }
+            };
+        }
+
+        /**
+         * <p>
+         * Decode one chunk into an in-memory fragment which is formatted as
+         * though it were written inside the enclosing elements.
+         * </p>
+         */
+        private void    readChunk( LogChunk chunk, String... enclosingTags )  throws Exception
+        {
+            _chunk = chunk;
+            _chunkOutput = new ByteArrayOutputStream();
+
+            OutputSink  ps = _outputFormat.newSink( _chunkOutput, enclosingTags );
+            long        lastRecordEnd = chunk.getStartPosition();
+
+            try {
+                openLogFile( _file );
+                try {
+                    seek( chunk.getStartPosition() );
+                    lastRecordEnd = readLogRecords( ps, chunk.getStartPosition(), chunk.getEndPosition() );
+                }
+                finally { closeLogFile(); }
+            }
+            catch (Throwable t) { chunk.setError( t ); }
+
+            ps.flush();
+            // a chunk is a few megabytes, so its record count fits in an int
+            chunk.setOutput( _chunkOutput.toByteArray(), (int) _recordCount, lastRecordEnd );
+        }
+
+        /**
+         * <p>
+         * In salvage mode, make sure that the scanner is on a whole wrapper
+         * before it is decoded. If the wrapper at the given position is
+         * damaged, report the damage and move on to the next whole wrapper.
+         * A zero length only ends the log if no whole wrapper follows it.
+         * Returns the position of the wrapper to read next, or -1 if the rest
+         * of the file is damaged.
+         * </p>
+         */
+        private long    salvage( OutputSink ps, long position )  throws Exception
+        {
+            String  problem = _scanner.checkWrapper();
+            boolean endOfLog = _scanner.atEndOfLog();
+
+            if ( (problem == null) && !endOfLog ) { return position; }
+
+            long    nextPosition = _scanner.findWrapper( position + 1 );
+
+            if ( endOfLog )
+            {
+                if ( nextPosition < 0 ) { return position; }
+
+                problem = "The log appears to end at position " + position + " but whole records follow it.";
+            }
+
+            if ( ps != null ) { formatDamage( ps, problem, position, (nextPosition < 0) ? _scanner.limit() : nextPosition ); }
+
+            if ( nextPosition < 0 ) { return -1; }
+
+            _scanner.position( nextPosition );
+            return nextPosition;
+        }
+
+        private LogRecordWrapper    nextWrapper()   throws Exception
+        {
+            if ( _metrics == null ) { return readWrapper(); }
+
+            long    start = System.nanoTime();
+            LogRecordWrapper    wrapper = readWrapper();
+
+            countWrapper( wrapper, System.nanoTime() - start );
+
+            return wrapper;
+        }
+
+        private LogRecordWrapper    readWrapper()   throws Exception
+        {
+            if ( _pipeline != null ) { return _pipeline.nextWrapper(); }
+
+            return (_scanner != null) ?
+                _scanner.nextWrapper() : _streamWrapper.read( _dais, _decryptionEngine );
+        }
+
+        /** Record the reading of a wrapper, unless it is the end of the log */
+        private void    countWrapper( LogRecordWrapper wrapper, long nanos )
+        {
+            if ( (wrapper == null) || (wrapper.getLogRecordLengthForward() <= 0) ) { return; }
+
+            _metrics.record( Metrics.READ, nanos );
+            _metrics.countRecord( wrapper.getWrapperLength() );
+        }
+
+        private boolean readEnoughRecords()
+        {
+            return (_maxRecordCount != READ_ALL_RECORDS) && (_recordCount >= _maxRecordCount);
+        }
+
+        /**
+         * <p>
+         * Verify that a log file picks up exactly where its predecessor left off.
+         * </p>
+         */
+        private void    checkLogChain( OutputSink ps, LogFileHeader previousHeader, long previousEndPosition, LogFileHeader header )
+            throws Exception
+        {
+            long    expectedLogFileNumber = previousHeader.getLogFileNumber() + 1;
+            long    expectedEndInstant = makeLogInstant( previousHeader.getLogFileNumber(), previousEndPosition );
+            String  problem = null;
+
+            if ( !header.isValid() )
+            {
+                problem = header.getFile().getName() + " does not start with a log file header.";
+            }
+            else if ( header.getLogFileNumber() != expectedLogFileNumber )
+            {
+                problem = header.getFile().getName() + " has log file number " + header.getLogFileNumber() +
+                    " but the log file following " + previousHeader.getFile().getName() + " should have log file number " + expectedLogFileNumber + ".";
+            }
+            else if ( header.getPreviousLogRecordEndInstant() != expectedEndInstant )
+            {
+                problem = header.getFile().getName() + " does not start where the last record of " +
+                    previousHeader.getFile().getName() + " ends.";
+            }
+
+            if ( problem == null ) { return; }
+
+            ps.beginTag( "chainBreak" );
+            {
+                createTextElement( ps, "message", problem );
+                formatLogCounter( ps, expectedEndInstant, "expectedInstant" );
+                formatLogCounter( ps, header.getPreviousLogRecordEndInstant(), "previousLogRecordEndInstant" );
+            }
+            ps.endTag();   // chainBreak
+        }
+
+        private void    formatDamage( OutputSink ps, String problem, long startPosition, long endPosition )  throws Exception
+        {
+            ps.beginTag( "damage" );
+            {
+                createTextElement( ps, "message", problem );
+                createLongElement( ps, "startPosition", startPosition );
+                createLongElement( ps, "endPosition", endPosition );
+                createLongElement( ps, "skippedBytes", endPosition - startPosition );
+            }
+            ps.endTag();   // damage
+        }
+
+        private void formatError( OutputSink ps ) throws Exception
+        {
+            StringWriter    sw = new StringWriter();
+            PrintWriter     pw = new PrintWriter( sw );
+
+            _error.printStackTrace( pw );
+            pw.flush();
+
+            createTextElement( ps, "message", _error.getClass().getName() + ": " + _error.getMessage() );
+            createTextElement( ps, "stackTrace", sw.toString() );
+        }
+
+        private void    formatFileHeader( OutputSink ps, LogFileHeader header )  throws Exception
+        {
+            createIntElement( ps, "formatableID", header.getFormatableID() );
+            createIntElement( ps, "obsoleteVersion", header.getObsoleteVersion() );
+            createLongElement( ps, "logFileNumber", header.getLogFileNumber() );
+            formatLogCounter( ps, header.getPreviousLogRecordEndInstant(), "previousLogRecordEndInstant" );
+        }
+
+        private void    formatWrapper( OutputSink ps, LogRecordWrapper recordWrapper )   throws Exception
+        {
+            if ( _metrics == null ) { writeWrapper( ps, recordWrapper ); }
+            else
+            {
+                // booting the decoding environment is a one-time cost, not the first record's
+                if ( _readWholeRecord && (_operationReader == null) ) { DecodeContext.boot(); }
+
+                long    start = System.nanoTime();
+                long    startSize = ps.size();
+
+                _decodeNanos = 0L;
+                writeWrapper( ps, recordWrapper );
+
+                _metrics.record( Metrics.FORMAT, System.nanoTime() - start - _decodeNanos );
+                _metrics.countOutput( ps.size() - startSize );
+            }
+        }
+
+        private void    writeWrapper( OutputSink ps, LogRecordWrapper recordWrapper )   throws Exception
+        {
+            ps.beginTag( "wrapper" );
+            {
+                createIntElement( ps, "forwardLength", recordWrapper.getLogRecordLengthForward());
+                formatLogCounter( ps, recordWrapper.getLogInstant(), "logInstant" );
+                formatLogRecord( ps, recordWrapper );
+                createIntElement( ps, "backwardLength", recordWrapper.getLogRecordLengthBackward() );
+            }
+            ps.endTag();   // wrapper
+        }
+        
+        private void    formatTransaction( OutputSink ps, int slot )   throws Exception
+        {
+            TransactionReport   report = _transactionReport;
+
+            ps.beginTag( "transaction" );
+            {
+                createLongElement( ps, "transactionID", report.getTransactionID( slot ) );
+                createTextElement( ps, "outcome", report.getOutcome( slot ) );
+                createIntElement( ps, "recordCount", report.getRecordCount( slot ) );
+                createLongElement( ps, "byteCount", report.getByteCount( slot ) );
+                formatLogCounter( ps, report.getFirstInstant( slot ), "firstInstant" );
+                formatLogCounter( ps, report.getLastInstant( slot ), "lastInstant" );
+
+                ps.beginTag( "operations" );
+                {
+                    for ( int i = 0; i < report.getOperationTypeCount( slot ); i++ )
+                    {
+                        createIntElement( ps, operationTag( report.getOperationFormatID( slot, i ) ), report.getOperationCount( slot, i ) );
+                    }
+                }
+                ps.endTag();   // operations
+            }
+            ps.endTag();   // transaction
+        }
+
+        /** The unqualified name of the class registered for an operation's formatable id */
+        private String  operationTag( int formatableID )
+        {
+            String      className = null;
+            try {className = RegisteredFormatIds.TwoByte[ formatableID ];} catch (Exception e) {}
+
+            if ( className == null ) { return "formatableID" + formatableID; }
+
+            return className.substring( className.lastIndexOf( '.' ) + 1 );
+        }
+
+        private void formatLogRecord( OutputSink ps, LogRecordWrapper recordWrapper )   throws Exception
+        {
+            ps.beginTag( "logRecord" );
+            {
+                if ( recordWrapper.getLogRecordLengthForward() > 0 )
+                {
+                    LogRecordHeader header = _recordHeader.decode( recordWrapper );
+
+                    createIntElement( ps, "formatableID", header.getFormatableID() );
+                    formatLogGroups( ps, header.getGroups() );
+                    formatTransactionID( ps, header.getTransactionID() );
+                    formatOperation( ps, recordWrapper, header );
+                }
+            }
+            ps.endTag();   // logRecord
+        }
+
+        private void formatOperation( OutputSink ps, LogRecordWrapper recordWrapper, LogRecordHeader header )
+            throws Exception
+        {
+            if ( recordWrapper.isTruncated() ) { formatTruncatedOperation( ps, recordWrapper, header ); }
+            else if ( _readWholeRecord ) { formatWholeOperation( ps, recordWrapper, header ); }
+            else { formatOperationHeader( ps, header ); }
+        }
+
+        // for verbose printout
+        private void formatWholeOperation( OutputSink ps, LogRecordWrapper recordWrapper, LogRecordHeader header )
+            throws Exception
+        {
+            // the operation runs from its formatable id to the end of the record
+            int     operationOffset = recordWrapper._recordOffset + header.getOperationOffset();
+            int     operationLength = recordWrapper._recordLength - header.getOperationOffset();
+
+            long    start = (_metrics == null) ? 0L : System.nanoTime();
+
+            OperationCache.Rendering    rendering = (_operationCache == null) ?
+                null : _operationCache.get( recordWrapper._recordBuffer, operationOffset, operationLength );
+
+            if ( rendering == null )
+            {
+                Object      operation = decodeOperation( recordWrapper, header );
+                String      operationName = (operation == null) ? "NULL" : operation.getClass().getName();
+                String      details = null;
+                boolean     hasDetails = false;
+                try {details = operation.toString(); hasDetails = true;} catch (Exception e) {}
+
+                // the details of a huge operation are cut short rather than written out in full
+                int         detailsLength = (details == null) ? 0 : details.length();
+                if ( detailsLength > _recordLimit ) { details = details.substring( 0, _recordLimit ); }
+
+                rendering = new OperationCache.Rendering( operationName, details, detailsLength, hasDetails );
+
+                if ( _operationCache != null ) { _operationCache.put( recordWrapper._recordBuffer, operationOffset, operationLength, rendering ); }
+            }
+
+            if ( _metrics != null )
+            {
+                _decodeNanos = System.nanoTime() - start;
+                _metrics.recordOperation( rendering.getType(), _decodeNanos );
+            }
+
+            ps.beginTag( "operation", "type", rendering.getType() );
+            {
+            	if ( rendering.hasDetails() ) { createTextElement( ps, "details", rendering.getDetails() ); }
+                if ( rendering.isCut() ) { createIntElement( ps, "detailsLength", rendering.getDetailsLength() ); }
+            }
+            ps.endTag();   // operation
+        }
+
+        /**
+         * <p>
+         * A record which is longer than the record limit is only partly in
+         * memory, so its operation is not deserialized, even in verbose mode.
+         * It is printed with its full length and the first bytes of it in hex.
+         * </p>
+         */
+        private void formatTruncatedOperation( OutputSink ps, LogRecordWrapper recordWrapper, LogRecordHeader header )
+            throws Exception
+        {
+            String      operationName = null;
+            try {operationName = RegisteredFormatIds.TwoByte[ header.getOperationFormatID() ];} catch (Exception e) {}
+
+            int     operationOffset = recordWrapper._recordOffset + header.getOperationOffset();
+            int     previewLength = Math.max( 0, Math.min( PREVIEW_LENGTH, recordWrapper._recordLength - header.getOperationOffset() ) );
+
+            ps.beginTag( "operation", "type", String.valueOf( operationName ) );
+            {
+                createIntElement( ps, "operationLength", recordWrapper.getLogRecordLengthForward() - header.getOperationOffset() );
+                createTextElement( ps, "preview", hexPreview( recordWrapper._recordBuffer, operationOffset, previewLength ) );
+            }
+            ps.endTag();   // operation
+        }
+
+        private static  String  hexPreview( ByteBuffer buffer, int offset, int length )
+        {
+            StringBuilder   buffy = new StringBuilder( 2 * length );
+
+            for ( int i = 0; i < length; i++ )
+            {
+                int     b = buffer.get( offset + i ) & 0xFF;
+
+                buffy.append( Character.forDigit( b >>> 4, 16 ) ).append( Character.forDigit( b & 0xF, 16 ) );
+            }
+
+            return buffy.toString();
+        }
+
+        /** Deserialize the operation of a record, or return null if it cannot be deserialized */
+        private Object  decodeOperation( LogRecordWrapper recordWrapper, LogRecordHeader header )
+            throws Exception
+        {
+            ByteBuffer  operationBytes = recordWrapper.getLogRecord();
+            operationBytes.position( header.getOperationOffset() );
+
+            // the decoding environment is only set up once an operation actually needs it
+            if ( _operationReader == null )
+            {
+                DecodeContext.boot();
+                _operationBytes = new ByteBufferInputStream( operationBytes );
+                _operationReader = new FormatIdInputStream( new DataInputStream( _operationBytes ) );
+            }
+            else { _operationBytes.setBuffer( operationBytes ); }
+
+            Object                  operation = null;
+            try {operation = _operationReader.readObject();} catch (Exception e) {}
+
+            return operation;
+        }
+
+        // for short printout
+        private void formatOperationHeader( OutputSink ps, LogRecordHeader header )
+            throws Exception
+        {
+            String      operationName = null;
+            try {operationName = RegisteredFormatIds.TwoByte[ header.getOperationFormatID() ];} catch (Exception e) {}
+
+            ps.writeEmptyTag( "operation", "type", String.valueOf( operationName ) );
+        }
+        
+        private void formatTransactionID( OutputSink ps, long transactionID )
+            throws Exception
+        {
+            String    transactionNumber = (transactionID == LogRecordHeader.NULL_TRANSACTION_ID) ?
+                "NULL" : Long.toString( transactionID );
+
+            ps.writeEmptyTag( "transactionID", "value", transactionNumber );
+        }
+        private void formatLogGroups( OutputSink ps, int groups ) throws Exception
+        {
+            ps.beginTag( "groups", "hexvalue", Integer.toHexString( groups ) );
+            {
+                for ( int i = 0; i < RecordFilter.GROUP_FLAGS.length; i++ )
+                {
+                    if ( (groups & RecordFilter.GROUP_FLAGS[ i ]) != 0 )
+                    {
+                        createTextElement( ps, "flag", RecordFilter.GROUP_NAMES[ i ] );
+                    }
+                }
+            }
+            ps.endTag();   // groups
+        }
+
+        
+        private void formatLogCounter( OutputSink ps, long logCounter, String tag )
+            throws Exception
+        {
+            ps.beginTag( tag );
+            {
+                long    logFileNumber = logCounter >>> 32;
+                createLongElement( ps, "logFileNumber", logFileNumber );
+
+                long    position = logCounter & 0xFFFFFFFFL;
+                createLongElement( ps, "position", position );
+            }
+            ps.endTag();
+        }
+        private void createLongElement( OutputSink ps, String tag, long value )
+            throws Exception
+        {
+            ps.writeTextElement( tag, value );
+        }
+        private void createIntElement( OutputSink ps, String tag, int value )
+            throws Exception
+        {
+            ps.writeTextElement( tag, value );
+        }
+        private void    createTextElement( OutputSink ps, String tag, String text )
+            throws Exception
+        {
+            ps.writeTextElement( tag, text );
+        }
+
+    }
+    
+    /**
+     * <p>
+     * A decoded log record, as handed out by LogFile.records(). Unlike the
+     * wrappers and headers which the reader recycles, a LogRecord belongs to
+     * whoever receives it.
+     * </p>
+     */
+    public  static  final   class   LogRecord
+    {
+        private long    _position;
+        private long    _logInstant;
+        private int     _forwardLength;
+        private int     _backwardLength;
+        private long    _wrapperLength;
+        private int     _formatableID;
+        private int     _groups;
+        private long    _transactionID;
+        private int     _operationFormatID;
+        private boolean _truncated;
+        private Object  _operation;
+
+        public  LogRecord( long position, LogRecordWrapper wrapper, LogRecordHeader header, Object operation )
+        {
+            _position = position;
+            _logInstant = wrapper.getLogInstant();
+            _forwardLength = wrapper.getLogRecordLengthForward();
+            _backwardLength = wrapper.getLogRecordLengthBackward();
+            _wrapperLength = wrapper.getWrapperLength();
+            _formatableID = header.getFormatableID();
+            _groups = header.getGroups();
+            _transactionID = header.getTransactionID();
+            _operationFormatID = header.getOperationFormatID();
+            _truncated = wrapper.isTruncated();
+            _operation = operation;
+        }
+
+        /** Get the offset of the record's wrapper in its log file */
+        public  long    getPosition() { return _position; }
+        public  long    getLogInstant() { return _logInstant; }
+        public  long    getLogFileNumber() { return _logInstant >>> 32; }
+        public  int getForwardLength() { return _forwardLength; }
+        public  int getBackwardLength() { return _backwardLength; }
+        public  long    getWrapperLength() { return _wrapperLength; }
+        public  int getFormatableID() { return _formatableID; }
+        public  int getGroups() { return _groups; }
+        public  boolean hasGroup( int flag ) { return (_groups & flag) != 0; }
+
+        /** Get the id of the transaction which wrote the record, or LogRecordHeader.NULL_TRANSACTION_ID */
+        public  long    getTransactionID() { return _transactionID; }
+        public  int getOperationFormatID() { return _operationFormatID; }
+
+        /** Get the name of the class registered for the operation's formatable id, or null if there is none */
+        public  String  getOperationType()
+        {
+            try {
+                return RegisteredFormatIds.TwoByte[ _operationFormatID ];
+            }
+            catch (Exception e) { return null; }
+        }
+
+        /** True if the record was longer than the LogFile's record limit (-z), in which case its operation is not deserialized */
+        public  boolean isTruncated() { return _truncated; }
+
+        /** Get the deserialized operation if the LogFile reads whole records (-v) and it could be deserialized, otherwise null */
+        public  Object  getOperation() { return _operation; }
+    }
+
+    /**
+     * <p>
+     * Pulls the records of a LogFile one at a time. Nothing is read until a
+     * record is asked for, so a consumer which falls behind simply slows the
+     * reading down. The log files are opened one after the other as the
+     * iteration reaches them, and closed when it leaves them, when it ends,
+     * or when it is closed. Reading problems surface as unchecked exceptions,
+     * because Iterator does not allow checked ones.
+     * </p>
+     */
+    public  static  final   class   LogRecordIterator   implements  Iterator<LogRecord>, Closeable
+    {
+        // constructor args
+        private LogFile         _logFile;
+        private ArrayList<File> _files;
+
+        // the next log file to open
+        private int     _nextFile;
+        private boolean _fileOpen;
+        private boolean _closed;
+
+        // the record which hasNext() read ahead
+        private LogRecord   _next;
+
+        public  LogRecordIterator( LogFile logFile, ArrayList<File> files )
+        {
+            _logFile = logFile;
+            _files = files;
+        }
+
+        public  boolean hasNext()
+        {
+            if ( (_next == null) && !_closed )
+            {
+                try {
+                    _next = pull();
+                }
+                catch (Exception e)
+                {
+                    close();
+                    throw unchecked( e );
+                }
+
+                if ( _next == null ) { close(); }
+            }
+
+            return (_next != null);
+        }
+
+        public  LogRecord   next()
+        {
+            if ( !hasNext() ) { throw new NoSuchElementException(); }
+
+            LogRecord   record = _next;
+            _next = null;
+
+            return record;
+        }
+
+        public  void    remove() { throw new UnsupportedOperationException(); }
+
+        /** Stop iterating and let go of the current log file, and of the archive if the log is in one */
+        public  void    close()
+        {
+            _closed = true;
+
+            try {
+                if ( !_fileOpen ) { return; }
+
+                _fileOpen = false;
+                try {
+                    _logFile.stopReading();
+                }
+                finally { _logFile.closeLogFile(); }
+            }
+            catch (Exception e) { throw unchecked( e ); }
+            finally
+            {
+                try {
+                    _logFile.closeArchive();
+                }
+                catch (IOException ioe) { throw unchecked( ioe ); }
+            }
+        }
+
+        /**
+         * <p>
+         * Get the wrapper of the next record rather than a LogRecord, so that
+         * nothing is decoded or allocated for it. The wrapper is recycled by the
+         * next call. Returns null at the end of the iteration, but does not close
+         * it. Because it cannot be mixed with hasNext() and next(), this is only
+         * for the reader's own walks, such as -d, and not for library callers.
+         * </p>
+         */
+        LogRecordWrapper    nextWrapper()   throws Exception
+        {
+            while ( true )
+            {
+                if ( !_fileOpen )
+                {
+                    if ( (_nextFile >= _files.size()) || _logFile.readEnoughRecords() ) { return null; }
+
+                    long    startPosition = ((_nextFile == 0) && (_logFile._startPosition > 0)) ? _logFile._startPosition : LogFileHeader.LENGTH;
+
+                    _logFile.openLogFile( _files.get( _nextFile++ ) );
+                    _fileOpen = true;
+                    _logFile.seek( startPosition );
+                    _logFile.startReading( startPosition );
+                }
+
+                LogRecordWrapper    wrapper = _logFile.pullRecord( null, Long.MAX_VALUE );
+
+                if ( wrapper != null ) { return wrapper; }
+
+                _fileOpen = false;
+                _logFile.stopReading();
+                _logFile.closeLogFile();
+            }
+        }
+
+        private LogRecord   pull()  throws Exception
+        {
+            LogRecordWrapper    wrapper = nextWrapper();
+
+            return (wrapper == null) ? null : _logFile.newLogRecord( wrapper );
+        }
+
+        private static  RuntimeException    unchecked( Exception e )
+        {
+            if ( e instanceof RuntimeException ) { return (RuntimeException) e; }
+            else if ( e instanceof IOException ) { return new UncheckedIOException( (IOException) e ); }
+            else { return new IllegalStateException( e ); }
+        }
+    }
+
+    /**
+     * <p>
+     * A log record together with the lengths and instant which surround it in
+     * the log file. A wrapper can be refilled by the read() methods, so that a
+     * scan which decodes millions of records reuses one wrapper, and one
+     * buffer for the records which have to be copied, instead of allocating
+     * them all over again for every record.
+     * </p>
+     */
+    public  static  final   class   LogRecordWrapper
+    {
+        private int     _logRecordLengthForward;
+        private long    _logInstant;
+        private int     _logRecordLengthBackward;
+
+        // the record is _recordLength bytes at offset _recordOffset of _recordBuffer, or there is no record if _recordBuffer is null
+        private ByteBuffer  _recordBuffer;
+        private int     _recordOffset;
+        private int     _recordLength;
+
+        // total number of bytes occupied by the wrapper in the log file
+        private long    _wrapperLength;
+
+        // records which are read from a stream or decrypted are copied here. grows as needed
+        private byte[]  _copy = new byte[ 0 ];
+        private ByteBuffer  _copyBuffer = ByteBuffer.wrap( _copy );
+
+        // only the first _recordLimit bytes of a longer record are kept. the rest is skipped
+        private int     _recordLimit = Integer.MAX_VALUE;
+        private boolean _truncated;
+        
+        public  int getLogRecordLengthForward() { return _logRecordLengthForward; }
+        public  long    getLogInstant() { return _logInstant; }
+        private int     getLogRecordLengthBackward() { return _logRecordLengthBackward; }
+        public  long    getWrapperLength() { return _wrapperLength; }
+
+        /** True if the record was longer than the record limit, so that getLogRecord() only holds its first bytes */
+        public  boolean isTruncated() { return _truncated; }
+
+        public  int getRecordLimit() { return _recordLimit; }
+
+        /**
+         * <p>
+         * Keep at most limit bytes of each record which is read from now on, so
+         * that the memory held by this wrapper does not depend on how long the
+         * records in the log are. The wrapper lengths are not affected.
+         * </p>
+         */
+        public  LogRecordWrapper    setRecordLimit( int limit )
+        {
+            _recordLimit = limit;
+            return this;
+        }
+
+        /** Get the log record as a buffer of its own, positioned at its first byte, or null if there is no record */
+        public  ByteBuffer  getLogRecord()
+        {
+            if ( _recordBuffer == null ) { return null; }
+
+            ByteBuffer  record = _recordBuffer.duplicate();
+            record.limit( _recordOffset + _recordLength );
+            record.position( _recordOffset );
+
+            return record.slice();
+        }
+
+        /** An empty wrapper, to be filled by read() */
+        public  LogRecordWrapper() {}
+
+        public  LogRecordWrapper( DataInputStream dais, boolean readWholeRecord, CipherProvider decryptionEngine )    throws Exception
+        {
+            read( dais, decryptionEngine );
+        }
+
+        /**
+         * <p>
+         * Decode a wrapper in place from a buffer positioned at its forward length.
+         * The log record is a view of the buffer rather than a copy, unless it has
+         * to be decrypted. On return, the buffer is positioned after the wrapper.
+         * </p>
+         */
+        public  LogRecordWrapper( ByteBuffer buffer, CipherProvider decryptionEngine )    throws Exception
+        {
+            read( buffer, decryptionEngine );
+        }
+
+        /**
+         * <p>
+         * Refill this wrapper from a stream positioned at a forward length. The
+         * record is read into this wrapper's buffer, replacing the previous one.
+         * </p>
+         */
+        public  LogRecordWrapper    read( DataInputStream dais, CipherProvider decryptionEngine )    throws Exception
+        {
+            clear();
+
+            try {
+                _logRecordLengthForward = dais.readInt();
+            } catch (EOFException eof) { return this; }
+
+            if ( _logRecordLengthForward == 0 ) { return this; }
+
+            _logInstant = dais.readLong();
+            readRecord( dais, decryptionEngine );
+            try {_logRecordLengthBackward = dais.readInt();} catch (Exception e) {}
+            
+
+            if ( _logRecordLengthForward != _logRecordLengthBackward )
+            {
+                //throw new IOException
+                   // ( "Not positioned on a legal log entry. Forward length " + _logRecordLengthForward + " differs from backward length " + _logRecordLengthBackward );
+            }
+
+            return this;
+        }
+
+        /**
+         * <p>
+         * Refill this wrapper from a buffer positioned at a forward length, as the
+         * ByteBuffer constructor does. The record stays valid until the buffer
+         * is overwritten or this wrapper is refilled.
+         * </p>
+         */
+        public  LogRecordWrapper    read( ByteBuffer buffer, CipherProvider decryptionEngine )    throws Exception
+        {
+            clear();
+
+            if ( buffer.remaining() < 4 ) { return this; }
+
+            _logRecordLengthForward = buffer.getInt();
+
+            if ( _logRecordLengthForward <= 0 ) { return this; }
+            if ( buffer.remaining() < 8 ) { throw new EOFException(); }
+
+            _logInstant = buffer.getLong();
+
+            int     padding = padding( decryptionEngine, _logRecordLengthForward );
+
+            // the forward length may be garbage near Integer.MAX_VALUE, so add the padding to it as a long
+            long    storedLength = (long) _logRecordLengthForward + padding;
+            _wrapperLength = 4 + 8 + storedLength + 4;
+
+            // a torn record is handed out truncated, just like the stream reader does
+            int     bufferedLength = (int) Math.min( storedLength, buffer.remaining() );
+            int     keptLength = keptLength( decryptionEngine, padding );
+
+            if ( decryptionEngine == null )
+            {
+                _recordBuffer = buffer;
+                _recordOffset = buffer.position();
+                _recordLength = Math.min( bufferedLength, keptLength );
+            }
+            else
+            {
+                byte[]  cipherText = copyBuffer( keptLength );
+                int     copiedLength = Math.min( bufferedLength, keptLength );
+
+                buffer.duplicate().get( cipherText, 0, copiedLength );
+                Arrays.fill( cipherText, copiedLength, keptLength, (byte) 0 );
+                decrypt( decryptionEngine, padding, keptLength - padding );
+            }
+            trim();
+            buffer.position( buffer.position() + bufferedLength );
+
+            if ( buffer.remaining() >= 4 ) { _logRecordLengthBackward = buffer.getInt(); }
+
+            return this;
+        }
+
+        private void    clear()
+        {
+            _logRecordLengthForward = 0;
+            _logInstant = 0L;
+            _logRecordLengthBackward = 0;
+            _recordBuffer = null;
+            _recordOffset = 0;
+            _recordLength = 0;
+            _wrapperLength = 0;
+            _truncated = false;
+        }
+
+        private void readRecord( DataInputStream dais, CipherProvider decryptionEngine  )
+            throws Exception
+        {
+            int realLength = _logRecordLengthForward;
+            int padding = padding( decryptionEngine, realLength );
+
+            int encryptedLength = realLength + padding;
+            encryptedLength = encryptedLength > 0 ? encryptedLength : 0;
+            _wrapperLength = 4 + 8 + Math.max( 0L, (long) realLength + padding ) + 4;
+
+            int     keptLength = Math.max( 0, Math.min( encryptedLength, keptLength( decryptionEngine, padding ) ) );
+            byte[]  record = copyBuffer( keptLength );
+            int     count = 0;
+            
+            // a torn record is padded with zeros rather than with the tail of the previous record
+            try {
+                while ( count < keptLength )
+                {
+                    int     bytesRead = dais.read( record, count, keptLength - count );
+                    if ( bytesRead < 0 ) { break; }
+                    count += bytesRead;
+                }
+                if ( count == keptLength ) { skipFully( dais, encryptedLength - keptLength ); }
+            } catch (Exception e) {}
+            Arrays.fill( record, count, keptLength, (byte) 0 );
+
+            if ( decryptionEngine == null )
+            {
+                _recordBuffer = _copyBuffer;
+                _recordOffset = 0;
+                _recordLength = keptLength;
+            }
+            else { decrypt( decryptionEngine, padding, Math.max( 0, keptLength - padding ) ); }
+            trim();
+        }
+
+        /**
+         * <p>
+         * The number of stored bytes to keep of a record which is no longer than
+         * the limit, or which is cut down to it. An encrypted record keeps its
+         * padding and whole cipher blocks, so that the part which is kept still
+         * decrypts.
+         * </p>
+         */
+        private int keptLength( CipherProvider decryptionEngine, int padding )
+        {
+            long    storedLength = (long) _logRecordLengthForward + padding;
+
+            if ( _logRecordLengthForward <= _recordLimit ) { return (int) Math.min( storedLength, MAX_ARRAY_LENGTH ); }
+            if ( decryptionEngine == null ) { return _recordLimit; }
+
+            int blockSize = decryptionEngine.getEncryptionBlockSize();
+            long    keptBlocks = ((long) padding + _recordLimit + blockSize - 1) / blockSize;
+
+            return (int) Math.min( Math.min( storedLength, keptBlocks * blockSize ), MAX_ARRAY_LENGTH );
+        }
+
+        /** Hand out no more than the limit of a record which is longer than it */
+        private void    trim()
+        {
+            if ( _logRecordLengthForward > _recordLimit )
+            {
+                _truncated = true;
+                _recordLength = Math.min( _recordLength, _recordLimit );
+            }
+        }
+
+        /** Skip the part of a record which is not kept. Stops quietly at the end of the stream */
+        private static  void    skipFully( DataInputStream dais, int length )   throws IOException
+        {
+            byte[]  scratch = null;
+
+            while ( length > 0 )
+            {
+                int     skipped = (int) dais.skip( length );
+
+                if ( skipped <= 0 )
+                {
+                    // not every stream can skip, e.g. an archive entry which is being decompressed
+                    if ( scratch == null ) { scratch = new byte[ Math.min( length, 8192 ) ]; }
+
+                    skipped = dais.read( scratch, 0, Math.min( length, scratch.length ) );
+                    if ( skipped < 0 ) { return; }
+                }
+                length -= skipped;
+            }
+        }
+
+        /** Decrypt the copied record in place. The padding comes first, so the clear text starts after it */
+        private void    decrypt( CipherProvider decryptionEngine, int padding, int realLength )
+            throws Exception
+        {
+            int     encryptedLength = padding + realLength;
+
+            decryptionEngine.decrypt( _copy, 0, encryptedLength, _copy, 0 );
+
+            _recordBuffer = _copyBuffer;
+            _recordOffset = padding;
+            _recordLength = realLength;
+        }
+
+        /** Get the copy buffer, grown to hold at least length bytes */
+        private byte[]  copyBuffer( int length )
+        {
+            if ( _copy.length < length )
+            {
+                _copy = new byte[ Math.max( length, 2 * _copy.length ) ];
+                _copyBuffer = ByteBuffer.wrap( _copy );
+            }
+
+            return _copy;
+        }
+
+        /** The number of bytes which pad an encrypted record out to a whole number of cipher blocks */
+        private static  int padding( CipherProvider decryptionEngine, int realLength )
+        {
+            if ( decryptionEngine == null ) { return 0; }
+
+            int tail = realLength % decryptionEngine.getEncryptionBlockSize();
+
+            return (tail == 0) ? 0 : (decryptionEngine.getEncryptionBlockSize() - tail);
+        }
+
+    }
+
+    /**
+     * <p>
+     * The fixed-length header at the start of every log file.
+     * </p>
+     */
+    public  static  final   class   LogFileHeader
+    {
+        // formatable id + obsolete version + log file number + previous log record end instant
+        public  static  final   int LENGTH = 24;
+
+        private File    _file;
+        private int     _formatableID;
+        private int     _obsoleteVersion;
+        private long    _logFileNumber;
+        private long    _previousLogRecordEndInstant;
+
+        /**
+         * <p>
+         * Read the header of a log file. A file which is too short to hold
+         * a header is not an error, but its header is not valid.
+         * </p>
+         */
+        public  LogFileHeader( File file )  throws IOException
+        {
+            _file = file;
+
+            DataInputStream dais = new DataInputStream( new FileInputStream( file ) );
+            try {
+                readHeader( dais );
+            }
+            catch (EOFException eof) { _formatableID = 0; }
+            finally { dais.close(); }
+        }
+
+        /**
+         * <p>
+         * Read the header from a stream positioned at the start of the log file.
+         * </p>
+         */
+        public  LogFileHeader( File file, DataInput in )  throws IOException
+        {
+            _file = file;
+            readHeader( in );
+        }
+
+        private void    readHeader( DataInput in )  throws IOException
+        {
+            _formatableID = in.readInt();
+            _obsoleteVersion = in.readInt();
+            _logFileNumber = in.readLong();
+            _previousLogRecordEndInstant = in.readLong();
+        }
+
+        public  File    getFile() { return _file; }
+        public  int getFormatableID() { return _formatableID; }
+        public  int getObsoleteVersion() { return _obsoleteVersion; }
+        public  long    getLogFileNumber() { return _logFileNumber; }
+        public  long    getPreviousLogRecordEndInstant() { return _previousLogRecordEndInstant; }
+
+        public  boolean isValid() { return (_formatableID == StoredFormatIds.FILE_STREAM_LOG_FILE); }
+    }
+
+    /**
+     * <p>
+     * The environment which the formatable machinery needs in order to
+     * deserialize logged operations. FormatIdInputStream.readObject() only
+     * needs a running Monitor to map format ids to classes, plus the
+     * transaction map factory which the transaction table inside a checkpoint
+     * asks the XactFactory for. So that is all we boot: no JDBC driver and no
+     * database. The Monitor is started the first time an operation is
+     * deserialized, so runs which never get that far do not pay for it, and
+     * it is then shared by every LogFile and worker thread in the JVM.
+     * </p>
+     */
+    public  static  final   class   DecodeContext
+    {
+        private static  boolean _booted;
+
+        public  static  synchronized    void    boot()  throws Exception
+        {
+            if ( _booted ) { return; }
+
+            //
+            // Redirect error log to the bit bucket so that we don't trample derby.log.
+            //
+            System.setProperty( "derby.stream.error.field", LogFileReader.class.getName() + ".devNull" );
+
+            // someone else in this JVM may already be running Derby
+            if ( Monitor.getMonitor() == null )
+            {
+                try {
+                    Monitor.startMonitor( new Properties(), new PrintWriter( devNull ) );
+                }
+                catch (LinkageError le)
+                {
+                    // an engine which cannot start a bare Monitor gets the whole embedded driver
+                    Class.forName(  "org.apache.derby.jdbc.EmbeddedDriver" );
+                    DriverManager.getConnection( "jdbc:derby:memory:db;create=true" );
+                }
+            }
+
+            // constructing (not booting) an XactFactory installs its static TransactionMapFactory
+            new XactFactory();
+
+            _booted = true;
+        }
+    }
+
+    /**
+     * <p>
+     * Remembers how recently deserialized operations were printed, so that
+     * an operation whose bytes have been seen before is printed without being
+     * deserialized and rendered all over again. Bulk loads log long runs of
+     * identical operations. An operation is known by its bytes, from its
+     * formatable id to the end of the record, which also covers the optional
+     * data logged after it. Operations are looked up by a 64-bit digest of
+     * those bytes and then compared in full, so a digest collision can never
+     * print the wrong operation.
+     * </p>
+     *
+     * <p>
+     * Once the cache holds capacity operations, the least recently used one is
+     * evicted. Operations longer than MAX_OPERATION_LENGTH are not cached, which
+     * bounds the memory the cache can hold. The workers of a parallel read
+     * share one cache, so it is synchronized.
+     * </p>
+     */
+    public  static  final   class   OperationCache
+    {
+        // longer operations rarely repeat and would crowd out the short ones
+        public  static  final   int MAX_OPERATION_LENGTH = 4096;
+
+        private int     _capacity;
+
+        // in least recently used order
+        private LinkedHashMap<Key,Rendering>    _entries = new LinkedHashMap<Key,Rendering>( 16, 0.75f, true );
+
+        // reused to look up operations without copying them
+        private Key     _probe = new Key();
+
+        private long    _hits;
+        private long    _misses;
+        private long    _evictions;
+        private long    _tooLong;
+
+        public  OperationCache( int capacity ) { _capacity = capacity; }
+
+        /** Get how the operation of length bytes at offset was printed, or null if it is not in the cache */
+        public  synchronized    Rendering   get( ByteBuffer buffer, int offset, int length )
+        {
+            if ( length > MAX_OPERATION_LENGTH )
+            {
+                _tooLong++;
+                return null;
+            }
+
+            _probe.point( buffer, offset, length );
+            Rendering   rendering = _entries.get( _probe );
+            _probe.point( null, 0, 0 );
+
+            if ( rendering == null ) { _misses++; }
+            else { _hits++; }
+
+            return rendering;
+        }
+
+        /** Remember how the operation of length bytes at offset was printed */
+        public  synchronized    void    put( ByteBuffer buffer, int offset, int length, Rendering rendering )
+        {
+            if ( length > MAX_OPERATION_LENGTH ) { return; }
+
+            _entries.put( new Key( buffer, offset, length ), rendering );
+
+            if ( _entries.size() > _capacity )
+            {
+                Iterator<Key>   eldest = _entries.keySet().iterator();
+
+                eldest.next();
+                eldest.remove();
+                _evictions++;
+            }
+        }
+
+        public  synchronized    long    getHits() { return _hits; }
+        public  synchronized    long    getMisses() { return _misses; }
+        public  synchronized    long    getEvictions() { return _evictions; }
+
+        public  synchronized    String  toString()
+        {
+            return "Operation cache: " + _hits + " hits, " + _misses + " misses, " + _evictions + " evictions, " +
+                _tooLong + " operations too long to cache, " + _entries.size() + " of " + _capacity + " entries in use.";
+        }
+
+        /** The type and details which an operation was printed with */
+        public  static  final   class   Rendering
+        {
+            private String  _type;
+            private String  _details;
+            private int     _detailsLength;
+            private boolean _hasDetails;
+
+            public  Rendering( String type, String details, boolean hasDetails )
+            {
+                this( type, details, (details == null) ? 0 : details.length(), hasDetails );
+            }
+
+            /** A rendering whose details were cut short if they are shorter than detailsLength */
+            public  Rendering( String type, String details, int detailsLength, boolean hasDetails )
+            {
+                _type = type;
+                _details = details;
+                _detailsLength = detailsLength;
+                _hasDetails = hasDetails;
+            }
+
+            public  String  getType() { return _type; }
+
+            /** Returns false if the operation could not be deserialized, or its toString() failed */
+            public  boolean hasDetails() { return _hasDetails; }
+            public  String  getDetails() { return _details; }
+
+            /** Get the length of the details before they were cut short */
+            public  int     getDetailsLength() { return _detailsLength; }
+            public  boolean isCut() { return (_details != null) && (_details.length() < _detailsLength); }
+        }
+
+        /**
+         * <p>
+         * The bytes of an operation. Keys in the cache hold copies of their
+         * bytes. The probe points at the bytes in the record being printed.
+         * </p>
+         */
+        private static  final   class   Key
+        {
+            private long        _digest;
+            private byte[]      _bytes;
+
+            // the probe's bytes
+            private ByteBuffer  _buffer;
+            private int         _offset;
+            private int         _length;
+
+            private Key() {}
+
+            private Key( ByteBuffer buffer, int offset, int length )
+            {
+                _digest = digest( buffer, offset, length );
+                _bytes = new byte[ length ];
+                _length = length;
+
+                for ( int i = 0; i < length; i++ ) { _bytes[ i ] = buffer.get( offset + i ); }
+            }
+
+            private void    point( ByteBuffer buffer, int offset, int length )
+            {
+                _buffer = buffer;
+                _offset = offset;
+                _length = length;
+                _digest = (buffer == null) ? 0L : digest( buffer, offset, length );
+            }
+
+            public  int hashCode() { return (int) (_digest ^ (_digest >>> 32)); }
+
+            public  boolean equals( Object other )
+            {
+                if ( !(other instanceof Key) ) { return false; }
+
+                Key     that = (Key) other;
+
+                if ( (_digest != that._digest) || (_length != that._length) ) { return false; }
+                if ( (_bytes != null) && (that._bytes != null) ) { return Arrays.equals( _bytes, that._bytes ); }
+
+                Key     probe = (_bytes == null) ? this : that;
+                byte[]  bytes = (_bytes == null) ? that._bytes : _bytes;
+
+                for ( int i = 0; i < _length; i++ )
+                {
+                    if ( probe._buffer.get( probe._offset + i ) != bytes[ i ] ) { return false; }
+                }
+
+                return true;
+            }
+
+            // a multiply-xorshift hash over 8 bytes at a time
+            private static  long    digest( ByteBuffer buffer, int offset, int length )
+            {
+                long    hash = 0x9E3779B97F4A7C15L ^ length;
+                int     end = offset + length;
+                int     i = offset;
+
+                for ( ; i + 8 <= end; i += 8 )
+                {
+                    hash = (hash ^ buffer.getLong( i )) * 0x9E3779B97F4A7C15L;
+                    hash ^= (hash >>> 29);
+                }
+                for ( ; i < end; i++ )
+                {
+                    hash = (hash ^ buffer.get( i )) * 0x100000001B3L;
+                }
+
+                return hash ^ (hash >>> 32);
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Counters and latency histograms for the stages which a record goes
+     * through on its way to the output: reading its wrapper out of the log
+     * file (read), decrypting it (decrypt), deserializing its operation in
+     * verbose mode (decode) and rendering and writing it in the output
+     * format (format). Reading includes decryption, unless the log is
+     * decrypted ahead of the reader on a thread of its own, and formatting
+     * does not include decoding. Decoding is also broken down by operation
+     * type, which shows the record types that are expensive to deserialize.
+     * </p>
+     *
+     * <p>
+     * Latencies are counted in buckets by powers of two nanoseconds, so
+     * recording one costs a couple of additions and the percentiles are
+     * accurate to within a factor of two. The workers of a parallel read,
+     * and the thread which decrypts ahead, all record into the same Metrics,
+     * so the counters are LongAdders, and the time spent in a stage can add
+     * up to more than the time which has elapsed.
+     * </p>
+     */
+    public  static  final   class   Metrics
+    {
+        public  static  final   int READ = 0;
+        public  static  final   int DECRYPT = READ + 1;
+        public  static  final   int DECODE = DECRYPT + 1;
+        public  static  final   int FORMAT = DECODE + 1;
+
+        private static  final   String[]    STAGE_NAMES = { "read", "decrypt", "decode", "format" };
+
+        // bucket i holds the latencies which are less than 2^i nanoseconds but not less than 2^(i-1)
+        private static  final   int BUCKET_COUNT = 64;
+
+        private static  final   double  MEGABYTE = 1024.0 * 1024.0;
+
+        private long    _startNanos = System.nanoTime();
+
+        private LongAdder   _recordCount = new LongAdder();
+        private LongAdder   _bytesRead = new LongAdder();
+        private LongAdder   _bytesWritten = new LongAdder();
+
+        private Stage[]     _stages = new Stage[ STAGE_NAMES.length ];
+
+        // decoding, by the class name of the operation
+        private ConcurrentHashMap<String,Stage> _operationTypes = new ConcurrentHashMap<String,Stage>();
+
+        // prints the metrics every so often, if asked to
+        private Timer   _timer;
+
+        public  Metrics()
+        {
+            for ( int i = 0; i < _stages.length; i++ ) { _stages[ i ] = new Stage(); }
+        }
+
+        /** Count a record, and the bytes its wrapper takes up in the log file */
+        public  void    countRecord( long wrapperLength )
+        {
+            _recordCount.increment();
+            _bytesRead.add( wrapperLength );
+        }
+
+        /** Count bytes of output */
+        public  void    countOutput( long byteCount ) { _bytesWritten.add( byteCount ); }
+
+        /** Record how long one pass through a stage took */
+        public  void    record( int stage, long nanos ) { _stages[ stage ].record( nanos ); }
+
+        /** Record how long it took to decode an operation of the given type */
+        public  void    recordOperation( String operationType, long nanos )
+        {
+            Stage   stage = _operationTypes.get( operationType );
+
+            if ( stage == null )
+            {
+                _operationTypes.putIfAbsent( operationType, new Stage() );
+                stage = _operationTypes.get( operationType );
+            }
+
+            stage.record( nanos );
+            record( DECODE, nanos );
+        }
+
+        /** Wrap a decryption engine so that the time it spends decrypting is recorded. Null stays null */
+        public  CipherProvider  timed( final CipherProvider decryptionEngine )
+        {
+            if ( decryptionEngine == null ) { return null; }
+
+            return new CipherProvider()
+            {
+                public  int encrypt( byte[] cleartext, int offset, int length, byte[] ciphertext, int outputOffset )
+                    throws StandardException
+                {
+                    return decryptionEngine.encrypt( cleartext, offset, length, ciphertext, outputOffset );
+                }
+
+                public  int decrypt( byte[] ciphertext, int offset, int length, byte[] cleartext, int outputOffset )
+                    throws StandardException
+                {
+                    long    start = System.nanoTime();
+
+                    try {
+                        return decryptionEngine.decrypt( ciphertext, offset, length, cleartext, outputOffset );
+                    }
+                    finally { record( DECRYPT, System.nanoTime() - start ); }
+                }
+
+                public  int getEncryptionBlockSize() { return decryptionEngine.getEncryptionBlockSize(); }
+            };
+        }
+
+        /** Print the metrics so far every intervalSeconds, until stopReporting() is called */
+        public  synchronized    void    startReporting( final PrintStream printStream, int intervalSeconds )
+        {
+            long    intervalMillis = intervalSeconds * 1000L;
+
+            _timer = new Timer( "LogFileReader metrics", true );
+            _timer.schedule
+                (
+                 new TimerTask()
+                 {
+                     public  void    run() { printStream.print( Metrics.this ); }
+                 },
+                 intervalMillis, intervalMillis
+                 );
+        }
+
+        public  synchronized    void    stopReporting()
+        {
+            if ( _timer != null ) { _timer.cancel(); }
+            _timer = null;
+        }
+
+        /** A summary of the metrics so far, a line per stage and per operation type */
+        public  String  toString()
+        {
+            double          seconds = Math.max( System.nanoTime() - _startNanos, 1L ) / 1e9;
+            long            recordCount = _recordCount.sum();
+            double          megabytesRead = _bytesRead.sum() / MEGABYTE;
+            StringBuilder   buffer = new StringBuilder();
+
+            buffer.append
+                (
+                 String.format
+                 (
+                  "Metrics after %.3f s: %d records (%.0f records/s), %.1f MB read (%.1f MB/s), %.1f MB written.%n",
+                  seconds, recordCount, recordCount / seconds, megabytesRead, megabytesRead / seconds, _bytesWritten.sum() / MEGABYTE
+                  )
+                 );
+
+            for ( int i = 0; i < _stages.length; i++ )
+            {
+                if ( _stages[ i ].getCount() > 0 ) { _stages[ i ].append( buffer, STAGE_NAMES[ i ], seconds ); }
+            }
+
+            // the most expensive first
+            ArrayList<String>   operationTypes = new ArrayList<String>( _operationTypes.keySet() );
+            Collections.sort
+                (
+                 operationTypes,
+                 new Comparator<String>()
+                 {
+                     public  int compare( String left, String right )
+                     {
+                         return Long.compare( _operationTypes.get( right ).getNanos(), _operationTypes.get( left ).getNanos() );
+                     }
+                 }
+                 );
+
+            if ( !operationTypes.isEmpty() ) { buffer.append( String.format( "    decode by operation type:%n" ) ); }
+            for ( String operationType : operationTypes )
+            {
+                _operationTypes.get( operationType ).append( buffer, "    " + operationType.substring( operationType.lastIndexOf( '.' ) + 1 ), seconds );
+            }
+
+            return buffer.toString();
+        }
+
+        /** Write a duration with the unit which suits it */
+        private static  String  formatNanos( double nanos )
+        {
+            if ( nanos < 1e3 ) { return String.format( "%.0f ns", nanos ); }
+            else if ( nanos < 1e6 ) { return String.format( "%.1f us", nanos / 1e3 ); }
+            else if ( nanos < 1e9 ) { return String.format( "%.1f ms", nanos / 1e6 ); }
+            else { return String.format( "%.2f s", nanos / 1e9 ); }
+        }
+
+        /** The passes through one stage, and a histogram of how long they took */
+        private static  final   class   Stage
+        {
+            private LongAdder   _count = new LongAdder();
+            private LongAdder   _nanos = new LongAdder();
+            private LongAdder[] _buckets = new LongAdder[ BUCKET_COUNT ];
+
+            private Stage()
+            {
+                for ( int i = 0; i < BUCKET_COUNT; i++ ) { _buckets[ i ] = new LongAdder(); }
+            }
+
+            private long    getCount() { return _count.sum(); }
+            private long    getNanos() { return _nanos.sum(); }
+
+            private void    record( long nanos )
+            {
+                // the clock can step backward
+                if ( nanos < 0 ) { nanos = 0; }
+
+                _count.increment();
+                _nanos.add( nanos );
+                _buckets[ Math.min( BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros( nanos ) ) ].increment();
+            }
+
+            private void    append( StringBuilder buffer, String name, double seconds )
+            {
+                long    count = _count.sum();
+                long    nanos = _nanos.sum();
+                long[]  buckets = new long[ BUCKET_COUNT ];
+
+                for ( int i = 0; i < BUCKET_COUNT; i++ ) { buckets[ i ] = _buckets[ i ].sum(); }
+
+                buffer.append
+                    (
+                     String.format
+                     (
+                      "    %-28s %10d calls, %s total (%.1f%% of elapsed), %s mean, p50 < %s, p90 < %s, p99 < %s, max < %s%n",
+                      name, count, formatNanos( nanos ), 100.0 * nanos / (seconds * 1e9), formatNanos( (double) nanos / Math.max( count, 1L ) ),
+                      percentile( buckets, count, 0.50 ), percentile( buckets, count, 0.90 ), percentile( buckets, count, 0.99 ),
+                      percentile( buckets, count, 1.0 )
+                      )
+                     );
+            }
+
+            /** The upper bound of the bucket which holds the given fraction of the latencies */
+            private static  String  percentile( long[] buckets, long count, double fraction )
+            {
+                long    wanted = (long) Math.ceil( count * fraction );
+                long    seen = 0L;
+
+                for ( int i = 0; i < BUCKET_COUNT; i++ )
+                {
+                    seen += buckets[ i ];
+                    if ( (seen >= wanted) && (buckets[ i ] > 0) ) { return formatNanos( Math.pow( 2.0, i ) ); }
+                }
+
+                return formatNanos( Math.pow( 2.0, BUCKET_COUNT - 1 ) );
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * The cheap fields at the front of a log record: its formatable id, its
+     * group flags, the id of the transaction which wrote it and the formatable
+     * id of the logged operation. Decoding these does not need a Monitor.
+     * Like the formatting code, this tolerates damaged records and leaves
+     * the fields it cannot read at their defaults.
+     * </p>
+     *
+     * <p>
+     * A header can be reused: decode() reads the fields straight out of the
+     * record's buffer with absolute gets, without moving the buffer or
+     * allocating anything, so a header-only scan can decode every record into
+     * the same LogRecordHeader. Format ids are 2 bytes. Group flags and
+     * transaction ids are in CompressedNumber's format, whose first byte says
+     * how long the number is.
+     * </p>
+     */
+    public  static  final   class   LogRecordHeader
+    {
+        // transaction id of records which are not written by a transaction
+        public  static  final   long    NULL_TRANSACTION_ID = -1L;
+
+        private int     _formatableID;
+        private int     _groups;
+        private long    _transactionID = NULL_TRANSACTION_ID;
+        private int     _operationFormatID;
+
+        // offset of the operation from the start of the record
+        private int     _operationOffset;
+
+        // the record being decoded
+        private ByteBuffer  _buffer;
+        private int     _cursor;
+        private int     _end;
+
+        /** An empty header, to be filled by decode() */
+        public  LogRecordHeader() {}
+
+        public  LogRecordHeader( ByteBuffer logRecord )
+        {
+            if ( logRecord == null ) { return; }
+
+            decode( logRecord, logRecord.position(), logRecord.remaining() );
+        }
+
+        /** Decode the header of the record held by a wrapper */
+        public  LogRecordHeader decode( LogRecordWrapper wrapper )
+        {
+            if ( wrapper._recordBuffer == null ) { return decode( null, 0, 0 ); }
+
+            return decode( wrapper._recordBuffer, wrapper._recordOffset, wrapper._recordLength );
+        }
+
+        /**
+         * <p>
+         * Decode the header of the record which occupies length bytes at the
+         * given absolute offset of a buffer. Neither the buffer's position nor
+         * its contents are changed.
+         * </p>
+         */
+        public  LogRecordHeader decode( ByteBuffer buffer, int offset, int length )
+        {
+            _formatableID = 0;
+            _groups = 0;
+            _transactionID = NULL_TRANSACTION_ID;
+            _operationFormatID = 0;
+            _operationOffset = length;
+
+            if ( buffer == null ) { return this; }
+
+            _buffer = buffer;
+            _cursor = offset;
+            _end = offset + length;
+
+            decodeFields( offset );
+
+            // don't pin the record
+            _buffer = null;
+
+            return this;
+        }
+
+        public  int getFormatableID() { return _formatableID; }
+        public  int getGroups() { return _groups; }
+        public  long    getTransactionID() { return _transactionID; }
+        public  int getOperationFormatID() { return _operationFormatID; }
+
+        /** Get the offset of the operation, starting with its formatable id, from the start of the record */
+        public  int getOperationOffset() { return _operationOffset; }
+
+        private void    decodeFields( int offset )
+        {
+            if ( !available( 2 ) ) { return; }
+            _formatableID = readFormatID();
+
+            if ( !available( compressedIntLength() ) ) { return; }
+            _groups = readCompressedInt();
+
+            if ( !available( 2 ) ) { return; }
+            int     transactionFormatID = readFormatID();
+
+            if ( transactionFormatID != StoredFormatIds.NULL_FORMAT_ID )
+            {
+                if ( !available( compressedLongLength() ) ) { return; }
+                _transactionID = readCompressedLong();
+            }
+
+            _operationOffset = _cursor - offset;
+
+            if ( !available( 2 ) ) { return; }
+            _operationFormatID = readFormatID();
+        }
+
+        private boolean available( int length ) { return _end - _cursor >= length; }
+
+        // FormatIdUtil.readFormatIdInteger()
+        private int readFormatID()
+        {
+            int     value = _buffer.getShort( _cursor ) & 0xFFFF;
+            _cursor += 2;
+
+            return value;
+        }
+
+        // the top two bits of the first byte of a compressed int say how long it is: 00 = 1 byte, 01 = 2 bytes, 1x = 4 bytes
+        private int compressedIntLength()
+        {
+            if ( _cursor >= _end ) { return 1; }
+
+            int     first = _buffer.get( _cursor );
+
+            if ( (first & ~0x3f) == 0 ) { return 1; }
+            else if ( (first & 0x80) == 0 ) { return 2; }
+            else { return 4; }
+        }
+
+        // CompressedNumber.readInt()
+        private int readCompressedInt()
+        {
+            int     value;
+            int     length = compressedIntLength();
+
+            switch ( length )
+            {
+            case 1: value = _buffer.get( _cursor ); break;
+            case 2: value = _buffer.getShort( _cursor ) & 0x3FFF; break;
+            default: value = _buffer.getInt( _cursor ) & 0x7FFFFFFF; break;
+            }
+            _cursor += length;
+
+            return value;
+        }
+
+        // compressed longs are 2, 4 or 8 bytes long, with the same length bits
+        private int compressedLongLength()
+        {
+            return 2 * compressedIntLength();
+        }
+
+        // CompressedNumber.readLong()
+        private long    readCompressedLong()
+        {
+            long    value;
+            int     length = compressedLongLength();
+
+            switch ( length )
+            {
+            case 2: value = _buffer.getShort( _cursor ) & 0x3FFF; break;
+            case 4: value = _buffer.getInt( _cursor ) & 0x3FFFFFFF; break;
+            default: value = _buffer.getLong( _cursor ) & 0x7FFFFFFFFFFFFFFFL; break;
+            }
+            _cursor += length;
+
+            return value;
+        }
+    }
+
+    /**
+     * <p>
+     * The page, or the container, which a record's operation works on, read
+     * straight out of the record without deserializing the operation. Page
+     * operations start with their PageKey, i.e. the segment id, container id
+     * and page number, followed by the page version, all as compressed longs.
+     * Container operations start with their ContainerKey and container version
+     * in the same way. Whether an operation is one or the other is decided by
+     * the class registered for its formatable id, once per formatable id.
+     * Like a LogRecordHeader, an identity can be reused from record to record.
+     * </p>
+     */
+    public  static  final   class   PageIdentity
+    {
+        private static  final   byte    UNKNOWN = 0;
+        private static  final   byte    PAGE = 1;
+        private static  final   byte    CONTAINER = 2;
+        private static  final   byte    OTHER = 3;
+
+        // what the operation registered for each formatable id works on. races only repeat the same lookup
+        private static  final   byte[]  _kinds = new byte[ 1 << 16 ];
+
+        private long    _segmentID;
+        private long    _containerID;
+        private long    _pageNumber;
+        private long    _version;
+
+        // the record being decoded
+        private ByteBuffer  _buffer;
+        private int     _cursor;
+        private int     _end;
+
+        /** An empty identity, to be filled by decode() */
+        public  PageIdentity() {}
+
+        public  long    getSegmentID() { return _segmentID; }
+        public  long    getContainerID() { return _containerID; }
+
+        /** Get the page number, or PageIndex.CONTAINER_PAGE if the operation works on the whole container */
+        public  long    getPageNumber() { return _pageNumber; }
+
+        public  long    getVersion() { return _version; }
+
+        /**
+         * <p>
+         * Decode the page identity of the record held by a wrapper, whose header
+         * has already been decoded. Returns false if the operation does not work
+         * on a page or a container, or if the record is too short to say which.
+         * </p>
+         */
+        public  boolean decode( LogRecordWrapper wrapper, LogRecordHeader header )
+        {
+            int     kind = kind( header.getOperationFormatID() );
+
+            if ( (kind != PAGE) && (kind != CONTAINER) ) { return false; }
+
+            _buffer = wrapper._recordBuffer;
+            // the operation's fields follow its formatable id
+            _cursor = wrapper._recordOffset + header.getOperationOffset() + 2;
+            _end = wrapper._recordOffset + wrapper._recordLength;
+
+            try {
+                if ( (_buffer == null) || !available() ) { return false; }
+                _segmentID = readCompressedLong();
+
+                if ( !available() ) { return false; }
+                _containerID = readCompressedLong();
+
+                if ( kind == PAGE )
+                {
+                    if ( !available() ) { return false; }
+                    _pageNumber = readCompressedLong();
+                }
+                else { _pageNumber = PageIndex.CONTAINER_PAGE; }
+
+                if ( !available() ) { return false; }
+                _version = readCompressedLong();
+
+                return true;
+            }
+            finally { _buffer = null; }
+        }
+
+        private static  int kind( int formatableID )
+        {
+            int     kind = _kinds[ formatableID ];
+
+            if ( kind == UNKNOWN )
+            {
+                kind = classify( formatableID );
+                _kinds[ formatableID ] = (byte) kind;
+            }
+
+            return kind;
+        }
+
+        private static  int classify( int formatableID )
+        {
+            String      className = null;
+            try {className = RegisteredFormatIds.TwoByte[ formatableID ];} catch (Exception e) {}
+
+            if ( className == null ) { return OTHER; }
+
+            try {
+                // just look at the class, without initializing it
+                Class<?>    operationClass = Class.forName( className, false, PageIdentity.class.getClassLoader() );
+
+                if ( PageBasicOperation.class.isAssignableFrom( operationClass ) ) { return PAGE; }
+                if ( ContainerBasicOperation.class.isAssignableFrom( operationClass ) ) { return CONTAINER; }
+            }
+            catch (Throwable t) {}
+
+            return OTHER;
+        }
+
+        // the first byte of a compressed long says how long it is
+        private boolean available()
+        {
+            if ( _cursor >= _end ) { return false; }
+
+            int     first = _buffer.get( _cursor );
+            int     length = ((first & ~0x3f) == 0) ? 2 : (((first & 0x80) == 0) ? 4 : 8);
+
+            return _end - _cursor >= length;
+        }
+
+        // CompressedNumber.readLong()
+        private long    readCompressedLong()
+        {
+            int     first = _buffer.get( _cursor );
+            long    value;
+
+            if ( (first & ~0x3f) == 0 )
+            {
+                value = _buffer.getShort( _cursor ) & 0x3FFF;
+                _cursor += 2;
+            }
+            else if ( (first & 0x80) == 0 )
+            {
+                value = _buffer.getInt( _cursor ) & 0x3FFFFFFF;
+                _cursor += 4;
+            }
+            else
+            {
+                value = _buffer.getLong( _cursor ) & 0x7FFFFFFFFFFFFFFFL;
+                _cursor += 8;
+            }
+
+            return value;
+        }
+    }
+
+    /**
+     * <p>
+     * A predicate on the cheap fields of a LogRecordHeader, so that records
+     * can be thrown away before their operations are deserialized and before
+     * any output is written for them. A filter is written as a comma-separated
+     * list of field=value conditions, for instance
+     * </p>
+     *
+     * <pre>
+     * transaction=1234,transaction=1235,group=COMMIT,operation=InsertOperation
+     * </pre>
+     *
+     * <p>
+     * Conditions on the same field are alternatives. Conditions on different
+     * fields must all hold. A field with no conditions matches every record.
+     * </p>
+     */
+    public  static  final   class   RecordFilter
+    {
+        // the group flags, in the order in which they are printed
+        public  static  final   int[]   GROUP_FLAGS =
+        {
+            Loggable.FIRST, Loggable.LAST, Loggable.COMPENSATION, Loggable.BI_LOG,
+            Loggable.COMMIT, Loggable.ABORT, Loggable.PREPARE, Loggable.XA_NEEDLOCK,
+            Loggable.RAWSTORE, Loggable.FILE_RESOURCE, Loggable.CHECKSUM,
+        };
+        public  static  final   String[]    GROUP_NAMES =
+        {
+            "FIRST", "LAST", "COMPENSATION", "BI_LOG",
+            "COMMIT", "ABORT", "PREPARE", "XA_NEEDLOCK",
+            "RAWSTORE", "FILE_RESOURCE", "CHECKSUM",
+        };
+
+        private static  final   String  TRANSACTION = "transaction";
+        private static  final   String  GROUP = "group";
+        private static  final   String  OPERATION = "operation";
+
+        // null means that the field is not constrained
+        private long[]  _transactionIDs;
+        private int     _groupMask;
+        private int[]   _operationFormatIDs;
+
+        private RecordFilter() {}
+
+        /** Parse a filter, raising IllegalArgumentException if it is malformed */
+        public  static  RecordFilter    parse( String text )
+        {
+            RecordFilter    filter = new RecordFilter();
+
+            for ( String condition : text.split( "," ) )
+            {
+                int     equals = condition.indexOf( '=' );
+                if ( equals < 0 ) { throw new IllegalArgumentException( "Filter condition should look like field=value: " + condition ); }
+
+                String  field = condition.substring( 0, equals ).trim();
+                String  value = condition.substring( equals + 1 ).trim();
+
+                if ( TRANSACTION.equals( field ) )
+                {
+                    long    transactionID = "NULL".equalsIgnoreCase( value ) ?
+                        LogRecordHeader.NULL_TRANSACTION_ID : Long.parseLong( value );
+
+                    filter._transactionIDs = append( filter._transactionIDs, transactionID );
+                }
+                else if ( GROUP.equals( field ) ) { filter._groupMask |= parseGroup( value ); }
+                else if ( OPERATION.equals( field ) )
+                {
+                    for ( int formatID : parseOperation( value ) )
+                    {
+                        filter._operationFormatIDs = append( filter._operationFormatIDs, formatID );
+                    }
+                }
+                else { throw new IllegalArgumentException( "Unknown filter field " + field ); }
+            }
+
+            return filter;
+        }
+
+        private static  int parseGroup( String name )
+        {
+            for ( int i = 0; i < GROUP_NAMES.length; i++ )
+            {
+                if ( GROUP_NAMES[ i ].equalsIgnoreCase( name ) ) { return GROUP_FLAGS[ i ]; }
+            }
+
+            throw new IllegalArgumentException( "Unknown group flag " + name );
+        }
+
+        /** An operation is a formatable id or the (possibly unqualified) name of the class registered for it */
+        private static  int[]   parseOperation( String name )
+        {
+            if ( name.length() > 0 && Character.isDigit( name.charAt( 0 ) ) ) { return new int[] { Integer.parseInt( name ) }; }
+
+            int[]   formatIDs = null;
+            for ( int formatID = 0; formatID < RegisteredFormatIds.TwoByte.length; formatID++ )
+            {
+                String  className = RegisteredFormatIds.TwoByte[ formatID ];
+
+                if ( (className != null) && (className.equals( name ) || className.endsWith( "." + name )) )
+                {
+                    formatIDs = append( formatIDs, formatID );
+                }
+            }
+
+            if ( formatIDs == null ) { throw new IllegalArgumentException( "Unknown operation " + name ); }
+
+            return formatIDs;
+        }
+
+        private static  long[]  append( long[] values, long value )
+        {
+            long[]  result = (values == null) ? new long[ 1 ] : Arrays.copyOf( values, values.length + 1 );
+            result[ result.length - 1 ] = value;
+            return result;
+        }
+        private static  int[]   append( int[] values, int value )
+        {
+            int[]   result = (values == null) ? new int[ 1 ] : Arrays.copyOf( values, values.length + 1 );
+            result[ result.length - 1 ] = value;
+            return result;
+        }
+
+        public  boolean accept( LogRecordHeader header )
+        {
+            return accept( header.getTransactionID(), header.getGroups() ) &&
+                contains( _operationFormatIDs, header.getOperationFormatID() );
+        }
+
+        /** Check the fields which are also recorded in a LogIndex */
+        public  boolean accept( long transactionID, int groups )
+        {
+            if ( (_groupMask != 0) && ((groups & _groupMask) == 0) ) { return false; }
+
+            if ( _transactionIDs != null )
+            {
+                for ( long candidate : _transactionIDs )
+                {
+                    if ( candidate == transactionID ) { return true; }
+                }
+                return false;
+            }
+
+            return true;
+        }
+
+        private static  boolean contains( int[] values, int value )
+        {
+            if ( values == null ) { return true; }
+
+            for ( int candidate : values )
+            {
+                if ( candidate == value ) { return true; }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * <p>
+     * The tally of a checksum verification pass (-k). When Derby writes a
+     * buffer of log records to disk, it starts the buffer with a
+     * ChecksumOperation which holds the checksum algorithm, the number of
+     * bytes which follow the checksum record and the checksum of those
+     * bytes. The bytes are the following wrappers exactly as they lie in the
+     * log file, so they are checked as stored, whether or not the log is
+     * encrypted. The workers of a parallel pass share one tally.
+     * </p>
+     */
+    public  static  final   class   ChecksumVerifier
+    {
+        // ChecksumOperation.CRC32_ALGORITHM
+        public  static  final   byte    CRC32_ALGORITHM = (byte) 0x1;
+
+        // algorithm + data length + checksum value
+        public  static  final   int PAYLOAD_LENGTH = 1 + 4 + 8;
+
+        private LongAdder   _checksumCount = new LongAdder();
+        private LongAdder   _failedCount = new LongAdder();
+        private LongAdder   _coveredBytes = new LongAdder();
+
+        /** Count a checksum which covers dataLength bytes */
+        public  void    count( int dataLength, boolean passed )
+        {
+            _checksumCount.increment();
+            _coveredBytes.add( dataLength );
+            if ( !passed ) { _failedCount.increment(); }
+        }
+
+        public  long    getChecksumCount() { return _checksumCount.sum(); }
+        public  long    getFailedCount() { return _failedCount.sum(); }
+        public  long    getPassedCount() { return getChecksumCount() - getFailedCount(); }
+        public  long    getCoveredBytes() { return _coveredBytes.sum(); }
+    }
+
+    /**
+     * <p>
+     * Per-transaction summaries, built in a single pass over the log. Each
+     * transaction which is still open occupies a slot in a set of parallel
+     * primitive arrays, and transaction ids are mapped to slots by a
+     * LongIntHashMap, so adding a record neither boxes nor allocates. The
+     * caller prints a transaction's summary once its LAST record has gone by
+     * and then releases the slot for reuse, so memory grows with the number of
+     * transactions which are open at the same time, not with the size of the log.
+     * </p>
+     */
+    public  static  final   class   TransactionReport
+    {
+        public  static  final   String  INCOMPLETE = "INCOMPLETE";
+        public  static  final   String  COMMITTED = "COMMIT";
+        public  static  final   String  ABORTED = "ABORT";
+        public  static  final   String  PREPARED = "PREPARE";
+
+        private static  final   int INITIAL_SLOTS = 64;
+
+        private LongIntHashMap  _slots = new LongIntHashMap();
+
+        // one entry per slot
+        private long[]      _transactionIDs = new long[ INITIAL_SLOTS ];
+        private int[]       _recordCounts = new int[ INITIAL_SLOTS ];
+        private long[]      _byteCounts = new long[ INITIAL_SLOTS ];
+        private long[]      _firstInstants = new long[ INITIAL_SLOTS ];
+        private long[]      _lastInstants = new long[ INITIAL_SLOTS ];
+        private String[]    _outcomes = new String[ INITIAL_SLOTS ];
+
+        // histogram of each slot's operations, as (operation formatable id, count) pairs
+        private int[][]     _operations = new int[ INITIAL_SLOTS ][];
+        private int[]       _operationTypeCounts = new int[ INITIAL_SLOTS ];
+
+        private int         _slotCount;
+        private int[]       _freeSlots = new int[ INITIAL_SLOTS ];
+        private int         _freeSlotCount;
+
+        // totals
+        private long        _transactionCount;
+        private long        _committedCount;
+        private long        _abortedCount;
+        private long        _nonTransactionalRecordCount;
+
+        /**
+         * <p>
+         * Account for a record. Returns the slot of the record's transaction if
+         * this was its LAST record, otherwise -1.
+         * </p>
+         */
+        public  int add( long logInstant, long wrapperLength, LogRecordHeader header )
+        {
+            long    transactionID = header.getTransactionID();
+
+            if ( transactionID == LogRecordHeader.NULL_TRANSACTION_ID )
+            {
+                _nonTransactionalRecordCount++;
+                return -1;
+            }
+
+            int     slot = _slots.get( transactionID );
+            if ( slot < 0 )
+            {
+                slot = allocate( transactionID, logInstant );
+                _slots.put( transactionID, slot );
+            }
+
+            _recordCounts[ slot ]++;
+            _byteCounts[ slot ] += wrapperLength;
+            _lastInstants[ slot ] = logInstant;
+            countOperation( slot, header.getOperationFormatID() );
+
+            int     groups = header.getGroups();
+
+            if ( ((groups & Loggable.COMMIT) != 0) && (_outcomes[ slot ] != COMMITTED) )
+            {
+                _outcomes[ slot ] = COMMITTED;
+                _committedCount++;
+            }
+            else if ( ((groups & Loggable.ABORT) != 0) && (_outcomes[ slot ] != ABORTED) )
+            {
+                _outcomes[ slot ] = ABORTED;
+                _abortedCount++;
+            }
+            else if ( ((groups & Loggable.PREPARE) != 0) && (_outcomes[ slot ] == INCOMPLETE) ) { _outcomes[ slot ] = PREPARED; }
+
+            return ((groups & Loggable.LAST) != 0) ? slot : -1;
+        }
+
+        /** Forget a transaction which has been printed */
+        public  void    release( int slot )
+        {
+            _slots.remove( _transactionIDs[ slot ] );
+
+            if ( _freeSlotCount == _freeSlots.length ) { _freeSlots = Arrays.copyOf( _freeSlots, 2 * _freeSlotCount ); }
+            _freeSlots[ _freeSlotCount++ ] = slot;
+        }
+
+        /** Get the slots of the transactions which never finished, in the order in which they started */
+        public  int[]   openSlots()
+        {
+            Integer[]   order = new Integer[ _slots.size() ];
+            int[]       values = _slots.values();
+
+            for ( int i = 0; i < order.length; i++ ) { order[ i ] = values[ i ]; }
+
+            Arrays.sort
+                (
+                 order,
+                 new Comparator<Integer>()
+                 {
+                     public  int compare( Integer left, Integer right )
+                     {
+                         return Long.compare( _firstInstants[ left ], _firstInstants[ right ] );
+                     }
+                 }
+                 );
+
+            int[]   result = new int[ order.length ];
+            for ( int i = 0; i < order.length; i++ ) { result[ i ] = order[ i ]; }
+
+            return result;
+        }
+
+        public  long    getTransactionID( int slot ) { return _transactionIDs[ slot ]; }
+        public  String  getOutcome( int slot ) { return _outcomes[ slot ]; }
+        public  int getRecordCount( int slot ) { return _recordCounts[ slot ]; }
+        public  long    getByteCount( int slot ) { return _byteCounts[ slot ]; }
+        public  long    getFirstInstant( int slot ) { return _firstInstants[ slot ]; }
+        public  long    getLastInstant( int slot ) { return _lastInstants[ slot ]; }
+        public  int getOperationTypeCount( int slot ) { return _operationTypeCounts[ slot ]; }
+        public  int getOperationFormatID( int slot, int idx ) { return _operations[ slot ][ 2 * idx ]; }
+        public  int getOperationCount( int slot, int idx ) { return _operations[ slot ][ 2 * idx + 1 ]; }
+
+        public  long    getTransactionCount() { return _transactionCount; }
+        public  long    getCommittedCount() { return _committedCount; }
+        public  long    getAbortedCount() { return _abortedCount; }
+        public  long    getOpenCount() { return _slots.size(); }
+        public  long    getNonTransactionalRecordCount() { return _nonTransactionalRecordCount; }
+
+        private int allocate( long transactionID, long firstInstant )
+        {
+            int     slot;
+
+            if ( _freeSlotCount > 0 ) { slot = _freeSlots[ --_freeSlotCount ]; }
+            else
+            {
+                if ( _slotCount == _transactionIDs.length ) { grow( 2 * _slotCount ); }
+                slot = _slotCount++;
+            }
+
+            _transactionCount++;
+            _transactionIDs[ slot ] = transactionID;
+            _recordCounts[ slot ] = 0;
+            _byteCounts[ slot ] = 0L;
+            _firstInstants[ slot ] = firstInstant;
+            _lastInstants[ slot ] = firstInstant;
+            _outcomes[ slot ] = INCOMPLETE;
+            _operationTypeCounts[ slot ] = 0;
+
+            // a recycled slot keeps its histogram array
+            if ( _operations[ slot ] == null ) { _operations[ slot ] = new int[ 8 ]; }
+
+            return slot;
+        }
+
+        private void    grow( int capacity )
+        {
+            _transactionIDs = Arrays.copyOf( _transactionIDs, capacity );
+            _recordCounts = Arrays.copyOf( _recordCounts, capacity );
+            _byteCounts = Arrays.copyOf( _byteCounts, capacity );
+            _firstInstants = Arrays.copyOf( _firstInstants, capacity );
+            _lastInstants = Arrays.copyOf( _lastInstants, capacity );
+            _outcomes = Arrays.copyOf( _outcomes, capacity );
+            _operations = Arrays.copyOf( _operations, capacity );
+            _operationTypeCounts = Arrays.copyOf( _operationTypeCounts, capacity );
+        }
+
+        // transactions only do a handful of kinds of operation, so a linear search is fine
+        private void    countOperation( int slot, int operationFormatID )
+        {
+            int[]   histogram = _operations[ slot ];
+            int     typeCount = _operationTypeCounts[ slot ];
+
+            for ( int i = 0; i < typeCount; i++ )
+            {
+                if ( histogram[ 2 * i ] == operationFormatID )
+                {
+                    histogram[ 2 * i + 1 ]++;
+                    return;
+                }
+            }
+
+            if ( 2 * typeCount == histogram.length ) { histogram = _operations[ slot ] = Arrays.copyOf( histogram, 2 * histogram.length ); }
+
+            histogram[ 2 * typeCount ] = operationFormatID;
+            histogram[ 2 * typeCount + 1 ] = 1;
+            _operationTypeCounts[ slot ]++;
+        }
+    }
+
+    /**
+     * <p>
+     * A profile of the log (-a), built in one pass over the record headers,
+     * for sizing logSwitchInterval and checkpointInterval. It holds histograms
+     * of the record sizes and of the log bytes between checkpoints, the records
+     * and bytes of every kind of operation and of every combination of group
+     * flags, and the transactions which began and ended in each log file.
+     * </p>
+     *
+     * <p>
+     * The histograms have a fixed number of power-of-two buckets, so they
+     * cost the same however long the log is. Operations and group combinations
+     * are mapped to slots in primitive arrays by LongIntHashMaps, as in
+     * TransactionReport, and there can only be as many of them as there are
+     * 2 byte format ids and group bits. The log records no wall-clock time,
+     * so transaction rates are given per log file and per megabyte of log
+     * rather than per second.
+     * </p>
+     */
+    public  static  final   class   LogProfile
+    {
+        private static  final   int INITIAL_SLOTS = 64;
+
+        private static  final   long    MEGABYTE = 1024L * 1024L;
+
+        private Histogram   _recordSizes = new Histogram();
+        private Histogram   _checkpointIntervals = new Histogram();
+
+        // one entry per kind of operation, in the order in which they were first seen
+        private LongIntHashMap  _operationSlots = new LongIntHashMap();
+        private int[]       _operationFormatIDs = new int[ INITIAL_SLOTS ];
+        private long[]      _operationRecordCounts = new long[ INITIAL_SLOTS ];
+        private long[]      _operationByteCounts = new long[ INITIAL_SLOTS ];
+        private long[]      _operationLargestRecords = new long[ INITIAL_SLOTS ];
+        private int         _operationCount;
+
+        // one entry per combination of group flags
+        private LongIntHashMap  _groupSlots = new LongIntHashMap();
+        private int[]       _groups = new int[ INITIAL_SLOTS ];
+        private long[]      _groupRecordCounts = new long[ INITIAL_SLOTS ];
+        private long[]      _groupByteCounts = new long[ INITIAL_SLOTS ];
+        private int         _groupCount;
+
+        // one entry per log file
+        private long[]      _logFileNumbers = new long[ INITIAL_SLOTS ];
+        private long[]      _fileRecordCounts = new long[ INITIAL_SLOTS ];
+        private long[]      _fileByteCounts = new long[ INITIAL_SLOTS ];
+        private long[]      _fileTransactionCounts = new long[ INITIAL_SLOTS ];
+        private long[]      _fileCommittedCounts = new long[ INITIAL_SLOTS ];
+        private long[]      _fileAbortedCounts = new long[ INITIAL_SLOTS ];
+        private long[]      _fileCheckpointCounts = new long[ INITIAL_SLOTS ];
+        private int         _fileCount;
+
+        // totals
+        private long        _firstInstant;
+        private long        _lastInstant;
+        private long        _transactionCount;
+        private long        _committedCount;
+        private long        _abortedCount;
+        private long        _checkpointCount;
+
+        // the log bytes written since the last checkpoint
+        private long        _bytesSinceCheckpoint;
+
+        /** Account for a record */
+        public  void    add( long logInstant, long wrapperLength, LogRecordHeader header )
+        {
+            if ( _recordSizes.getCount() == 0L ) { _firstInstant = logInstant; }
+            _lastInstant = logInstant;
+
+            _recordSizes.add( wrapperLength );
+
+            int     slot = operationSlot( header.getOperationFormatID() );
+
+            _operationRecordCounts[ slot ]++;
+            _operationByteCounts[ slot ] += wrapperLength;
+            _operationLargestRecords[ slot ] = Math.max( _operationLargestRecords[ slot ], wrapperLength );
+
+            int     groups = header.getGroups();
+
+            slot = groupSlot( groups );
+            _groupRecordCounts[ slot ]++;
+            _groupByteCounts[ slot ] += wrapperLength;
+
+            slot = fileSlot( logInstant >>> 32 );
+            _fileRecordCounts[ slot ]++;
+            _fileByteCounts[ slot ] += wrapperLength;
+
+            if ( (groups & Loggable.FIRST) != 0 )
+            {
+                _transactionCount++;
+                _fileTransactionCounts[ slot ]++;
+            }
+            if ( (groups & Loggable.COMMIT) != 0 )
+            {
+                _committedCount++;
+                _fileCommittedCounts[ slot ]++;
+            }
+            else if ( (groups & Loggable.ABORT) != 0 )
+            {
+                _abortedCount++;
+                _fileAbortedCounts[ slot ]++;
+            }
+
+            _bytesSinceCheckpoint += wrapperLength;
+            if ( header.getOperationFormatID() == StoredFormatIds.LOGOP_CHECKPOINT )
+            {
+                // the bytes before the first checkpoint which was read are not a whole interval
+                if ( _checkpointCount > 0 ) { _checkpointIntervals.add( _bytesSinceCheckpoint ); }
+
+                _checkpointCount++;
+                _fileCheckpointCounts[ slot ]++;
+                _bytesSinceCheckpoint = 0L;
+            }
+        }
+
+        public  Histogram   getRecordSizes() { return _recordSizes; }
+        public  Histogram   getCheckpointIntervals() { return _checkpointIntervals; }
+
+        public  int getOperationCount() { return _operationCount; }
+        public  int getOperationFormatID( int slot ) { return _operationFormatIDs[ slot ]; }
+        public  long    getOperationRecordCount( int slot ) { return _operationRecordCounts[ slot ]; }
+        public  long    getOperationByteCount( int slot ) { return _operationByteCounts[ slot ]; }
+        public  long    getOperationLargestRecord( int slot ) { return _operationLargestRecords[ slot ]; }
+
+        public  int getGroupCount() { return _groupCount; }
+        public  int getGroups( int slot ) { return _groups[ slot ]; }
+        public  long    getGroupRecordCount( int slot ) { return _groupRecordCounts[ slot ]; }
+        public  long    getGroupByteCount( int slot ) { return _groupByteCounts[ slot ]; }
+
+        public  int getFileCount() { return _fileCount; }
+        public  long    getLogFileNumber( int slot ) { return _logFileNumbers[ slot ]; }
+        public  long    getFileRecordCount( int slot ) { return _fileRecordCounts[ slot ]; }
+        public  long    getFileByteCount( int slot ) { return _fileByteCounts[ slot ]; }
+        public  long    getFileTransactionCount( int slot ) { return _fileTransactionCounts[ slot ]; }
+        public  long    getFileCommittedCount( int slot ) { return _fileCommittedCounts[ slot ]; }
+        public  long    getFileAbortedCount( int slot ) { return _fileAbortedCounts[ slot ]; }
+        public  long    getFileCheckpointCount( int slot ) { return _fileCheckpointCounts[ slot ]; }
+
+        public  long    getFirstInstant() { return _firstInstant; }
+        public  long    getLastInstant() { return _lastInstant; }
+        public  long    getTransactionCount() { return _transactionCount; }
+        public  long    getCommittedCount() { return _committedCount; }
+        public  long    getAbortedCount() { return _abortedCount; }
+        public  long    getCheckpointCount() { return _checkpointCount; }
+
+        /** The slots of the operations, the ones which logged the most bytes first */
+        public  int[]   operationsBySize()
+        {
+            Integer[]   order = new Integer[ _operationCount ];
+
+            for ( int i = 0; i < order.length; i++ ) { order[ i ] = i; }
+
+            Arrays.sort
+                (
+                 order,
+                 new Comparator<Integer>()
+                 {
+                     public  int compare( Integer left, Integer right )
+                     {
+                         return Long.compare( _operationByteCounts[ right ], _operationByteCounts[ left ] );
+                     }
+                 }
+                 );
+
+            int[]   result = new int[ order.length ];
+            for ( int i = 0; i < order.length; i++ ) { result[ i ] = order[ i ]; }
+
+            return result;
+        }
+
+        /** A count per megabyte of log, rounded */
+        public  static  long    perMegabyte( long count, long byteCount )
+        {
+            return (byteCount == 0L) ? 0L : Math.round( (double) count * MEGABYTE / byteCount );
+        }
+
+        private int operationSlot( int operationFormatID )
+        {
+            int     slot = _operationSlots.get( operationFormatID );
+
+            if ( slot >= 0 ) { return slot; }
+
+            if ( _operationCount == _operationFormatIDs.length )
+            {
+                int     capacity = 2 * _operationCount;
+
+                _operationFormatIDs = Arrays.copyOf( _operationFormatIDs, capacity );
+                _operationRecordCounts = Arrays.copyOf( _operationRecordCounts, capacity );
+                _operationByteCounts = Arrays.copyOf( _operationByteCounts, capacity );
+                _operationLargestRecords = Arrays.copyOf( _operationLargestRecords, capacity );
+            }
+
+            slot = _operationCount++;
+            _operationFormatIDs[ slot ] = operationFormatID;
+            _operationSlots.put( operationFormatID, slot );
+
+            return slot;
+        }
+
+        private int groupSlot( int groups )
+        {
+            int     slot = _groupSlots.get( groups );
+
+            if ( slot >= 0 ) { return slot; }
+
+            if ( _groupCount == _groups.length )
+            {
+                int     capacity = 2 * _groupCount;
+
+                _groups = Arrays.copyOf( _groups, capacity );
+                _groupRecordCounts = Arrays.copyOf( _groupRecordCounts, capacity );
+                _groupByteCounts = Arrays.copyOf( _groupByteCounts, capacity );
+            }
+
+            slot = _groupCount++;
+            _groups[ slot ] = groups;
+            _groupSlots.put( groups, slot );
+
+            return slot;
+        }
+
+        // records arrive in log file order, so a log file is either the current one or a new one
+        private int fileSlot( long logFileNumber )
+        {
+            if ( (_fileCount > 0) && (_logFileNumbers[ _fileCount - 1 ] == logFileNumber) ) { return _fileCount - 1; }
+
+            if ( _fileCount == _logFileNumbers.length )
+            {
+                int     capacity = 2 * _fileCount;
+
+                _logFileNumbers = Arrays.copyOf( _logFileNumbers, capacity );
+                _fileRecordCounts = Arrays.copyOf( _fileRecordCounts, capacity );
+                _fileByteCounts = Arrays.copyOf( _fileByteCounts, capacity );
+                _fileTransactionCounts = Arrays.copyOf( _fileTransactionCounts, capacity );
+                _fileCommittedCounts = Arrays.copyOf( _fileCommittedCounts, capacity );
+                _fileAbortedCounts = Arrays.copyOf( _fileAbortedCounts, capacity );
+                _fileCheckpointCounts = Arrays.copyOf( _fileCheckpointCounts, capacity );
+            }
+
+            _logFileNumbers[ _fileCount ] = logFileNumber;
+
+            return _fileCount++;
+        }
+
+        /**
+         * <p>
+         * A streaming histogram of non-negative values. Bucket i holds the
+         * values which are less than 2^i but not less than 2^(i-1), along with
+         * their sum, so the histogram answers percentiles to within a factor
+         * of 2 in a fixed 1KB.
+         * </p>
+         */
+        public  static  final   class   Histogram
+        {
+            public  static  final   int BUCKET_COUNT = 64;
+
+            private long[]  _counts = new long[ BUCKET_COUNT ];
+            private long[]  _sums = new long[ BUCKET_COUNT ];
+            private long    _count;
+            private long    _sum;
+            private long    _minimum = Long.MAX_VALUE;
+            private long    _maximum;
+
+            public  void    add( long value )
+            {
+                int     bucket = Math.min( BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros( value ) );
+
+                _counts[ bucket ]++;
+                _sums[ bucket ] += value;
+                _count++;
+                _sum += value;
+                _minimum = Math.min( _minimum, value );
+                _maximum = Math.max( _maximum, value );
+            }
+
+            public  long    getCount() { return _count; }
+            public  long    getSum() { return _sum; }
+            public  long    getMinimum() { return (_count == 0L) ? 0L : _minimum; }
+            public  long    getMaximum() { return _maximum; }
+            public  long    getMean() { return (_count == 0L) ? 0L : _sum / _count; }
+
+            public  long    getCount( int bucket ) { return _counts[ bucket ]; }
+            public  long    getSum( int bucket ) { return _sums[ bucket ]; }
+
+            /** The exclusive upper bound of a bucket's values */
+            public  static  long    upperBound( int bucket )
+            {
+                return (bucket == BUCKET_COUNT - 1) ? Long.MAX_VALUE : (1L << bucket);
+            }
+
+            /** The upper bound of the bucket which holds the given fraction of the values, capped at the largest value */
+            public  long    percentile( double fraction )
+            {
+                long    wanted = (long) Math.ceil( _count * fraction );
+                long    seen = 0L;
+
+                for ( int i = 0; i < BUCKET_COUNT; i++ )
+                {
+                    seen += _counts[ i ];
+                    if ( (seen >= wanted) && (_counts[ i ] > 0) ) { return Math.min( upperBound( i ), _maximum ); }
+                }
+
+                return _maximum;
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * The tally of a comparison between two logs (-d). Records with the same
+     * log instant are compared by their lengths and then byte for byte, where
+     * the bytes lie, so that matching records are neither copied nor decoded.
+     * Only the records which differ are ever deserialized, when they are printed.
+     * </p>
+     */
+    public  static  final   class   LogComparison
+    {
+        public  static  final   String  MISMATCH = "mismatch";
+        public  static  final   String  LEFT_ONLY = "leftOnly";
+        public  static  final   String  RIGHT_ONLY = "rightOnly";
+
+        private static  final   long    NO_DIVERGENCE = -1L;
+
+        private long    _matchedCount;
+        private long    _mismatchedCount;
+        private long    _leftOnlyCount;
+        private long    _rightOnlyCount;
+        private long    _firstDivergence = NO_DIVERGENCE;
+
+        /** Compare two records with the same log instant. Returns null if they match, otherwise MISMATCH */
+        public  String  compare( LogRecordWrapper left, LogRecordWrapper right )
+        {
+            if (
+                (left.getLogRecordLengthForward() == right.getLogRecordLengthForward()) &&
+                (left.getLogRecordLengthBackward() == right.getLogRecordLengthBackward()) &&
+                sameBytes( left, right )
+                )
+            {
+                _matchedCount++;
+                return null;
+            }
+
+            _mismatchedCount++;
+            return diverge( left, MISMATCH );
+        }
+
+        /** Count a record which only the left log holds */
+        public  String  leftOnly( LogRecordWrapper left )
+        {
+            _leftOnlyCount++;
+            return diverge( left, LEFT_ONLY );
+        }
+
+        /** Count a record which only the right log holds */
+        public  String  rightOnly( LogRecordWrapper right )
+        {
+            _rightOnlyCount++;
+            return diverge( right, RIGHT_ONLY );
+        }
+
+        public  long    getMatchedCount() { return _matchedCount; }
+        public  long    getMismatchedCount() { return _mismatchedCount; }
+        public  long    getLeftOnlyCount() { return _leftOnlyCount; }
+        public  long    getRightOnlyCount() { return _rightOnlyCount; }
+
+        public  boolean diverged() { return (_firstDivergence != NO_DIVERGENCE); }
+
+        /** Get the log instant of the first record which differs */
+        public  long    getFirstDivergence() { return _firstDivergence; }
+
+        private String  diverge( LogRecordWrapper wrapper, String kind )
+        {
+            if ( _firstDivergence == NO_DIVERGENCE ) { _firstDivergence = wrapper.getLogInstant(); }
+
+            return kind;
+        }
+
+        /** ByteBuffer.equals() compares the remaining bytes, and gives up at the first one which differs */
+        private static  boolean sameBytes( LogRecordWrapper left, LogRecordWrapper right )
+        {
+            ByteBuffer  leftRecord = left.getLogRecord();
+            ByteBuffer  rightRecord = right.getLogRecord();
+
+            if ( (leftRecord == null) || (rightRecord == null) ) { return (leftRecord == rightRecord); }
+
+            return leftRecord.equals( rightRecord );
+        }
+    }
+
+    /**
+     * <p>
+     * A map from long keys to non-negative int values which stores its entries
+     * in primitive arrays, using open addressing with linear probing. Removal
+     * shifts the following entries back, so the table never fills up with
+     * tombstones.
+     * </p>
+     */
+    public  static  final   class   LongIntHashMap
+    {
+        public  static  final   int MISSING = -1;
+
+        private long[]      _keys;
+        private int[]       _values;
+        private boolean[]   _used;
+        private int         _mask;
+        private int         _size;
+
+        public  LongIntHashMap() { allocate( 64 ); }
+
+        public  int size() { return _size; }
+
+        /** Get the value for key, or MISSING */
+        public  int get( long key )
+        {
+            for ( int idx = hash( key ) & _mask; _used[ idx ]; idx = (idx + 1) & _mask )
+            {
+                if ( _keys[ idx ] == key ) { return _values[ idx ]; }
+            }
+
+            return MISSING;
+        }
+
+        public  void    put( long key, int value )
+        {
+            int     idx = hash( key ) & _mask;
+
+            for ( ; _used[ idx ]; idx = (idx + 1) & _mask )
+            {
+                if ( _keys[ idx ] == key )
+                {
+                    _values[ idx ] = value;
+                    return;
+                }
+            }
+
+            _used[ idx ] = true;
+            _keys[ idx ] = key;
+            _values[ idx ] = value;
+
+            // keep the table at most half full
+            if ( ++_size > (_mask + 1) / 2 ) { rehash( 2 * (_mask + 1) ); }
+        }
+
+        public  void    remove( long key )
+        {
+            int     idx = hash( key ) & _mask;
+
+            for ( ; ; idx = (idx + 1) & _mask )
+            {
+                if ( !_used[ idx ] ) { return; }
+                if ( _keys[ idx ] == key ) { break; }
+            }
+
+            _size--;
+
+            // move back any later entry of the probe run which would otherwise become unreachable
+            int     hole = idx;
+            for ( int next = (hole + 1) & _mask; _used[ next ]; next = (next + 1) & _mask )
+            {
+                int     home = hash( _keys[ next ] ) & _mask;
+
+                if ( ((next - home) & _mask) >= ((next - hole) & _mask) )
+                {
+                    _keys[ hole ] = _keys[ next ];
+                    _values[ hole ] = _values[ next ];
+                    hole = next;
+                }
+            }
+
+            _used[ hole ] = false;
+        }
+
+        /** Get all of the values, in no particular order */
+        public  int[]   values()
+        {
+            int[]   result = new int[ _size ];
+            int     count = 0;
+
+            for ( int idx = 0; idx <= _mask; idx++ )
+            {
+                if ( _used[ idx ] ) { result[ count++ ] = _values[ idx ]; }
+            }
+
+            return result;
+        }
+
+        private void    allocate( int capacity )
+        {
+            _keys = new long[ capacity ];
+            _values = new int[ capacity ];
+            _used = new boolean[ capacity ];
+            _mask = capacity - 1;
+        }
+
+        private void    rehash( int capacity )
+        {
+            long[]      oldKeys = _keys;
+            int[]       oldValues = _values;
+            boolean[]   oldUsed = _used;
+
+            allocate( capacity );
+            _size = 0;
+
+            for ( int i = 0; i < oldKeys.length; i++ )
+            {
+                if ( oldUsed[ i ] ) { put( oldKeys[ i ], oldValues[ i ] ); }
+            }
+        }
+
+        private static  int hash( long key )
+        {
+            long    h = key * 0x9E3779B97F4A7C15L;
+
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    /**
+     * <p>
+     * A sorted, fixed-width binary index of the records in a log file or log
+     * directory, so that records can be found by log instant with a binary
+     * search instead of a scan. The layout is:
+     * </p>
+     *
+     * <pre>
+     * int      magic number
+     * int      version
+     * int      number of log files, followed by the UTF name of each one
+     * long     number of entries, followed by the entries, sorted by log instant:
+     *
+     *          long    log instant
+     *          int     which log file the record is in
+     *          long    offset of the record in its log file
+     *          long    transaction id, or -1 if the record has none
+     *          int     group flags
+     * </pre>
+     */
+    public  static  final   class   LogIndex
+    {
+        private static  final   int MAGIC_NUMBER = 0x444C4958;     // DLIX
+        private static  final   int VERSION = 1;
+
+        public  static  final   int ENTRY_LENGTH = 8 + 4 + 8 + 8 + 4;
+
+        private RandomAccessFile    _raf;
+        private String[]    _fileNames;
+        private long        _entryCount;
+        private long        _firstEntryPosition;
+
+        // every probe reads a whole entry into this with one read, rather than a read per byte of each field
+        private ByteBuffer  _entry = ByteBuffer.allocate( ENTRY_LENGTH );
+
+        public  LogIndex( File indexFile )  throws IOException
+        {
+            _raf = new RandomAccessFile( indexFile, "r" );
+
+            if ( (_raf.readInt() != MAGIC_NUMBER) || (_raf.readInt() != VERSION) )
+            {
+                _raf.close();
+                throw new IOException( indexFile + " is not a log index." );
+            }
+
+            _fileNames = new String[ _raf.readInt() ];
+            for ( int i = 0; i < _fileNames.length; i++ ) { _fileNames[ i ] = _raf.readUTF(); }
+
+            _entryCount = _raf.readLong();
+            _firstEntryPosition = _raf.getFilePointer();
+        }
+
+        public  long    size() { return _entryCount; }
+        public  String  getFileName( int fileIndex ) { return _fileNames[ fileIndex ]; }
+
+        public  void    close() throws IOException { _raf.close(); }
+
+        /**
+         * <p>
+         * Find the first entry whose log instant is at least logInstant.
+         * Returns size() if there is no such entry.
+         * </p>
+         */
+        public  long    find( long logInstant ) throws IOException
+        {
+            long    low = 0L;
+            long    high = _entryCount;
+
+            while ( low < high )
+            {
+                long    middle = (low + high) >>> 1;
+
+                if ( readEntry( middle ).getLong( 0 ) < logInstant ) { low = middle + 1; }
+                else { high = middle; }
+            }
+
+            return low;
+        }
+
+        public  Entry   getEntry( long idx ) throws IOException
+        {
+            ByteBuffer  entry = readEntry( idx );
+
+            return new Entry( entry.getLong( 0 ), entry.getInt( 8 ), entry.getLong( 12 ), entry.getLong( 20 ), entry.getInt( 28 ) );
+        }
+
+        /** Read the raw bytes of an entry */
+        private ByteBuffer  readEntry( long idx )   throws IOException
+        {
+            _raf.seek( _firstEntryPosition + idx * ENTRY_LENGTH );
+            _raf.readFully( _entry.array() );
+
+            return _entry;
+        }
+
+        /** One record in the index */
+        public  static  final   class   Entry
+        {
+            private long    _logInstant;
+            private int     _fileIndex;
+            private long    _offset;
+            private long    _transactionID;
+            private int     _groups;
+
+            public  Entry( long logInstant, int fileIndex, long offset, long transactionID, int groups )
+            {
+                _logInstant = logInstant;
+                _fileIndex = fileIndex;
+                _offset = offset;
+                _transactionID = transactionID;
+                _groups = groups;
+            }
+
+            public  long    getLogInstant() { return _logInstant; }
+            public  int getFileIndex() { return _fileIndex; }
+            public  long    getOffset() { return _offset; }
+            public  long    getTransactionID() { return _transactionID; }
+            public  int getGroups() { return _groups; }
+        }
+
+        /**
+         * <p>
+         * Streams entries to an index file as the log is read. Entries normally
+         * arrive in log instant order. If a damaged log delivers them out of
+         * order, the entries are sorted in memory when the writer is closed.
+         * An index with too many entries to sort in one array is deleted
+         * rather than left unsorted, where lookups would miss records.
+         * </p>
+         */
+        public  static  final   class   Writer
+        {
+            private File    _indexFile;
+            private DataOutputStream    _out;
+            private long    _entryCountPosition;
+            private long    _entryCount;
+            private long    _lastLogInstant = Long.MIN_VALUE;
+            private boolean _sorted = true;
+
+            public  Writer( File indexFile, String[] fileNames )    throws IOException
+            {
+                _indexFile = indexFile;
+                _out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( indexFile ), 64 * 1024 ) );
+
+                _out.writeInt( MAGIC_NUMBER );
+                _out.writeInt( VERSION );
+                _out.writeInt( fileNames.length );
+                for ( String fileName : fileNames ) { _out.writeUTF( fileName ); }
+
+                // patched by close()
+                _entryCountPosition = _out.size();
+                _out.writeLong( 0L );
+            }
+
+            public  void    add( long logInstant, int fileIndex, long offset, long transactionID, int groups )
+                throws IOException
+            {
+                _out.writeLong( logInstant );
+                _out.writeInt( fileIndex );
+                _out.writeLong( offset );
+                _out.writeLong( transactionID );
+                _out.writeInt( groups );
+
+                if ( logInstant < _lastLogInstant ) { _sorted = false; }
+                _lastLogInstant = logInstant;
+                _entryCount++;
+            }
+
+            public  void    close() throws IOException
+            {
+                _out.close();
+
+                if ( !_sorted && (_entryCount > MAX_ARRAY_LENGTH / ENTRY_LENGTH) )
+                {
+                    _indexFile.delete();
+                    throw new IOException
+                        ( "The log delivered " + _entryCount + " records out of log instant order, which is too many to sort in memory. No index was written." );
+                }
+
+                RandomAccessFile    raf = new RandomAccessFile( _indexFile, "rw" );
+                try {
+                    raf.seek( _entryCountPosition );
+                    raf.writeLong( _entryCount );
+
+                    if ( !_sorted ) { sortEntries( raf, _entryCountPosition + 8 ); }
+                }
+                finally { raf.close(); }
+            }
+
+            /**
+             * <p>
+             * Sort the entries by log instant, keeping entries with the same
+             * instant in the order they were written. The instants are sorted
+             * as primitives, and each entry then goes to the first free slot of
+             * its instant in the sorted order.
+             * </p>
+             */
+            private void    sortEntries( RandomAccessFile raf, long firstEntryPosition ) throws IOException
+            {
+                int     entryCount = (int) _entryCount;
+                byte[]  entries = new byte[ entryCount * ENTRY_LENGTH ];
+                ByteBuffer  buffer = ByteBuffer.wrap( entries );
+
+                raf.seek( firstEntryPosition );
+                raf.readFully( entries );
+
+                long[]  sortedInstants = new long[ entryCount ];
+                for ( int i = 0; i < entryCount; i++ ) { sortedInstants[ i ] = buffer.getLong( i * ENTRY_LENGTH ); }
+                Arrays.sort( sortedInstants );
+
+                // how many entries have already gone to the slots which start at each index
+                int[]   filledSlots = new int[ entryCount ];
+                byte[]  sortedEntries = new byte[ entries.length ];
+
+                for ( int i = 0; i < entryCount; i++ )
+                {
+                    int     firstSlot = firstSlot( sortedInstants, buffer.getLong( i * ENTRY_LENGTH ) );
+                    int     slot = firstSlot + filledSlots[ firstSlot ]++;
+
+                    System.arraycopy( entries, i * ENTRY_LENGTH, sortedEntries, slot * ENTRY_LENGTH, ENTRY_LENGTH );
+                }
+
+                raf.seek( firstEntryPosition );
+                raf.write( sortedEntries );
+            }
+
+            /** The first index of logInstant in sortedInstants, which holds it */
+            private static  int firstSlot( long[] sortedInstants, long logInstant )
+            {
+                int     low = 0;
+                int     high = sortedInstants.length;
+
+                while ( low < high )
+                {
+                    int     middle = (low + high) >>> 1;
+
+                    if ( sortedInstants[ middle ] < logInstant ) { low = middle + 1; }
+                    else { high = middle; }
+                }
+
+                return low;
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * An inverted index from pages to the records which touched them, so that
+     * the history of a page can be printed without scanning the log. Every
+     * record whose operation works on a page or on a whole container gets an
+     * entry. Container operations are entered with the page number
+     * CONTAINER_PAGE. The layout is like a LogIndex's, but the entries are
+     * sorted by page and then by log instant, so the history of a page is a
+     * run of consecutive entries which a binary search finds:
+     * </p>
+     *
+     * <pre>
+     * int      magic number
+     * int      version
+     * int      number of log files, followed by the UTF name of each one
+     * long     number of entries, followed by the entries:
+     *
+     *          long    segment id
+     *          long    container id
+     *          long    page number, or -1 for an operation on the whole container
+     *          long    log instant
+     *          int     which log file the record is in
+     *          long    offset of the record in its log file
+     *          long    page (or container) version which the operation expects
+     *          int     formatable id of the operation
+     * </pre>
+     */
+    public  static  final   class   PageIndex
+    {
+        private static  final   int MAGIC_NUMBER = 0x44504958;     // DPIX
+        private static  final   int VERSION = 1;
+
+        public  static  final   int ENTRY_LENGTH = 8 + 8 + 8 + 8 + 4 + 8 + 8 + 4;
+
+        // the page number of the entries for operations on a whole container
+        public  static  final   long    CONTAINER_PAGE = -1L;
+
+        // looks up every entry of a container, whatever its page
+        public  static  final   long    ALL_PAGES = -2L;
+
+        private RandomAccessFile    _raf;
+        private String[]    _fileNames;
+        private long        _entryCount;
+        private long        _firstEntryPosition;
+
+        // every probe reads a whole entry into this with one read, rather than a read per byte of each field
+        private ByteBuffer  _entry = ByteBuffer.allocate( ENTRY_LENGTH );
+
+        public  PageIndex( File indexFile )  throws IOException
+        {
+            _raf = new RandomAccessFile( indexFile, "r" );
+
+            if ( (_raf.readInt() != MAGIC_NUMBER) || (_raf.readInt() != VERSION) )
+            {
+                _raf.close();
+                throw new IOException( indexFile + " is not a page index." );
+            }
+
+            _fileNames = new String[ _raf.readInt() ];
+            for ( int i = 0; i < _fileNames.length; i++ ) { _fileNames[ i ] = _raf.readUTF(); }
+
+            _entryCount = _raf.readLong();
+            _firstEntryPosition = _raf.getFilePointer();
+        }
+
+        public  long    size() { return _entryCount; }
+        public  String  getFileName( int fileIndex ) { return _fileNames[ fileIndex ]; }
+
+        public  void    close() throws IOException { _raf.close(); }
+
+        /**
+         * <p>
+         * Get the entries for a page, or for a whole container if pageNumber is
+         * ALL_PAGES, in log instant order.
+         * </p>
+         */
+        public  ArrayList<Entry>    find( long segmentID, long containerID, long pageNumber ) throws IOException
+        {
+            long    firstPage = (pageNumber == ALL_PAGES) ? Long.MIN_VALUE : pageNumber;
+            long    lastPage = (pageNumber == ALL_PAGES) ? Long.MAX_VALUE : pageNumber;
+            long    low = 0L;
+            long    high = _entryCount;
+
+            // find the first entry which is not before the page
+            while ( low < high )
+            {
+                long        middle = (low + high) >>> 1;
+                ByteBuffer  entry = readEntry( middle );
+
+                if ( compareKeys( entry.getLong( 0 ), entry.getLong( 8 ), entry.getLong( 16 ), segmentID, containerID, firstPage ) < 0 ) { low = middle + 1; }
+                else { high = middle; }
+            }
+
+            ArrayList<Entry>    entries = new ArrayList<Entry>();
+
+            for ( long idx = low; idx < _entryCount; idx++ )
+            {
+                Entry   entry = getEntry( idx );
+
+                if ( compareKeys( entry.getSegmentID(), entry.getContainerID(), entry.getPageNumber(), segmentID, containerID, lastPage ) > 0 ) { break; }
+                entries.add( entry );
+            }
+
+            // the pages of a container each have their own run of entries
+            if ( pageNumber == ALL_PAGES )
+            {
+                Collections.sort
+                    (
+                     entries,
+                     new Comparator<Entry>()
+                     {
+                         public  int compare( Entry left, Entry right ) { return Long.compare( left.getLogInstant(), right.getLogInstant() ); }
+                     }
+                     );
+            }
+
+            return entries;
+        }
+
+        public  Entry   getEntry( long idx ) throws IOException
+        {
+            ByteBuffer  entry = readEntry( idx );
+
+            return new Entry
+                (
+                 entry.getLong( 0 ), entry.getLong( 8 ), entry.getLong( 16 ), entry.getLong( 24 ),
+                 entry.getInt( 32 ), entry.getLong( 36 ), entry.getLong( 44 ), entry.getInt( 52 )
+                 );
+        }
+
+        /** Read the raw bytes of an entry */
+        private ByteBuffer  readEntry( long idx )   throws IOException
+        {
+            _raf.seek( _firstEntryPosition + idx * ENTRY_LENGTH );
+            _raf.readFully( _entry.array() );
+
+            return _entry;
+        }
+
+        private static  int compareKeys( long leftSegment, long leftContainer, long leftPage, long rightSegment, long rightContainer, long rightPage )
+        {
+            if ( leftSegment != rightSegment ) { return Long.compare( leftSegment, rightSegment ); }
+            if ( leftContainer != rightContainer ) { return Long.compare( leftContainer, rightContainer ); }
+
+            return Long.compare( leftPage, rightPage );
+        }
+
+        /** One record which touched a page */
+        public  static  final   class   Entry
+        {
+            private long    _segmentID;
+            private long    _containerID;
+            private long    _pageNumber;
+            private long    _logInstant;
+            private int     _fileIndex;
+            private long    _offset;
+            private long    _version;
+            private int     _operationFormatID;
+
+            public  Entry( long segmentID, long containerID, long pageNumber, long logInstant, int fileIndex, long offset, long version, int operationFormatID )
+            {
+                _segmentID = segmentID;
+                _containerID = containerID;
+                _pageNumber = pageNumber;
+                _logInstant = logInstant;
+                _fileIndex = fileIndex;
+                _offset = offset;
+                _version = version;
+                _operationFormatID = operationFormatID;
+            }
+
+            public  long    getSegmentID() { return _segmentID; }
+            public  long    getContainerID() { return _containerID; }
+            public  long    getPageNumber() { return _pageNumber; }
+            public  long    getLogInstant() { return _logInstant; }
+            public  int getFileIndex() { return _fileIndex; }
+            public  long    getOffset() { return _offset; }
+            public  long    getVersion() { return _version; }
+            public  int getOperationFormatID() { return _operationFormatID; }
+        }
+
+        /**
+         * <p>
+         * Collects entries as the log is read and writes them to an index file,
+         * sorted by page, when it is closed. The entries are gathered in runs of
+         * RUN_LENGTH. A full run is sorted and spilled to a temporary file next
+         * to the index, and closing merges the runs, so memory does not grow
+         * with the size of the log.
+         * </p>
+         */
+        public  static  final   class   Writer
+        {
+            public  static  final   int RUN_LENGTH = 256 * 1024;
+
+            private File        _indexFile;
+            private String[]    _fileNames;
+
+            // the run being gathered
+            private byte[]      _run = new byte[ RUN_LENGTH * ENTRY_LENGTH ];
+            private ByteBuffer  _runBuffer = ByteBuffer.wrap( _run );
+            private int         _runCount;
+
+            // the runs which have been spilled
+            private ArrayList<File> _runFiles = new ArrayList<File>();
+
+            private long        _entryCount;
+            private long        _pageCount;
+
+            public  Writer( File indexFile, String[] fileNames )
+            {
+                _indexFile = indexFile;
+                _fileNames = fileNames;
+            }
+
+            public  long    getEntryCount() { return _entryCount; }
+
+            /** Get the number of distinct pages (and containers) in the index, once it has been closed */
+            public  long    getPageCount() { return _pageCount; }
+
+            public  void    add( long segmentID, long containerID, long pageNumber, long logInstant, int fileIndex, long offset, long version, int operationFormatID )
+                throws IOException
+            {
+                if ( _runCount == RUN_LENGTH ) { spill(); }
+
+                _runBuffer.position( _runCount * ENTRY_LENGTH );
+                _runBuffer.putLong( segmentID ).putLong( containerID ).putLong( pageNumber ).putLong( logInstant );
+                _runBuffer.putInt( fileIndex ).putLong( offset ).putLong( version ).putInt( operationFormatID );
+
+                _runCount++;
+                _entryCount++;
+            }
+
+            /** Write the index, and throw away the spilled runs */
+            public  void    close() throws IOException
+            {
+                DataOutputStream    out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( _indexFile ), 64 * 1024 ) );
+
+                try {
+                    out.writeInt( MAGIC_NUMBER );
+                    out.writeInt( VERSION );
+                    out.writeInt( _fileNames.length );
+                    for ( String fileName : _fileNames ) { out.writeUTF( fileName ); }
+                    out.writeLong( _entryCount );
+
+                    if ( _runFiles.isEmpty() ) { writeRun( out, sortRun() ); }
+                    else
+                    {
+                        spill();
+                        mergeRuns( out );
+                    }
+                }
+                finally
+                {
+                    out.close();
+                    for ( File runFile : _runFiles ) { runFile.delete(); }
+                    _runFiles.clear();
+                }
+            }
+
+            /** Sort the run being gathered and write it to a temporary file */
+            private void    spill() throws IOException
+            {
+                File    runFile = File.createTempFile( _indexFile.getName() + "-", ".run", _indexFile.getAbsoluteFile().getParentFile() );
+                _runFiles.add( runFile );
+
+                DataOutputStream    out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( runFile ), 64 * 1024 ) );
+                try {
+                    Integer[]   order = sortRun();
+
+                    // pages are counted when the runs are merged
+                    for ( int entry : order ) { out.write( _run, entry * ENTRY_LENGTH, ENTRY_LENGTH ); }
+                }
+                finally { out.close(); }
+
+                _runCount = 0;
+            }
+
+            /** Get the order of the entries in the run being gathered */
+            private Integer[]   sortRun()
+            {
+                Integer[]   order = new Integer[ _runCount ];
+                for ( int i = 0; i < order.length; i++ ) { order[ i ] = i; }
+
+                Arrays.sort
+                    (
+                     order,
+                     new Comparator<Integer>()
+                     {
+                         public  int compare( Integer left, Integer right )
+                         {
+                             return compareEntries( _runBuffer, left * ENTRY_LENGTH, _runBuffer, right * ENTRY_LENGTH );
+                         }
+                     }
+                     );
+
+                return order;
+            }
+
+            private void    writeRun( DataOutputStream out, Integer[] order ) throws IOException
+            {
+                int     previous = -1;
+
+                for ( int entry : order )
+                {
+                    if ( (previous < 0) || !samePage( _runBuffer, previous * ENTRY_LENGTH, _runBuffer, entry * ENTRY_LENGTH ) ) { _pageCount++; }
+
+                    out.write( _run, entry * ENTRY_LENGTH, ENTRY_LENGTH );
+                    previous = entry;
+                }
+            }
+
+            /** Merge the spilled runs, always taking the smallest of their next entries */
+            private void    mergeRuns( DataOutputStream out ) throws IOException
+            {
+                ArrayList<Run>  runs = new ArrayList<Run>();
+                ByteBuffer      previous = ByteBuffer.allocate( ENTRY_LENGTH );
+                boolean         first = true;
+
+                try {
+                    for ( File runFile : _runFiles )
+                    {
+                        Run     run = new Run( runFile );
+
+                        if ( run.next() ) { runs.add( run ); }
+                        else { run.close(); }
+                    }
+
+                    // a run is only a few hundred thousand entries, so there are few enough runs to scan for the smallest
+                    while ( !runs.isEmpty() )
+                    {
+                        int     smallest = 0;
+
+                        for ( int i = 1; i < runs.size(); i++ )
+                        {
+                            if ( compareEntries( runs.get( i )._entry, 0, runs.get( smallest )._entry, 0 ) < 0 ) { smallest = i; }
+                        }
+
+                        Run     run = runs.get( smallest );
+
+                        if ( first || !samePage( previous, 0, run._entry, 0 ) ) { _pageCount++; }
+                        first = false;
+
+                        out.write( run._entry.array(), 0, ENTRY_LENGTH );
+                        System.arraycopy( run._entry.array(), 0, previous.array(), 0, ENTRY_LENGTH );
+
+                        if ( !run.next() )
+                        {
+                            run.close();
+                            runs.remove( smallest );
+                        }
+                    }
+                }
+                finally
+                {
+                    for ( Run run : runs ) { run.close(); }
+                }
+            }
+
+            /** Order entries by page and then by log instant */
+            private static  int compareEntries( ByteBuffer left, int leftOffset, ByteBuffer right, int rightOffset )
+            {
+                for ( int field = 0; field < 4; field++ )
+                {
+                    long    leftValue = left.getLong( leftOffset + 8 * field );
+                    long    rightValue = right.getLong( rightOffset + 8 * field );
+
+                    if ( leftValue != rightValue ) { return Long.compare( leftValue, rightValue ); }
+                }
+
+                return 0;
+            }
+
+            private static  boolean samePage( ByteBuffer left, int leftOffset, ByteBuffer right, int rightOffset )
+            {
+                return (left.getLong( leftOffset ) == right.getLong( rightOffset )) &&
+                    (left.getLong( leftOffset + 8 ) == right.getLong( rightOffset + 8 )) &&
+                    (left.getLong( leftOffset + 16 ) == right.getLong( rightOffset + 16 ));
+            }
+
+            /** A spilled run being merged, positioned on its next entry */
+            private static  final   class   Run
+            {
+                private DataInputStream _in;
+                private ByteBuffer      _entry = ByteBuffer.allocate( ENTRY_LENGTH );
+
+                private Run( File runFile ) throws IOException
+                {
+                    _in = new DataInputStream( new BufferedInputStream( new FileInputStream( runFile ), 64 * 1024 ) );
+                }
+
+                /** Read the next entry. Returns false at the end of the run */
+                private boolean next() throws IOException
+                {
+                    try {
+                        _in.readFully( _entry.array() );
+                        return true;
+                    }
+                    catch (EOFException eof) { return false; }
+                }
+
+                private void    close() throws IOException { _in.close(); }
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * The logN.dat files in a Derby log directory, ordered by the log file
+     * numbers in their headers. Files with a damaged header are ordered by
+     * the number in their file name.
+     * </p>
+     */
+    public  static  final   class   LogDirectory
+    {
+        public  static  final   Pattern LOG_FILE_NAME = Pattern.compile( "log(\\d+)\\.dat" );
+
+        private File    _directory;
+        private ArrayList<LogFileHeader>    _headers;
+
+        public  LogDirectory( File directory )  throws IOException
+        {
+            this( directory, readHeaders( directory ) );
+        }
+
+        /** Order the headers of log files which were found some other way, e.g. in a tarball */
+        public  LogDirectory( File directory, ArrayList<LogFileHeader> headers )
+        {
+            _directory = directory;
+            _headers = headers;
+
+            Collections.sort
+                (
+                 _headers,
+                 new Comparator<LogFileHeader>()
+                 {
+                     public  int compare( LogFileHeader left, LogFileHeader right )
+                     {
+                         return Long.compare( logFileNumber( left ), logFileNumber( right ) );
+                     }
+                 }
+                 );
+        }
+
+        public  File    getDirectory() { return _directory; }
+        public  int size() { return _headers.size(); }
+        public  LogFileHeader   getHeader( int idx ) { return _headers.get( idx ); }
+        public  ArrayList<LogFileHeader>    getHeaders() { return _headers; }
+
+        private static  ArrayList<LogFileHeader>    readHeaders( File directory )   throws IOException
+        {
+            ArrayList<LogFileHeader>    headers = new ArrayList<LogFileHeader>();
+
+            File[]  files = directory.listFiles();
+            if ( files == null ) { throw new IOException( "Cannot list the contents of " + directory ); }
+
+            for ( File file : files )
+            {
+                if ( file.isFile() && LOG_FILE_NAME.matcher( file.getName() ).matches() )
+                {
+                    headers.add( new LogFileHeader( file ) );
+                }
+            }
+
+            return headers;
+        }
+
+        private static  long    logFileNumber( LogFileHeader header )
+        {
+            if ( header.isValid() ) { return header.getLogFileNumber(); }
+
+            Matcher matcher = LOG_FILE_NAME.matcher( header.getFile().getName() );
+            matcher.matches();
+
+            return Long.parseLong( matcher.group( 1 ) );
+        }
+    }
+
+    /**
+     * <p>
+     * A log which has been archived: either a single log file compressed by
+     * gzip, xz or zstd, or a tarball of a log directory, compressed or not.
+     * The archive is read as a stream, without unpacking it onto disk. gzip is
+     * decompressed by the JDK, on a DecompressionPipeline. The JDK cannot read
+     * xz or zstd, so those programs are run to decompress into a pipe, which
+     * overlaps with parsing just the same. Compression is recognized by the
+     * magic number at the start of the file, and a tarball by the ustar magic
+     * in its first header, so file names do not matter.
+     * </p>
+     *
+     * <p>
+     * The log files of a tarball lie in whatever order the archiver found
+     * them in, which is seldom log file order. So the tarball is first read
+     * through once to list the log files and their headers. After that, the
+     * log files are read in log file order by passes over the tarball. When
+     * a pass has to go by log files which will be wanted later, it keeps them
+     * in memory, up to a quarter of the heap, and a log file which is neither
+     * kept nor ahead of the pass starts a new pass. So a tarball whose log
+     * files fit in that much memory takes one pass however it is ordered, and
+     * a bigger one takes one pass per stretch of log files which are out of
+     * order. Only one log file can be open at a time.
+     * </p>
+     */
+    public  static  final   class   LogArchive
+    {
+        public  static  final   String  GZIP = "gzip";
+        public  static  final   String  XZ = "xz";
+        public  static  final   String  ZSTD = "zstd";
+
+        private static  final   byte[]  GZIP_MAGIC = { (byte) 0x1f, (byte) 0x8b };
+        private static  final   byte[]  XZ_MAGIC = { (byte) 0xfd, '7', 'z', 'X', 'Z', 0 };
+        private static  final   byte[]  ZSTD_MAGIC = { (byte) 0x28, (byte) 0xb5, (byte) 0x2f, (byte) 0xfd };
+
+        // tarballs are made of 512 byte blocks. every entry starts with a header block
+        public  static  final   int TAR_BLOCK_SIZE = 512;
+
+        private static  final   byte[]  TAR_MAGIC = { 'u', 's', 't', 'a', 'r' };
+        private static  final   int TAR_MAGIC_OFFSET = 257;
+        private static  final   byte[]  POSIX_TAR_MAGIC = { 'u', 's', 't', 'a', 'r', 0 };
+
+        private static  final   int STREAM_BUFFER_SIZE = 64 * 1024;
+
+        // how many bytes of log files, which a pass goes by before they are wanted, may be kept in memory
+        private static  final   long    STASH_LIMIT = Runtime.getRuntime().maxMemory() / 4;
+
+        // constructor args
+        private File        _file;
+        private String      _compression;
+        private boolean     _tarball;
+
+        // the log files in the tarball, in the order in which they lie in it, and all of their headers in log file order
+        private ArrayList<File>             _entryFiles;
+        private ArrayList<LogFileHeader>    _headers;
+        private HashMap<File,Integer>       _logOrder;
+
+        // log files which a pass went by before they were wanted
+        private HashMap<File,byte[]>        _stash = new HashMap<File,byte[]>();
+        private long                        _stashedBytes;
+
+        // the pass under way, and how many of the tarball's log files it has reached
+        private InputStream _pass;
+        private int         _passEntry;
+
+        // the size of the tarball entry which the pass is in, and how much of it has been read
+        private long        _entrySize;
+        private long        _entryRead;
+
+        private byte[]      _tarHeader = new byte[ TAR_BLOCK_SIZE ];
+
+        private LogArchive( File file, String compression, boolean tarball )
+        {
+            _file = file;
+            _compression = compression;
+            _tarball = tarball;
+        }
+
+        /**
+         * <p>
+         * Get the archive which a file holds, or null if the file is not an
+         * archive, e.g. because it is a log file or a directory.
+         * </p>
+         */
+        public  static  LogArchive  forFile( File file )    throws IOException
+        {
+            if ( !file.isFile() ) { return null; }
+
+            byte[]  head = readHead( new FileInputStream( file ) );
+            String  compression = compression( head );
+
+            if ( compression == null ) { return isTarball( head ) ? new LogArchive( file, null, true ) : null; }
+
+            // peek at the decompressed bytes for a tarball header
+            LogArchive  archive = new LogArchive( file, compression, false );
+
+            archive.startPass();
+            try {
+                archive._tarball = isTarball( readHead( archive._pass ) );
+            }
+            finally { archive.closePass(); }
+
+            return archive;
+        }
+
+        /** Return true if a file is an archive, without decompressing it */
+        public  static  boolean isArchive( File file )
+        {
+            if ( !file.isFile() ) { return false; }
+
+            try {
+                byte[]  head = readHead( new FileInputStream( file ) );
+
+                return (compression( head ) != null) || isTarball( head );
+            }
+            catch (IOException ioe) { return false; }
+        }
+
+        public  File    getFile() { return _file; }
+        public  boolean isTarball() { return _tarball; }
+
+        /** gzip, xz, zstd, or null if the archive is not compressed */
+        public  String  getCompression() { return _compression; }
+
+        /**
+         * <p>
+         * Get the headers of the log files in the archive, in log file order.
+         * The log file of a compressed log file is the archive itself. The log
+         * files in a tarball are named after their paths in it, under the
+         * archive.
+         * </p>
+         */
+        public  ArrayList<LogFileHeader>    getHeaders()    throws IOException
+        {
+            if ( _headers != null ) { return _headers; }
+
+            ArrayList<LogFileHeader>    headers = new ArrayList<LogFileHeader>();
+
+            closePass();
+            startPass();
+            try {
+                if ( !_tarball )
+                {
+                    _entrySize = Long.MAX_VALUE;
+                    headers.add( readFileHeader( _file ) );
+                }
+                else
+                {
+                    _entryFiles = new ArrayList<File>();
+                    try {
+                        String  name;
+                        while ( (name = nextTarEntry()) != null )
+                        {
+                            if ( !isLogFile( name ) ) { continue; }
+
+                            File    file = new File( _file, name );
+
+                            _entryFiles.add( file );
+                            headers.add( readFileHeader( file ) );
+                        }
+                    }
+                    // a damaged or truncated tarball is listed as far as it can be read, just like a
+                    // truncated tarball which ends between entries. reading the damaged log file reports the damage
+                    catch (IOException ioe) {}
+
+                    headers = new LogDirectory( _file, headers ).getHeaders();
+
+                    _logOrder = new HashMap<File,Integer>();
+                    for ( int i = 0; i < headers.size(); i++ ) { _logOrder.put( headers.get( i ).getFile(), i ); }
+                }
+            }
+            finally { closePass(); }
+
+            _headers = headers;
+
+            return _headers;
+        }
+
+        /**
+         * <p>
+         * Open one of the log files in the archive, positioned at its start.
+         * </p>
+         */
+        public  Entry   open( File file )   throws IOException
+        {
+            if ( !_tarball )
+            {
+                closePass();
+                startPass();
+                _entrySize = Long.MAX_VALUE;
+
+                return new Entry( this, null );
+            }
+
+            getHeaders();
+
+            byte[]  stashed = _stash.remove( file );
+
+            if ( stashed != null )
+            {
+                _stashedBytes -= stashed.length;
+                return new Entry( this, stashed );
+            }
+
+            int     wanted = _entryFiles.indexOf( file );
+
+            if ( wanted < 0 ) { throw new IOException( file.getName() + " is not one of the log files in " + _file ); }
+
+            if ( (_pass == null) || (wanted < _passEntry) )
+            {
+                closePass();
+                startPass();
+            }
+
+            while ( _passEntry <= wanted )
+            {
+                String  name = nextTarEntry();
+
+                if ( name == null ) { throw new IOException( _file + " ended before " + file.getName() + " could be read." ); }
+                if ( !isLogFile( name ) ) { continue; }
+
+                File    passed = _entryFiles.get( _passEntry++ );
+
+                // log files are read in log file order, so the ones after this one are still to come
+                if ( !passed.equals( file ) && (_logOrder.get( passed ) > _logOrder.get( file )) ) { stash( passed ); }
+            }
+
+            return new Entry( this, null );
+        }
+
+        /** Stop the pass under way, if any, and forget the log files which it kept */
+        public  void    close() throws IOException
+        {
+            _stash.clear();
+            _stashedBytes = 0L;
+
+            closePass();
+        }
+
+        private void    closePass() throws IOException
+        {
+            if ( _pass == null ) { return; }
+
+            try {
+                _pass.close();
+            }
+            finally { _pass = null; }
+        }
+
+        /**
+         * Keep the log file which the pass is in, if it is not kept already and there is room for it.
+         * A log file too long for one byte array is never kept, and is read again by a later pass instead.
+         */
+        private void    stash( File file )  throws IOException
+        {
+            long    size = _entrySize - _entryRead;
+
+            if ( _stash.containsKey( file ) || (size > MAX_ARRAY_LENGTH) || (_stashedBytes + size > STASH_LIMIT) ) { return; }
+
+            byte[]  bytes = new byte[ (int) size ];
+
+            if ( !readFully( bytes, bytes.length ) ) { return; }
+
+            _entryRead += bytes.length;
+            _stash.put( file, bytes );
+            _stashedBytes += bytes.length;
+        }
+
+        private void    startPass() throws IOException
+        {
+            InputStream in;
+
+            if ( GZIP.equals( _compression ) )
+            {
+                in = new GZIPInputStream( new FileInputStream( _file ), STREAM_BUFFER_SIZE );
+            }
+            else if ( _compression != null ) { in = new DecompressorProcess( _compression, _file ); }
+            else { in = new FileInputStream( _file ); }
+
+            // on a single processor the two threads would only take turns
+            if ( (_compression != null) && (Runtime.getRuntime().availableProcessors() > 1) ) { in = new DecompressionPipeline( in ); }
+            else { in = new BufferedInputStream( in, STREAM_BUFFER_SIZE ); }
+
+            _pass = in;
+            _passEntry = 0;
+            _entrySize = 0L;
+            _entryRead = 0L;
+        }
+
+        /**
+         * <p>
+         * Move the pass on to the next file in the tarball and return its path,
+         * or null at the end of the tarball. Directories, links and the other
+         * kinds of entry are skipped. Long paths are read out of GNU long name
+         * entries or out of the POSIX prefix field.
+         * </p>
+         */
+        private String  nextTarEntry()  throws IOException
+        {
+            String  longName = null;
+
+            while ( true )
+            {
+                long    unread = _entrySize - _entryRead;
+                long    padding = (TAR_BLOCK_SIZE - (_entrySize % TAR_BLOCK_SIZE)) % TAR_BLOCK_SIZE;
+
+                if ( !skipFully( unread + padding ) ) { return null; }
+
+                if ( !readFully( _tarHeader, _tarHeader.length ) ) { return null; }
+
+                // the end of the tarball is marked by blocks of zeros
+                if ( _tarHeader[ 0 ] == 0 ) { return null; }
+
+                byte    type = _tarHeader[ 156 ];
+
+                _entrySize = tarSize( _tarHeader );
+                _entryRead = 0L;
+
+                if ( type == 'L' )
+                {
+                    byte[]  name = new byte[ (int) Math.min( _entrySize, MAX_ARRAY_LENGTH ) ];
+
+                    if ( !readFully( name, name.length ) ) { return null; }
+                    _entryRead = name.length;
+
+                    longName = tarString( name, 0, name.length );
+                    continue;
+                }
+
+                String  name = (longName != null) ? longName : tarName( _tarHeader );
+
+                longName = null;
+                if ( (type == '0') || (type == 0) ) { return name; }
+            }
+        }
+
+        private LogFileHeader   readFileHeader( File file ) throws IOException
+        {
+            // a file which is too short to hold a header gets an invalid one, as it does on disk
+            byte[]  bytes = new byte[ LogFileHeader.LENGTH ];
+            int     length = (int) Math.min( bytes.length, _entrySize - _entryRead );
+
+            if ( (length < bytes.length) || !readFully( bytes, length ) ) { Arrays.fill( bytes, (byte) 0 ); }
+            else { _entryRead += length; }
+
+            return new LogFileHeader( file, new DataInputStream( new ByteArrayInputStream( bytes ) ) );
+        }
+
+        /** Read bytes of the pass into the start of buffer, returning false if the pass ended first */
+        private boolean readFully( byte[] buffer, int length )  throws IOException
+        {
+            int     count = 0;
+
+            while ( count < length )
+            {
+                int     bytesRead = _pass.read( buffer, count, length - count );
+
+                if ( bytesRead < 0 ) { return false; }
+                count += bytesRead;
+            }
+
+            return true;
+        }
+
+        /** Skip bytes of the pass, returning false if the pass ended first */
+        private boolean skipFully( long count ) throws IOException
+        {
+            while ( count > 0 )
+            {
+                long    skipped = _pass.skip( count );
+
+                if ( skipped <= 0 )
+                {
+                    if ( _pass.read() < 0 ) { return false; }
+                    skipped = 1;
+                }
+                count -= skipped;
+            }
+
+            return true;
+        }
+
+        private static  boolean isLogFile( String path )
+        {
+            return LogDirectory.LOG_FILE_NAME.matcher( path.substring( path.lastIndexOf( '/' ) + 1 ) ).matches();
+        }
+
+        /** Read up to the first tar header's magic number out of a stream, and close it */
+        private static  byte[]  readHead( InputStream in )  throws IOException
+        {
+            byte[]  head = new byte[ TAR_MAGIC_OFFSET + POSIX_TAR_MAGIC.length ];
+
+            try {
+                int     count = 0;
+
+                while ( count < head.length )
+                {
+                    int     bytesRead = in.read( head, count, head.length - count );
+
+                    if ( bytesRead < 0 ) { return Arrays.copyOf( head, count ); }
+                    count += bytesRead;
+                }
+
+                return head;
+            }
+            finally { in.close(); }
+        }
+
+        private static  String  compression( byte[] head )
+        {
+            if ( startsWith( head, 0, GZIP_MAGIC ) ) { return GZIP; }
+            else if ( startsWith( head, 0, XZ_MAGIC ) ) { return XZ; }
+            else if ( startsWith( head, 0, ZSTD_MAGIC ) ) { return ZSTD; }
+            else { return null; }
+        }
+
+        private static  boolean isTarball( byte[] head ) { return startsWith( head, TAR_MAGIC_OFFSET, TAR_MAGIC ); }
+
+        private static  boolean startsWith( byte[] bytes, int offset, byte[] prefix )
+        {
+            if ( bytes.length < offset + prefix.length ) { return false; }
+
+            for ( int i = 0; i < prefix.length; i++ )
+            {
+                if ( bytes[ offset + i ] != prefix[ i ] ) { return false; }
+            }
+
+            return true;
+        }
+
+        /** The size field of a tar header: octal digits, or a big-endian number if its high bit is set */
+        private static  long    tarSize( byte[] header )
+        {
+            long    size = 0L;
+
+            if ( (header[ 124 ] & 0x80) != 0 )
+            {
+                for ( int i = 125; i < 136; i++ ) { size = (size << 8) | (header[ i ] & 0xff); }
+
+                return size;
+            }
+
+            for ( int i = 124; i < 136; i++ )
+            {
+                byte    digit = header[ i ];
+
+                if ( (digit >= '0') && (digit <= '7') ) { size = (size << 3) | (digit - '0'); }
+                else if ( size > 0 ) { break; }
+            }
+
+            return size;
+        }
+
+        private static  String  tarName( byte[] header )
+        {
+            String  name = tarString( header, 0, 100 );
+
+            if ( !startsWith( header, TAR_MAGIC_OFFSET, POSIX_TAR_MAGIC ) ) { return name; }
+
+            String  prefix = tarString( header, 345, 155 );
+
+            return (prefix.length() == 0) ? name : prefix + "/" + name;
+        }
+
+        /** A NUL-terminated string field of a tar header */
+        private static  String  tarString( byte[] bytes, int offset, int length )
+        {
+            int     end = offset;
+
+            while ( (end < offset + length) && (bytes[ end ] != 0) ) { end++; }
+
+            return new String( bytes, offset, end - offset, StandardCharsets.UTF_8 );
+        }
+
+        /**
+         * <p>
+         * One log file in the archive, read either through the pass or out of
+         * memory, if the log file was kept. Closing it leaves the pass open for
+         * the next log file, unless the pass has reached the end of the log
+         * files in the archive.
+         * </p>
+         */
+        public  static  final   class   Entry   extends InputStream
+        {
+            private LogArchive  _archive;
+
+            // the bytes of a log file which was kept, and the next one to read
+            private byte[]      _bytes;
+            private int         _next;
+
+            private Entry( LogArchive archive, byte[] bytes )
+            {
+                _archive = archive;
+                _bytes = bytes;
+            }
+
+            /** The number of bytes of the log file which have been read */
+            public  long    position() { return (_bytes != null) ? _next : _archive._entryRead; }
+
+            public  int read()  throws IOException
+            {
+                if ( _bytes != null ) { return (_next < _bytes.length) ? (_bytes[ _next++ ] & 0xff) : -1; }
+
+                if ( _archive._entryRead >= _archive._entrySize ) { return -1; }
+
+                int     b = _archive._pass.read();
+
+                if ( b >= 0 ) { _archive._entryRead++; }
+
+                return b;
+            }
+
+            public  int read( byte[] buffer, int offset, int length )   throws IOException
+            {
+                long    remaining = (_bytes != null) ? (_bytes.length - _next) : (_archive._entrySize - _archive._entryRead);
+
+                if ( length == 0 ) { return 0; }
+                if ( remaining <= 0 ) { return -1; }
+
+                int     count = (int) Math.min( length, remaining );
+
+                if ( _bytes != null )
+                {
+                    System.arraycopy( _bytes, _next, buffer, offset, count );
+                    _next += count;
+
+                    return count;
+                }
+
+                int     bytesRead = _archive._pass.read( buffer, offset, count );
+
+                if ( bytesRead > 0 ) { _archive._entryRead += bytesRead; }
+
+                return bytesRead;
+            }
+
+            /** Skip forward to a position in the log file. An archive cannot be read backward */
+            public  void    seek( long position )   throws IOException
+            {
+                if ( position < position() )
+                {
+                    throw new IOException( "Cannot move back to position " + position + " in " + _archive._file + ", which can only be read forward." );
+                }
+
+                if ( _bytes != null ) { _next = (int) Math.min( position, _bytes.length ); }
+
+                while ( position() < position )
+                {
+                    long    skipped = (_bytes != null) ? 0L : _archive._pass.skip( Math.min( position - position(), _archive._entrySize - position() ) );
+
+                    if ( skipped > 0 ) { _archive._entryRead += skipped; }
+                    else if ( read() < 0 )
+                    {
+                        throw new IOException( "Cannot move to position " + position + " because the log file is only " + position() + " bytes long." );
+                    }
+                }
+            }
+
+            public  void    close() throws IOException
+            {
+                _bytes = null;
+
+                if ( !_archive._tarball || (_archive._passEntry == _archive._entryFiles.size()) ) { _archive.closePass(); }
+            }
+        }
+
+        /**
+         * <p>
+         * The output of a decompressor which runs as a program of its own. Its
+         * error messages go to our stderr, and if it fails, the end of its
+         * output is an IOException.
+         * </p>
+         */
+        private static  final   class   DecompressorProcess extends FilterInputStream
+        {
+            private String  _command;
+            private Process _process;
+
+            private DecompressorProcess( String command, File file )  throws IOException
+            {
+                super( null );
+
+                _command = command;
+                try {
+                    _process = new ProcessBuilder( command, "-dc", file.getPath() )
+                        .redirectError( ProcessBuilder.Redirect.INHERIT )
+                        .start();
+                }
+                catch (IOException ioe)
+                {
+                    throw new IOException( "Cannot decompress " + file + " because " + command + " could not be run: " + ioe.getMessage(), ioe );
+                }
+
+                in = _process.getInputStream();
+            }
+
+            public  int read()  throws IOException
+            {
+                int     b = super.read();
+
+                if ( b < 0 ) { checkExitStatus(); }
+
+                return b;
+            }
+
+            public  int read( byte[] buffer, int offset, int length )   throws IOException
+            {
+                int     bytesRead = super.read( buffer, offset, length );
+
+                if ( bytesRead < 0 ) { checkExitStatus(); }
+
+                return bytesRead;
+            }
+
+            public  void    close() throws IOException
+            {
+                _process.destroy();
+                super.close();
+            }
+
+            private void    checkExitStatus()   throws IOException
+            {
+                try {
+                    int     status = _process.waitFor();
+
+                    if ( status != 0 ) { throw new IOException( _command + " -dc exited with status " + status + "." ); }
+                }
+                catch (InterruptedException ie) { throw new InterruptedIOException( "Interrupted while waiting for " + _command + " to finish." ); }
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * A range of a log file which starts on a record boundary, so that it can
+     * be decoded independently of the rest of the file. After a worker has
+     * decoded it, the chunk carries the rendered output back to the thread
+     * which reassembles the log.
+     * </p>
+     */
+    public  static  final   class   LogChunk
+    {
+        // how far past the target offset to look for a record boundary
+        private static  final   int SEARCH_WINDOW = 64 * 1024;
+
+        private LogFileHeader   _header;
+        private long    _startPosition;
+        private long    _endPosition;
+        private boolean _firstInFile;
+
+        // filled in by the worker
+        private byte[]  _output;
+        private int[]   _recordEnds = new int[ 64 ];
+        private int     _recordCount;
+        private long    _lastRecordEnd;
+        private Throwable   _error;
+
+        public  LogChunk( LogFileHeader header, long startPosition, long endPosition, boolean firstInFile )
+        {
+            _header = header;
+            _startPosition = startPosition;
+            _endPosition = endPosition;
+            _firstInFile = firstInFile;
+        }
+
+        public  LogFileHeader   getHeader() { return _header; }
+        public  long    getStartPosition() { return _startPosition; }
+        public  long    getEndPosition() { return _endPosition; }
+        public  boolean isFirstInFile() { return _firstInFile; }
+
+        public  byte[]  getOutput() { return _output; }
+        public  int getRecordCount() { return _recordCount; }
+        public  long    getLastRecordEnd() { return _lastRecordEnd; }
+        public  Throwable   getError() { return _error; }
+
+        /** Get the length of the output which holds the first recordCount records */
+        public  int getOutputLength( int recordCount )
+        {
+            return (recordCount == 0) ? 0 : _recordEnds[ recordCount - 1 ];
+        }
+
+        void    addRecordEnd( int outputLength )
+        {
+            if ( _recordCount == _recordEnds.length )
+            {
+                int[]   newRecordEnds = new int[ 2 * _recordEnds.length ];
+                System.arraycopy( _recordEnds, 0, newRecordEnds, 0, _recordCount );
+                _recordEnds = newRecordEnds;
+            }
+            _recordEnds[ _recordCount++ ] = outputLength;
+        }
+
+        void    setOutput( byte[] output, int recordCount, long lastRecordEnd )
+        {
+            _output = output;
+            _recordCount = recordCount;
+            _lastRecordEnd = lastRecordEnd;
+        }
+
+        void    setError( Throwable error ) { _error = error; }
+
+        /**
+         * <p>
+         * Cut a log file into chunks of roughly chunkSize bytes. The chunk
+         * boundaries are placed on verified record boundaries. The last chunk
+         * runs to the end of the log.
+         * </p>
+         */
+        public  static  ArrayList<LogChunk>   split( LogFileHeader header, long firstRecordPosition, int chunkSize, CipherProvider decryptionEngine )
+            throws IOException
+        {
+            ArrayList<LogChunk> chunks = new ArrayList<LogChunk>();
+            RandomAccessFile    raf = new RandomAccessFile( header.getFile(), "r" );
+
+            try {
+                long    fileLength = raf.length();
+                int     blockSize = (decryptionEngine == null) ? 0 : decryptionEngine.getEncryptionBlockSize();
+
+                // the first record tells us which log file number the instants should carry
+                long    logFileNumber = -1L;
+                if ( firstRecordPosition + 12 <= fileLength )
+                {
+                    raf.seek( firstRecordPosition + 4 );
+                    logFileNumber = raf.readLong() >>> 32;
+                }
+
+                long    start = firstRecordPosition;
+                while ( true )
+                {
+                    long    target = start + chunkSize;
+                    long    end = ((logFileNumber < 0) || (target >= fileLength)) ?
+                        -1 : findRecordBoundary( raf, target, fileLength, logFileNumber, blockSize );
+
+                    if ( end < 0 )
+                    {
+                        chunks.add( new LogChunk( header, start, Long.MAX_VALUE, chunks.isEmpty() ) );
+                        break;
+                    }
+
+                    chunks.add( new LogChunk( header, start, end, chunks.isEmpty() ) );
+                    start = end;
+                }
+            }
+            finally { raf.close(); }
+
+            return chunks;
+        }
+
+        /**
+         * <p>
+         * Find the first offset at or after target where a wrapper starts.
+         * A wrapper is recognized by a positive forward length, an instant
+         * which names this log file and this very offset, and a matching
+         * backward length. Returns -1 if there is no such offset within
+         * the search window.
+         * </p>
+         */
+        private static  long    findRecordBoundary( RandomAccessFile raf, long target, long fileLength, long logFileNumber, int blockSize )
+            throws IOException
+        {
+            long    windowEnd = Math.min( fileLength, target + SEARCH_WINDOW );
+            byte[]  window = new byte[ (int) (windowEnd - target) ];
+
+            raf.seek( target );
+            raf.readFully( window );
+
+            ByteBuffer  buffer = ByteBuffer.wrap( window );
+            for ( int i = 0; i + 12 <= window.length; i++ )
+            {
+                long    candidate = target + i;
+                int     forwardLength = buffer.getInt( i );
+
+                if ( forwardLength <= 0 ) { continue; }
+                if ( buffer.getLong( i + 4 ) != makeLogInstant( logFileNumber, candidate ) ) { continue; }
+
+                int     tail = (blockSize == 0) ? 0 : forwardLength % blockSize;
+                int     padding = (tail == 0) ? 0 : (blockSize - tail);
+                long    trailer = candidate + 12 + forwardLength + padding;
+
+                if ( trailer + 4 > fileLength ) { continue; }
+
+                raf.seek( trailer );
+                if ( raf.readInt() == forwardLength ) { return candidate; }
+            }
+
+            return -1;
+        }
+    }
+
+    /**
+     * <p>
+     * Reads and decrypts the records of an encrypted log file on a thread of
+     * its own, while the caller formats the records which have already been
+     * decrypted. The records are handed over in batches, so that the threads
+     * only meet once every BATCH_SIZE records, and the same few batches of
+     * wrappers go back and forth, so that once every wrapper's buffer has grown
+     * to fit, nothing is allocated per record. Derby encrypts every record on
+     * its own, so the records cannot be decrypted in one call, but each one is
+     * decrypted in place in its wrapper's buffer.
+     * </p>
+     */
+    public  static  final   class   DecryptionPipeline  implements  Runnable
+    {
+        public  static  final   int BATCH_SIZE = 64;
+
+        // the reader fills the other batches while the caller works through one
+        public  static  final   int BATCH_COUNT = 4;
+
+        // constructor args
+        private DataInputStream     _dais;
+        private MappedLogScanner    _scanner;
+        private CipherProvider      _decryptionEngine;
+
+        // batches waiting to be filled, and filled batches waiting to be handed out
+        private ArrayBlockingQueue<Batch>   _empty = new ArrayBlockingQueue<Batch>( BATCH_COUNT );
+        private ArrayBlockingQueue<Batch>   _filled = new ArrayBlockingQueue<Batch>( BATCH_COUNT );
+
+        // the batch which the caller is working through, and the next record in it
+        private Batch   _batch;
+        private int     _next;
+
+        // the wrapper which ends the log, once the caller has reached it
+        private LogRecordWrapper    _last;
+
+        private Thread  _reader;
+
+        /**
+         * <p>
+         * Start reading ahead from the current position of a log file. The
+         * file belongs to the pipeline until it is closed.
+         * </p>
+         */
+        public  DecryptionPipeline( DataInputStream dais, MappedLogScanner scanner, CipherProvider decryptionEngine, int recordLimit )
+        {
+            _dais = dais;
+            _scanner = scanner;
+            _decryptionEngine = decryptionEngine;
+
+            for ( int i = 0; i < BATCH_COUNT; i++ ) { _empty.add( new Batch( recordLimit ) ); }
+
+            _reader = new Thread( this, "LogFileReader decryption" );
+            _reader.setDaemon( true );
+            _reader.start();
+        }
+
+        /**
+         * <p>
+         * Get the next record. The wrapper is recycled soon after the next call.
+         * At the end of the log, this keeps returning the wrapper which ends it.
+         * If the reader failed, its exception is thrown in place of the record
+         * it could not read.
+         * </p>
+         */
+        public  LogRecordWrapper    nextWrapper()   throws Exception
+        {
+            if ( _last != null ) { return _last; }
+
+            while ( (_batch == null) || (_next == _batch._count) )
+            {
+                if ( _batch != null )
+                {
+                    if ( _batch._error instanceof Exception ) { throw (Exception) _batch._error; }
+                    else if ( _batch._error != null ) { throw (Error) _batch._error; }
+
+                    _empty.put( _batch );
+                }
+
+                _batch = _filled.take();
+                _next = 0;
+            }
+
+            LogRecordWrapper    wrapper = _batch._wrappers[ _next++ ];
+
+            if ( wrapper.getLogRecordLengthForward() <= 0 ) { _last = wrapper; }
+
+            return wrapper;
+        }
+
+        /** Stop reading ahead and wait for the reader to let go of the log file */
+        public  void    close() throws InterruptedException
+        {
+            _reader.interrupt();
+            _reader.join();
+        }
+
+        public  void    run()
+        {
+            try {
+                boolean     ended = false;
+
+                while ( !ended )
+                {
+                    Batch   batch = _empty.take();
+                    batch._count = 0;
+
+                    try {
+                        while ( (batch._count < BATCH_SIZE) && !ended )
+                        {
+                            LogRecordWrapper    wrapper = batch._wrappers[ batch._count ];
+
+                            if ( _scanner != null ) { _scanner.nextWrapper( wrapper ); }
+                            else { wrapper.read( _dais, _decryptionEngine ); }
+
+                            batch._count++;
+                            ended = (wrapper.getLogRecordLengthForward() <= 0);
+                        }
+                    }
+                    catch (Throwable t)
+                    {
+                        batch._error = t;
+                        ended = true;
+                    }
+
+                    _filled.put( batch );
+                }
+            }
+            catch (InterruptedException ie) {}
+        }
+
+        private static  final   class   Batch
+        {
+            private LogRecordWrapper[]  _wrappers = new LogRecordWrapper[ BATCH_SIZE ];
+            private int         _count;
+            private Throwable   _error;
+
+            private Batch( int recordLimit )
+            {
+                for ( int i = 0; i < BATCH_SIZE; i++ ) { _wrappers[ i ] = new LogRecordWrapper().setRecordLimit( recordLimit ); }
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Decompresses an archive on a thread of its own, so that the next stretch
+     * of the log is decompressed while the caller parses the records in the
+     * stretch before it. The decompressed bytes are handed over in a ring of
+     * CHUNK_COUNT chunks which go back and forth between the two threads, as
+     * the batches of DecryptionPipeline do, so that nothing is allocated once
+     * the pipeline has started and the threads only meet once per CHUNK_SIZE
+     * bytes. If decompression fails, the bytes before the failure are handed
+     * out first and then its exception is thrown.
+     * </p>
+     */
+    public  static  final   class   DecompressionPipeline   extends InputStream implements  Runnable
+    {
+        public  static  final   int CHUNK_SIZE = 1024 * 1024;
+
+        // the reader fills the other chunks while the caller works through one
+        public  static  final   int CHUNK_COUNT = 4;
+
+        // constructor args
+        private InputStream _source;
+
+        // chunks waiting to be filled, and filled chunks waiting to be read
+        private ArrayBlockingQueue<Chunk>   _empty = new ArrayBlockingQueue<Chunk>( CHUNK_COUNT );
+        private ArrayBlockingQueue<Chunk>   _filled = new ArrayBlockingQueue<Chunk>( CHUNK_COUNT );
+
+        // the chunk which the caller is reading, and the next byte in it
+        private Chunk   _chunk;
+        private int     _next;
+
+        private Thread  _reader;
+
+        /** Start decompressing. The source belongs to the pipeline until it is closed */
+        public  DecompressionPipeline( InputStream source )
+        {
+            _source = source;
+
+            for ( int i = 0; i < CHUNK_COUNT; i++ ) { _empty.add( new Chunk() ); }
+
+            _reader = new Thread( this, "LogFileReader decompression" );
+            _reader.setDaemon( true );
+            _reader.start();
+        }
+
+        public  int read()  throws IOException
+        {
+            if ( !fill() ) { return -1; }
+
+            return _chunk._bytes[ _next++ ] & 0xff;
+        }
+
+        public  int read( byte[] buffer, int offset, int length )   throws IOException
+        {
+            if ( length == 0 ) { return 0; }
+            if ( !fill() ) { return -1; }
+
+            int     count = Math.min( length, _chunk._count - _next );
+
+            System.arraycopy( _chunk._bytes, _next, buffer, offset, count );
+            _next += count;
+
+            return count;
+        }
+
+        public  long    skip( long count )  throws IOException
+        {
+            if ( (count <= 0) || !fill() ) { return 0; }
+
+            int     skipped = (int) Math.min( count, _chunk._count - _next );
+
+            _next += skipped;
+
+            return skipped;
+        }
+
+        public  int available() { return (_chunk == null) ? 0 : (_chunk._count - _next); }
+
+        /** Stop decompressing and close the source */
+        public  void    close() throws IOException
+        {
+            _reader.interrupt();
+            try {
+                _reader.join();
+            }
+            catch (InterruptedException ie) { Thread.currentThread().interrupt(); }
+            finally { _source.close(); }
+        }
+
+        public  void    run()
+        {
+            try {
+                boolean     ended = false;
+
+                while ( !ended )
+                {
+                    Chunk   chunk = _empty.take();
+                    chunk._count = 0;
+
+                    try {
+                        while ( (chunk._count < CHUNK_SIZE) && !ended )
+                        {
+                            int     bytesRead = _source.read( chunk._bytes, chunk._count, CHUNK_SIZE - chunk._count );
+
+                            if ( bytesRead < 0 ) { ended = true; }
+                            else { chunk._count += bytesRead; }
+                        }
+                    }
+                    catch (Throwable t)
+                    {
+                        chunk._error = t;
+                        ended = true;
+                    }
+
+                    chunk._last = ended;
+                    _filled.put( chunk );
+                }
+            }
+            catch (InterruptedException ie) {}
+        }
+
+        /** Make sure that the current chunk has a byte left to read. Returns false at the end of the stream */
+        private boolean fill()  throws IOException
+        {
+            while ( (_chunk == null) || (_next == _chunk._count) )
+            {
+                if ( _chunk != null )
+                {
+                    if ( _chunk._error instanceof IOException ) { throw (IOException) _chunk._error; }
+                    else if ( _chunk._error instanceof RuntimeException ) { throw (RuntimeException) _chunk._error; }
+                    else if ( _chunk._error != null ) { throw (Error) _chunk._error; }
+
+                    if ( _chunk._last ) { return false; }
+
+                    _empty.add( _chunk );
+                }
+
+                try {
+                    _chunk = _filled.take();
+                }
+                catch (InterruptedException ie) { throw new InterruptedIOException( "Interrupted while waiting for the archive to be decompressed." ); }
+                _next = 0;
+            }
+
+            return true;
+        }
+
+        private static  final   class   Chunk
+        {
+            private byte[]      _bytes = new byte[ CHUNK_SIZE ];
+            private int         _count;
+            private boolean     _last;
+            private Throwable   _error;
+        }
+    }
+
+    /**
+     * <p>
+     * Scanner which walks the wrapper framing (forward length, instant,
+     * record, backward length) of a log file directly in a memory mapping.
+     * Records are handed out as slices of the mapping, so a header-only pass
+     * touches the file without copying any payloads.
+     * </p>
+     *
+     * <p>
+     * A MappedByteBuffer cannot be longer than 2 GB, so rather than mapping
+     * the whole file, the scanner maps a window of WINDOW_SIZE bytes and maps
+     * the next one as it moves past the end. A window always starts at the
+     * wrapper being read, or ends at it when the file is walked backward, and
+     * is stretched to hold the whole wrapper, so no wrapper is ever split
+     * between two windows. Slices which have already been handed out keep
+     * their window alive, so remapping never pulls a record out from under
+     * its reader. Positions are longs throughout.
+     * </p>
+     */
+    public  static  final   class   MappedLogScanner
+    {
+        // forward length + log instant + backward length
+        private static  final   int WRAPPER_OVERHEAD = 16;
+
+        // how much of the file is mapped at a time
+        public  static  final   int WINDOW_SIZE = 256 * 1024 * 1024;
+
+        // constructor args
+        private CipherProvider  _decryptionEngine;
+        private int     _windowSize;
+
+        private RandomAccessFile    _raf;
+        private FileChannel     _channel;
+        private long            _fileLength;
+
+        // the mapped part of the file, which starts at offset _windowStart
+        private MappedByteBuffer    _window;
+        private long            _windowStart;
+
+        // the offset of the next byte to be scanned
+        private long            _position;
+
+        // handed out by every call to nextWrapper()
+        private LogRecordWrapper    _wrapper = new LogRecordWrapper();
+
+        // reused by checksum(), which may run while another thread reads wrappers
+        private ByteBuffer      _checksumBuffer;
+
+        // the number of the log file, or -1 if neither its header nor its name tell us
+        private long    _logFileNumber = -1L;
+
+        public  MappedLogScanner( File file, CipherProvider decryptionEngine )  throws IOException
+        {
+            this( file, decryptionEngine, WINDOW_SIZE );
+        }
+
+        /** A scanner which maps windowSize bytes of the file at a time */
+        public  MappedLogScanner( File file, CipherProvider decryptionEngine, int windowSize )  throws IOException
+        {
+            _decryptionEngine = decryptionEngine;
+            _windowSize = windowSize;
+
+            _raf = new RandomAccessFile( file, "r" );
+            _channel = _raf.getChannel();
+            _fileLength = _channel.size();
+
+            if ( (_fileLength >= LogFileHeader.LENGTH) && (getInt( 0L ) == StoredFormatIds.FILE_STREAM_LOG_FILE) )
+            {
+                _logFileNumber = getLong( 8L );
+            }
+            else
+            {
+                Matcher matcher = LogDirectory.LOG_FILE_NAME.matcher( file.getName() );
+                if ( matcher.matches() ) { _logFileNumber = Long.parseLong( matcher.group( 1 ) ); }
+            }
+        }
+
+        /** Get the length of the file */
+        public  long    limit() { return _fileLength; }
+
+        /** Keep at most limit bytes of each record which nextWrapper() hands out */
+        public  void    setRecordLimit( int limit ) { _wrapper.setRecordLimit( limit ); }
+
+        /** Get the offset of the next byte to be scanned */
+        public  long    position() { return _position; }
+
+        /** Position the scanner on an absolute file offset */
+        public  void    position( long newPosition ) { _position = newPosition; }
+
+        /** Let go of the file. The slices which have been handed out stay readable */
+        public  void    close() throws IOException { _raf.close(); }
+
+        /**
+         * <p>
+         * Get a stream which reads from, and advances, the scanner's current
+         * position. Closing the stream closes the scanner.
+         * </p>
+         */
+        public  InputStream asInputStream() { return new ScannerInputStream(); }
+
+        /**
+         * <p>
+         * Decode the wrapper at the current position and advance past it.
+         * Every call refills the same wrapper.
+         * </p>
+         */
+        public  LogRecordWrapper    nextWrapper()   throws Exception
+        {
+            return nextWrapper( _wrapper );
+        }
+
+        /** Decode the wrapper at the current position into the given wrapper and advance past it */
+        public  LogRecordWrapper    nextWrapper( LogRecordWrapper wrapper )   throws Exception
+        {
+            long    wrapperEnd = _position + 4;
+
+            if ( wrapperEnd <= _fileLength )
+            {
+                int     forwardLength = getInt( _position );
+
+                if ( forwardLength > 0 ) { wrapperEnd = _position + WRAPPER_OVERHEAD + storedLength( forwardLength ); }
+            }
+
+            // the wrapper reads the record as a slice of the window, so all of it has to be in there
+            cover( _position, wrapperEnd );
+            _window.position( (int) (_position - _windowStart) );
+
+            wrapper.read( _window, _decryptionEngine );
+            _position = _windowStart + _window.position();
+
+            return wrapper;
+        }
+
+        /**
+         * <p>
+         * Feed length bytes of the file, starting at the given offset, to a
+         * checksum without moving the scanner. Returns the number of bytes
+         * fed, which is less than length if the file ends first. The bytes
+         * are read with positional reads rather than through the window, so
+         * this is safe while another thread is reading wrappers.
+         * </p>
+         */
+        public  int checksum( CRC32 checksum, long position, int length )   throws IOException
+        {
+            if ( _checksumBuffer == null ) { _checksumBuffer = ByteBuffer.allocate( 64 * 1024 ); }
+
+            int     checkedLength = 0;
+
+            while ( checkedLength < length )
+            {
+                _checksumBuffer.clear();
+                _checksumBuffer.limit( Math.min( _checksumBuffer.capacity(), length - checkedLength ) );
+
+                int     bytesRead = _channel.read( _checksumBuffer, position + checkedLength );
+                if ( bytesRead <= 0 ) { break; }
+
+                _checksumBuffer.flip();
+                checksum.update( _checksumBuffer );
+                checkedLength += bytesRead;
+            }
+
+            return checkedLength;
+        }
+
+        /** Returns true if the current position holds the zero length which ends the log, or the end of the file */
+        public  boolean atEndOfLog()    throws IOException
+        {
+            return (_fileLength - _position < 4) || (getInt( _position ) == 0);
+        }
+
+        /**
+         * <p>
+         * Check the framing of the wrapper at the current position without
+         * moving. Returns null if the wrapper is whole or if this is the end
+         * of the log, otherwise a description of the damage.
+         * </p>
+         */
+        public  String  checkWrapper()  throws IOException
+        {
+            if ( atEndOfLog() ) { return null; }
+
+            long    position = _position;
+            int     forwardLength = getInt( position );
+
+            if ( (forwardLength < 0) || (storedLength( forwardLength ) > _fileLength - position - WRAPPER_OVERHEAD) )
+            {
+                return "Implausible record length " + forwardLength + " at position " + position + ".";
+            }
+
+            long    instantPosition = getInt( position + 8 ) & 0xFFFFFFFFL;
+            long    instantFileNumber = getInt( position + 4 ) & 0xFFFFFFFFL;
+
+            if ( (instantPosition != position) || ((_logFileNumber >= 0) && (instantFileNumber != _logFileNumber)) )
+            {
+                return "The record at position " + position + " has log instant " + instantFileNumber + ":" + instantPosition + ".";
+            }
+
+            int     backwardLength = getInt( position + 12 + storedLength( forwardLength ) );
+
+            if ( backwardLength != forwardLength )
+            {
+                return "The record at position " + position + " has forward length " + forwardLength + " but backward length " + backwardLength + ".";
+            }
+
+            return null;
+        }
+
+        /**
+         * <p>
+         * Find where the records in this file end, i.e. the position of the
+         * zero length which marks the end of the log, by stepping back over
+         * the zeros which Derby preallocates at the end of a log file. Returns
+         * the length of the file header if the file holds no records.
+         * </p>
+         */
+        public  long    endOfLog()  throws IOException
+        {
+            long    limit = _fileLength;
+            long    lastNonZero = limit - 1;
+
+            // the preallocated tail can be megabytes long, so skip it a long at a time
+            while ( (lastNonZero - 7 >= LogFileHeader.LENGTH) && (getLong( lastNonZero - 7 ) == 0L) ) { lastNonZero -= 8; }
+            while ( (lastNonZero >= LogFileHeader.LENGTH) && (getByte( lastNonZero ) == 0) ) { lastNonZero--; }
+
+            if ( lastNonZero < LogFileHeader.LENGTH ) { return LogFileHeader.LENGTH; }
+
+            // the high bytes of the last backward length are non-zero, but its low bytes may be zero
+            for ( long end = lastNonZero + 1; end <= Math.min( lastNonZero + 4, limit ); end++ )
+            {
+                if ( previousWrapper( end ) >= 0 ) { return end; }
+            }
+
+            throw new IOException( "Cannot find the last record in the file, which ends with damaged data. Read it forward instead." );
+        }
+
+        /**
+         * <p>
+         * Find the start of the wrapper which ends at the given position,
+         * using its backward length, and check that its forward length and log
+         * instant agree. Returns -1 if they do not. Does not move the scanner.
+         * </p>
+         */
+        public  long    previousWrapper( long end )  throws IOException
+        {
+            if ( end < WRAPPER_OVERHEAD ) { return -1L; }
+
+            int     backwardLength = getInt( end - 4 );
+            if ( backwardLength <= 0 ) { return -1L; }
+
+            long    candidate = end - WRAPPER_OVERHEAD - storedLength( backwardLength );
+            if ( candidate < 0 ) { return -1L; }
+
+            if ( getInt( candidate ) != backwardLength ) { return -1L; }
+            if ( (getInt( candidate + 8 ) & 0xFFFFFFFFL) != candidate ) { return -1L; }
+            if ( (_logFileNumber >= 0) && ((getInt( candidate + 4 ) & 0xFFFFFFFFL) != _logFileNumber) ) { return -1L; }
+
+            return candidate;
+        }
+
+        /**
+         * <p>
+         * Slide forward through the file from the given position, looking
+         * for the next whole wrapper: one whose log instant is its own
+         * position in this file and whose backward length matches its forward
+         * length. Returns its position, or -1 if there is none. Does not move
+         * the scanner.
+         * </p>
+         */
+        public  long    findWrapper( long start )   throws IOException
+        {
+            long    last = _fileLength - WRAPPER_OVERHEAD;
+            long    candidate = start;
+
+            while ( candidate <= last )
+            {
+                cover( candidate, candidate + 12 );
+
+                // test the candidates whose instant lies in this window on int offsets, without going through cover() for each of them
+                MappedByteBuffer    window = _window;
+                long    windowStart = _windowStart;
+                int     first = (int) (candidate - windowStart);
+                int     lastOffset = (int) (Math.min( last, windowStart + window.limit() - 12 ) - windowStart);
+
+                for ( int offset = first; offset <= lastOffset; offset++ )
+                {
+                    // the low half of the instant is the cheapest and most selective test, so it goes first
+                    if ( window.getInt( offset + 8 ) != (int) (windowStart + offset) ) { continue; }
+
+                    if ( isWrapper( windowStart + offset ) ) { return windowStart + offset; }
+                }
+
+                candidate = windowStart + lastOffset + 1;
+            }
+
+            return -1L;
+        }
+
+        /** The whole of findWrapper()'s test: the instant, the log file number, the forward length and the backward length which it leads to */
+        private boolean isWrapper( long candidate ) throws IOException
+        {
+            if ( (getInt( candidate + 8 ) & 0xFFFFFFFFL) != candidate ) { return false; }
+            if ( (_logFileNumber >= 0) && ((getInt( candidate + 4 ) & 0xFFFFFFFFL) != _logFileNumber) ) { return false; }
+
+            int     forwardLength = getInt( candidate );
+            if ( forwardLength <= 0 ) { return false; }
+
+            long    trailer = candidate + 12 + storedLength( forwardLength );
+            if ( trailer + 4 > _fileLength ) { return false; }
+
+            return (getInt( trailer ) == forwardLength);
+        }
+
+        /** The number of bytes a record occupies on disk, including any encryption padding */
+        private long    storedLength( int forwardLength )
+        {
+            if ( _decryptionEngine == null ) { return forwardLength; }
+
+            int     blockSize = _decryptionEngine.getEncryptionBlockSize();
+            int     tail = forwardLength % blockSize;
+
+            return (long) forwardLength + ((tail == 0) ? 0 : (blockSize - tail));
+        }
+
+        private int     getInt( long offset )   throws IOException
+        {
+            cover( offset, offset + 4 );
+            return _window.getInt( (int) (offset - _windowStart) );
+        }
+
+        private long    getLong( long offset )  throws IOException
+        {
+            cover( offset, offset + 8 );
+            return _window.getLong( (int) (offset - _windowStart) );
+        }
+
+        private byte    getByte( long offset )  throws IOException
+        {
+            cover( offset, offset + 1 );
+            return _window.get( (int) (offset - _windowStart) );
+        }
+
+        /**
+         * <p>
+         * Make sure that the window holds the bytes from start up to end, or
+         * up to the end of the file, mapping a new window if it does not. The
+         * new window is stretched to hold all of the bytes, up to the 2 GB
+         * which one mapping can hold. It normally starts at start, but if the
+         * bytes lie before the current window then the scanner is walking
+         * backward, and the new window ends at end instead.
+         * </p>
+         */
+        private void    cover( long start, long end )   throws IOException
+        {
+            start = Math.min( start, _fileLength );
+            end = Math.min( end, _fileLength );
+
+            if ( (_window != null) && (start >= _windowStart) && (end <= _windowStart + _window.limit()) ) { return; }
+
+            long    size = Math.min( Math.max( (long) _windowSize, end - start ), Integer.MAX_VALUE );
+            boolean backward = (_window != null) && (start < _windowStart);
+
+            _windowStart = backward ? Math.max( 0L, end - size ) : start;
+            _window = _channel.map( FileChannel.MapMode.READ_ONLY, _windowStart, Math.min( size, _fileLength - _windowStart ) );
+        }
+
+        /** Reads the file from the scanner's position, e.g. its header */
+        private final   class   ScannerInputStream  extends InputStream
+        {
+            public  int read()  throws IOException
+            {
+                if ( _position >= _fileLength ) { return -1; }
+
+                return getByte( _position++ ) & 0xFF;
+            }
+
+            public  int read( byte[] buffer, int offset, int length )   throws IOException
+            {
+                if ( length == 0 ) { return 0; }
+                if ( _position >= _fileLength ) { return -1; }
+
+                int     count = (int) Math.min( length, _fileLength - _position );
+
+                cover( _position, _position + count );
+                count = (int) Math.min( count, _windowStart + _window.limit() - _position );
+
+                ByteBuffer  bytes = _window.duplicate();
+                bytes.position( (int) (_position - _windowStart) );
+                bytes.get( buffer, offset, count );
+                _position += count;
+
+                return count;
+            }
+
+            public  long    skip( long count )
+            {
+                long    skipped = Math.max( 0L, Math.min( count, _fileLength - _position ) );
+
+                _position += skipped;
+                return skipped;
+            }
+
+            public  int available() { return (int) Math.min( Integer.MAX_VALUE, Math.max( 0L, _fileLength - _position ) ); }
+
+            public  void    close() throws IOException { MappedLogScanner.this.close(); }
+        }
+    }
+
+    /**
+     * <p>
+     * Reads records from a log which is still being written. A record is only
+     * handed out once all of it has reached the file, that is, once its
+     * backward length has been written and matches its forward length. Until
+     * then, and at the end of the log, the follower sleeps on a WatchService
+     * registered on the log directory rather than polling the file.
+     * </p>
+     */
+    public  static  final   class   LogFollower
+    {
+        // how long to sleep if the file system does not report a change, e.g. on a network mount
+        private static  final   long    MAXIMUM_WAIT_MILLIS = 1000L;
+
+        private File            _logDirectory;
+        private CipherProvider  _decryptionEngine;
+        private WatchService    _watcher;
+
+        // the log file being followed
+        private LogFileHeader   _header;
+        private FileChannel     _channel;
+        private long            _position;
+
+        // reused to read every wrapper
+        private ByteBuffer      _buffer = ByteBuffer.allocate( 64 * 1024 );
+        private LogRecordWrapper    _wrapper = new LogRecordWrapper();
+
+        public  LogFollower( File logDirectory, LogFileHeader header, long position, CipherProvider decryptionEngine, int recordLimit )
+            throws IOException
+        {
+            _logDirectory = logDirectory;
+            _decryptionEngine = decryptionEngine;
+            _wrapper.setRecordLimit( recordLimit );
+
+            _watcher = FileSystems.getDefault().newWatchService();
+            logDirectory.toPath().register
+                ( _watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY );
+
+            open( header, position );
+        }
+
+        public  LogFileHeader   getHeader() { return _header; }
+
+        /** Get the offset just past the last record handed out */
+        public  long    position() { return _position; }
+
+        /**
+         * <p>
+         * Get the next record if all of it has been written, otherwise null.
+         * The wrapper, and the buffer its record may be a slice of, are reused by the next call.
+         * </p>
+         */
+        public  LogRecordWrapper    nextWrapper()   throws Exception
+        {
+            if ( !read( _position, 4 ) ) { return null; }
+
+            int     forwardLength = _buffer.getInt( 0 );
+            if ( forwardLength <= 0 ) { return null; }
+
+            int     padding = 0;
+            int     blockSize = 0;
+            if ( _decryptionEngine != null )
+            {
+                blockSize = _decryptionEngine.getEncryptionBlockSize();
+
+                int tail = forwardLength % blockSize;
+                padding = (tail == 0) ? 0 : (blockSize - tail);
+            }
+
+            long    wrapperLength = 4L + 8L + forwardLength + padding + 4L;
+            if ( (_position + wrapperLength > _channel.size()) || (wrapperLength > Integer.MAX_VALUE) ) { return null; }
+
+            // the record is not complete until its trailing length is on disk
+            if ( !read( _position + wrapperLength - 4, 4 ) || (_buffer.getInt( 0 ) != forwardLength) ) { return null; }
+
+            // only as much of a record as the wrapper keeps is read, which is all of it unless it is longer than the limit
+            long    keptLength = 4L + 8L + (long) _wrapper.getRecordLimit() + padding + blockSize;
+            boolean whole = (keptLength >= wrapperLength - 4);
+
+            if ( !read( _position, (int) (whole ? wrapperLength : keptLength) ) ) { return null; }
+
+            LogRecordWrapper    wrapper = _wrapper.read( _buffer, _decryptionEngine );
+            _position += wrapper.getWrapperLength();
+
+            // the trailing length was not read along with the record, but it has already been checked
+            if ( !whole ) { wrapper._logRecordLengthBackward = forwardLength; }
+
+            return wrapper;
+        }
+
+        /**
+         * <p>
+         * If the log has moved on to the next log file, return that file's
+         * header, otherwise null. Derby only creates the next log file when it
+         * switches to it, but the header is checked against the current
+         * position in case the rest of this file has not reached the disk yet.
+         * </p>
+         */
+        public  LogFileHeader   nextLogFile()   throws IOException
+        {
+            File    nextFile = new File( _logDirectory, "log" + (_header.getLogFileNumber() + 1) + ".dat" );
+            if ( !nextFile.exists() ) { return null; }
+
+            LogFileHeader   nextHeader = new LogFileHeader( nextFile );
+            if ( !nextHeader.isValid() ) { return null; }
+
+            long    previousEnd = nextHeader.getPreviousLogRecordEndInstant();
+            boolean sameFile = (previousEnd >>> 32) == _header.getLogFileNumber();
+
+            if ( sameFile && ((previousEnd & 0xFFFFFFFFL) > _position) ) { return null; }
+
+            return nextHeader;
+        }
+
+        /** Start following another log file */
+        public  void    open( LogFileHeader header, long position )  throws IOException
+        {
+            if ( _channel != null ) { _channel.close(); }
+
+            _header = header;
+            _position = position;
+            _channel = new RandomAccessFile( header.getFile(), "r" ).getChannel();
+        }
+
+        /** Sleep until something in the log directory changes */
+        public  void    await() throws InterruptedException
+        {
+            WatchKey    key = _watcher.poll( MAXIMUM_WAIT_MILLIS, TimeUnit.MILLISECONDS );
+
+            if ( key != null )
+            {
+                key.pollEvents();
+                key.reset();
+            }
+        }
+
+        public  void    close() throws IOException
+        {
+            _channel.close();
+            _watcher.close();
+        }
+
+        /** Read length bytes at the given offset into the start of the buffer, returning false if they are not there yet */
+        private boolean read( long offset, int length )  throws IOException
+        {
+            if ( _buffer.capacity() < length ) { _buffer = ByteBuffer.allocate( Math.max( length, 2 * _buffer.capacity() ) ); }
+
+            _buffer.clear();
+            _buffer.limit( length );
+
+            while ( _buffer.hasRemaining() )
+            {
+                if ( _channel.read( _buffer, offset + _buffer.position() ) < 0 ) { return false; }
+            }
+
+            _buffer.flip();
+            return true;
+        }
+    }
+
+    /**
+     * <p>
+     * InputStream which reads from a ByteBuffer without copying it,
+     * advancing the position of the buffer as it goes.
+     * </p>
+     */
+    public  static  final   class   ByteBufferInputStream extends InputStream
+    {
+        private ByteBuffer  _buffer;
+
+        public  ByteBufferInputStream( ByteBuffer buffer ) { _buffer = buffer; }
+
+        /** Read from another buffer from now on */
+        public  void    setBuffer( ByteBuffer buffer ) { _buffer = buffer; }
+
+        public  int read()
+        {
+            return _buffer.hasRemaining() ? (_buffer.get() & 0xFF) : -1;
+        }
+
+        public  int read( byte[] b, int off, int len )
+        {
+            if ( len == 0 ) { return 0; }
+            if ( !_buffer.hasRemaining() ) { return -1; }
+
+            int     count = Math.min( len, _buffer.remaining() );
+            _buffer.get( b, off, count );
+
+            return count;
+        }
+
+        public  long    skip( long n )
+        {
+            int     count = (int) Math.max( 0L, Math.min( n, (long) _buffer.remaining() ) );
+            _buffer.position( _buffer.position() + count );
+
+            return count;
+        }
+
+        public  int available() { return _buffer.remaining(); }
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    //
+    // OUTPUT SINKS
+    //
+    ////////////////////////////////////////////////////////////////////////
+
+    /**
+     * <p>
+     * The formats which the decoded log can be written in.
+     * </p>
+     */
+    public  static  enum    OutputFormat
+    {
+        XML,
+        JSON,
+        BINARY;
+
+        /**
+         * <p>
+         * Create a sink which writes this format to a stream. If enclosing tags
+         * are given, the sink writes a fragment which belongs inside them.
+         * </p>
+         */
+        public  OutputSink  newSink( OutputStream outputStream, String... enclosingTags )   throws IOException
+        {
+            switch ( this )
+            {
+            case JSON: return new JSONLinesWriter( outputStream, enclosingTags );
+            case BINARY: return new BinaryWriter( outputStream );
+            default: return new XMLWriter( outputStream, enclosingTags );
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Where the decoded log goes. The reader describes its output as a tree of
+     * tagged elements, and each implementation renders that tree in its own
+     * format. Attribute values and element text are passed raw; escaping them
+     * is the sink's business.
+     * </p>
+     */
+    public  interface   OutputSink
+    {
+        /** Write whatever prologue the format needs */
+        public  void    beginDocument() throws IOException;
+
+        /** Open an element */
+        public  void    beginTag( String tag ) throws IOException;
+
+        /** Open an element which has one attribute */
+        public  void    beginTag( String tag, String attributeName, String attributeValue ) throws IOException;
+
+        /** Close the most recently opened element */
+        public  void    endTag() throws IOException;
+
+        /** Write an element which has one attribute and no content */
+        public  void    writeEmptyTag( String tag, String attributeName, String attributeValue ) throws IOException;
+
+        /** Write an element which holds text */
+        public  void    writeTextElement( String tag, String text ) throws IOException;
+
+        /** Write an element which holds a number */
+        public  void    writeTextElement( String tag, long value ) throws IOException;
+
+        /** Copy a fragment which was rendered by another sink of the same format */
+        public  void    writeFragment( byte[] fragment, int length ) throws IOException;
+
+        /** Get the number of bytes written so far, flushed or not */
+        public  long    size();
+
+        public  void    flush() throws IOException;
+    }
+
+    /**
+     * <p>
+     * Machinery shared by the sinks: a large reusable byte buffer which
+     * characters are UTF-8 encoded straight into, and which is handed to
+     * the stream only when it fills up or when the sink is flushed. Writing
+     * an element neither allocates nor costs a system call.
+     * </p>
+     */
+    public  abstract    static  class   BufferedSink    implements  OutputSink
+    {
+        private static  final   int     BUFFER_SIZE = 64 * 1024;
+
+        // replaces characters which cannot be represented at all
+        protected   static  final   char    REPLACEMENT_CHARACTER = '\uFFFD';
+
+        private         OutputStream    _out;
+
+        private         byte[]  _buffer;
+        private         int     _count;
+
+        // bytes already handed to the stream
+        private         long    _flushedCount;
+
+        /** Make a sink which throws everything away */
+        protected   BufferedSink() {}
+
+        protected   BufferedSink( OutputStream outputStream )
+        {
+            _out = outputStream;
+            _buffer = new byte[ BUFFER_SIZE ];
+        }
+
+        public  void    flush() throws IOException
+        {
+            if ( _out == null ) { return; }
+            
+            drain();
+            _out.flush();
+        }
+        
+        public  void    close() throws IOException
+        {
+            flush();
+        }
+
+        public  long    size()
+        {
+            return (_out == null) ? 0L : _flushedCount + _count;
+        }
+
+        public void    writeFragment( byte[] fragment, int length )
+            throws IOException
+        {
+            if ( _out == null ) { return; }
+
+            writeBytes( fragment, length );
+        }
+
+        /** Write the decimal digits of a number without going through a String */
+        protected   void    writeNumber( long value )   throws IOException
+        {
+            if ( value == Long.MIN_VALUE )
+            {
+                writeAscii( "-9223372036854775808" );
+                return;
+            }
+
+            ensureCapacity( 20 );
+            if ( value < 0 )
+            {
+                _buffer[ _count++ ] = '-';
+                value = -value;
+            }
+
+            int     digitCount = 1;
+            for ( long rest = value / 10; rest != 0; rest /= 10 ) { digitCount++; }
+
+            for ( int i = _count + digitCount - 1; i >= _count; i-- )
+            {
+                _buffer[ i ] = (byte) ('0' + (value % 10));
+                value /= 10;
+            }
+            _count += digitCount;
+        }
+
+        /** Write text as is */
+        protected   void    writeChars( String text )  throws IOException
+        {
+            int     length = text.length();
+
+            for ( int i = 0; i < length; i++ )
+            {
+                char    c = text.charAt( i );
+
+                if ( Character.isSurrogate( c ) ) { i = writeSurrogates( text, i ); }
+                else { writeChar( c ); }
+            }
+        }
+
+        /** Write text which is known to be ASCII, such as tag names */
+        protected   void    writeAscii( String text )  throws IOException
+        {
+            int     length = text.length();
+
+            ensureCapacity( length );
+            for ( int i = 0; i < length; i++ ) { _buffer[ _count++ ] = (byte) text.charAt( i ); }
+        }
+
+        /**
+         * <p>
+         * Write the supplementary character which starts at idx, or a replacement
+         * character if the surrogate is unpaired. Returns the index of the last
+         * char consumed.
+         * </p>
+         */
+        protected   int     writeSurrogates( String text, int idx )  throws IOException
+        {
+            char    high = text.charAt( idx );
+
+            if ( Character.isHighSurrogate( high ) && (idx + 1 < text.length()) && Character.isLowSurrogate( text.charAt( idx + 1 ) ) )
+            {
+                int     codePoint = Character.toCodePoint( high, text.charAt( idx + 1 ) );
+
+                ensureCapacity( 4 );
+                _buffer[ _count++ ] = (byte) (0xF0 | (codePoint >> 18));
+                _buffer[ _count++ ] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                _buffer[ _count++ ] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                _buffer[ _count++ ] = (byte) (0x80 | (codePoint & 0x3F));
+
+                return idx + 1;
+            }
+
+            writeChar( REPLACEMENT_CHARACTER );
+            return idx;
+        }
+
+        /** UTF-8 encode a char from the Basic Multilingual Plane */
+        protected   void    writeChar( char c )  throws IOException
+        {
+            ensureCapacity( 3 );
+
+            if ( c < 0x80 ) { _buffer[ _count++ ] = (byte) c; }
+            else if ( c < 0x800 )
+            {
+                _buffer[ _count++ ] = (byte) (0xC0 | (c >> 6));
+                _buffer[ _count++ ] = (byte) (0x80 | (c & 0x3F));
+            }
+            else
+            {
+                _buffer[ _count++ ] = (byte) (0xE0 | (c >> 12));
+                _buffer[ _count++ ] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                _buffer[ _count++ ] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        protected   void    writeByte( int b )  throws IOException
+        {
+            ensureCapacity( 1 );
+            _buffer[ _count++ ] = (byte) b;
+        }
+
+        protected   void    writeBytes( byte[] bytes, int length )  throws IOException
+        {
+            if ( length > _buffer.length )
+            {
+                drain();
+                _out.write( bytes, 0, length );
+                _flushedCount += length;
+                return;
+            }
+
+            ensureCapacity( length );
+            System.arraycopy( bytes, 0, _buffer, _count, length );
+            _count += length;
+        }
+
+        private void    ensureCapacity( int length )  throws IOException
+        {
+            if ( _count + length > _buffer.length ) { drain(); }
+
+            // only tag names longer than the buffer get here
+            if ( length > _buffer.length ) { _buffer = new byte[ length ]; }
+        }
+
+        /** Hand the buffered bytes to the stream */
+        private void    drain()  throws IOException
+        {
+            if ( _count == 0 ) { return; }
+
+            _out.write( _buffer, 0, _count );
+            _flushedCount += _count;
+            _count = 0;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    //
+    // MACHINE FOR STREAMING XML TO SYSTEM OUT
+    //
+    ////////////////////////////////////////////////////////////////////////
+    
+    /**
+     * <p>
+     * XML-writing wrapper around an OutputStream.
+     * </p>
+     */
+    public  static  final   class   XMLWriter   extends BufferedSink
+    {
+        private static  final   String  TAB_STOP = "    ";
+
+        // enough spaces to indent 64 levels deep with a single copy
+        private static  final   byte[]  INDENTATION = new byte[ 64 * TAB_STOP.length() ];
+        static { Arrays.fill( INDENTATION, (byte) ' ' ); }
+
+        private static  final   byte[]  LINE_SEPARATOR = System.getProperty( "line.separator", "\n" ).getBytes();
+    
+        // If this boolean is set, then all operations are NOPs.
+        private         boolean       _vacuous;
+        
+        private         ArrayList<String>    _tagStack;
+
+        /**
+         * <p>
+         * Special constructor for making a vacuous writer which doesn't do
+         * anything. This allows us to write easy-to-read dita-generating code
+         * that is not cluttered with "if ( documented )" conditionals.
+         * </p>
+         */
+        public  XMLWriter()
+        {
+            _vacuous = true;
+         }
+
+        /**
+         * <p>
+         * Create a productive writer which actually flushes text to a PrintStream.
+         * </p>
+         */
+        public  XMLWriter( PrintStream printStream )
+            throws IOException
+        {
+            this( (OutputStream) printStream );
+        }
+
+        /**
+         * <p>
+         * Create a productive writer which flushes text to an OutputStream.
+         * </p>
+         */
+        public  XMLWriter( OutputStream outputStream )
+            throws IOException
+        {
+            super( outputStream );
+
+            _vacuous = false;
+            _tagStack = new ArrayList<String>();
+        }
+
+        /**
+         * <p>
+         * Create a productive writer for a fragment of a document. The fragment
+         * is indented as though it were nested inside the given open tags.
+         * </p>
+         */
+        public  XMLWriter( OutputStream outputStream, String... enclosingTags )
+            throws IOException
+        {
+            this( outputStream );
+
+            for ( String tag : enclosingTags ) { _tagStack.add( tag ); }
+        }
+
+        public  void    beginDocument() throws IOException
+        {
+            println( "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>" );
+        }
+
+        /**
+         * <p>
+         * Indent and write an empty tag.
+         * </p>
+         */
+        public void    writeEmptyTag( String tag )
+            throws IOException
+        {
+            if ( _vacuous ) { return; }
+
+            writeEmptyTag( tag, "" );
+        }
+
+        /**
+         * <p>
+         * Indent and write an empty tag with attributes.
+         * </p>
+         */
+        public void    writeEmptyTag( String tag, String attributes )
+            throws IOException
+        {
+            if ( _vacuous ) { return; }
+
+            indent( );
+            writeOpening( tag, attributes );
+            writeAscii( "/>" );
+            newLine();
+        }
+
+        /**
+         * <p>
+         * Indent and write an empty tag with one attribute, whose value is escaped.
+         * </p>
+         */
+        public void    writeEmptyTag( String tag, String attributeName, String attributeValue )
+            throws IOException
+        {
+            if ( _vacuous ) { return; }
+
+            indent( );
+            writeOpening( tag, attributeName, attributeValue );
+            writeAscii( "/>" );
+            newLine();
+        }
+
+        /**
+         * <p>
+         * Indent and write an opening tag.
+         * </p>
+         */
+        public void    beginTag( String tag )
+            throws IOException
+        {
+            if ( _vacuous ) { return; }
+
+            beginTag( tag, "" );
+        }
+
+        /**
+         * <p>
+         * Indent and write an opening tag.
+         * </p>
+         */
+        public void    beginTag( String tag, String attributes )
+            throws IOException
+        {
+            if ( _vacuous ) { return; }
+
+            indent();
+            writeOpening( tag, attributes );
+            writeByte( '>' );
+            newLine();
+
+            _tagStack.add( tag );
+        }
+
+        /**
+         * <p>
+         * Indent and write an opening tag with one attribute, whose value is escaped.
+         * </p>
+         */
+        public void    beginTag( String tag, String attributeName, String attributeValue )
+            throws IOException
+        {
+            if ( _vacuous ) { return; }
+
+            indent();
+            writeOpening( tag, attributeName, attributeValue );
+            writeByte( '>' );
+            newLine();
+
+            _tagStack.add( tag );
+        }
+
+        /**
+         * <p>
+         * Indent and write a closing tag.
+         * </p>
+         */
+        public void    endTag()
+            throws IOException
+        {
+            if ( _vacuous ) { return; }
+
+            String  tag = _tagStack.remove( _tagStack.size() -1 );
+        
+            indent();
+            writeClosing( tag );
+        }
+
+        /**
+         * <p>
+         * Indent and write a whole element
+         * </p>
+         */
+        public void    writeTextElement( String tag, String text )
+            throws IOException
+        {
+            if ( _vacuous ) { return; }
+
+            writeTextElement( tag, "", text );
+        }
+
+        /**
+         * <p>
+         * Indent and write a whole element. The text is escaped.
+         * </p>
+         */
+        public void    writeTextElement( String tag, String attributes, String text )
+            throws IOException
+        {
+            if ( _vacuous ) { return; }
+
+            indent();
+            writeOpening( tag, attributes );
+            writeByte( '>' );
+            writeEscaped( text, false );
+            writeClosing( tag );
+        }
+
+        /**
+         * <p>
+         * Indent and write a whole element whose text is a number.
+         * </p>
+         */
+        public void    writeTextElement( String tag, long value )
+            throws IOException
+        {
+            if ( _vacuous ) { return; }
+
+            indent();
+            writeOpening( tag, "" );
+            writeByte( '>' );
+            writeNumber( value );
+            writeClosing( tag );
+        }
+
+        /**
+         * <p>
+         * Indent based on the depth of our tag nesting level.
+         * </p>
+         */
+        public void    indent()
+            throws IOException
+        {
+            if ( _vacuous ) { return; }
+
+            int     indentation = _tagStack.size() * TAB_STOP.length();
+
+            while ( indentation > 0 )
+            {
+                int     chunk = Math.min( indentation, INDENTATION.length );
+
+                writeBytes( INDENTATION, chunk );
+                indentation -= chunk;
+            }
+        }
+
+                /**
+         * <p>
+         * Print text.
+         * </p>
+         */
+        public void    println( String text )
+            throws IOException
+        {
+            if ( _vacuous ) { return; }
+
+            writeChars( text );
+            newLine();
+        }
+
+        private void    writeOpening( String tag, String attributes )   throws IOException
+        {
+            writeByte( '<' );
+            writeAscii( tag );
+            if ( attributes.length() > 0 )
+            {
+                writeByte( ' ' );
+                writeChars( attributes );
+            }
+        }
+
+        private void    writeOpening( String tag, String attributeName, String attributeValue )   throws IOException
+        {
+            writeByte( '<' );
+            writeAscii( tag );
+            writeByte( ' ' );
+            writeAscii( attributeName );
+            writeAscii( "=\"" );
+            writeEscaped( attributeValue, true );
+            writeByte( '"' );
+        }
+
+        private void    writeClosing( String tag )  throws IOException
+        {
+            writeAscii( "</" );
+            writeAscii( tag );
+            writeByte( '>' );
+            newLine();
+        }
+
+        private void    newLine()   throws IOException
+        {
+            writeBytes( LINE_SEPARATOR, LINE_SEPARATOR.length );
+        }
+
+        /** Write text, escaping the characters which are special to XML */
+        private void    writeEscaped( String text, boolean inAttribute )  throws IOException
+        {
+            // print null the way a PrintStream does
+            if ( text == null ) { text = "null"; }
+
+            int     length = text.length();
+
+            for ( int i = 0; i < length; i++ )
+            {
+                char    c = text.charAt( i );
+
+                switch ( c )
+                {
+                case '&': writeAscii( "&amp;" ); break;
+                case '<': writeAscii( "&lt;" ); break;
+                case '>': writeAscii( "&gt;" ); break;
+                case '"':
+                    if ( inAttribute ) { writeAscii( "&quot;" ); }
+                    else { writeChar( c ); }
+                    break;
+                default:
+                    if ( (c < 0x20) && (c != '\t') && (c != '\n') && (c != '\r') ) { writeChar( REPLACEMENT_CHARACTER ); }
+                    else if ( Character.isSurrogate( c ) ) { i = writeSurrogates( text, i ); }
+                    else { writeChar( c ); }
+                    break;
+                }
+            }
+        }
+
+    }
+
+    /**
+     * <p>
+     * Writes the element tree as JSON Lines. The document is cut into lines at
+     * container elements (the root, logRecords, logFiles, transactions and checksumFailures): each child of a
+     * container becomes one line holding a single-key object, e.g.
+     * </p>
+     *
+     * <pre>
+     * {"logFile":{"formatableID":128,"obsoleteVersion":9,"logFileNumber":2,"previousLogRecordEndInstant":{"logFileNumber":1,"position":11826}}}
+     * {"wrapper":{"forwardLength":21,"logInstant":{"logFileNumber":2,"position":24},"logRecord":{...},"backwardLength":21}}
+     * {"logFile":{"recordCount":639}}
+     * </pre>
+     *
+     * <p>
+     * The fields written directly into the root are gathered into lines keyed by
+     * the root tag. Attributes become fields of their element's object, and
+     * repeated sibling elements become arrays. The group flags are always an array.
+     * </p>
+     */
+    public  static  final   class   JSONLinesWriter extends BufferedSink
+    {
+        // elements whose children are written as separate lines
+        private static  final   String[]    CONTAINERS =
+        {
+            "logRecords", "logFiles", "transactions", "checksumFailures",
+            "recordSizes", "operationTypes", "groupCombinations", "checkpointIntervals",
+            "differences",
+        };
+
+        // leaves which are always written as arrays, even when there is only one of them
+        private static  final   String[]    LISTS = { "flag" };
+
+        private static  final   int ROOT = 0;
+        private static  final   int CONTAINER = 1;
+        private static  final   int OBJECT = 2;
+
+        private static  final   char[]  HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+        // one entry per open element
+        private int[]       _kinds = new int[ 16 ];
+        private boolean[]   _hasFields = new boolean[ 16 ];
+        private String[]    _tags = new String[ 16 ];
+        private int         _depth;
+
+        // a leaf which has not been written yet, in case its next sibling repeats its tag
+        private String  _pendingTag;
+        private String  _pendingText;
+        private long    _pendingNumber;
+        private boolean _pendingIsNumber;
+        private boolean _inArray;
+
+        // true while a line of root fields is open
+        private boolean _rootLineOpen;
+
+        public  JSONLinesWriter( OutputStream outputStream, String... enclosingTags )
+        {
+            super( outputStream );
+
+            for ( String tag : enclosingTags ) { push( tag, (_depth == 0) ? ROOT : CONTAINER ); }
+        }
+
+        public  void    beginDocument() {}
+
+        public  void    beginTag( String tag ) throws IOException
+        {
+            beginTag( tag, null, null );
+        }
+
+        public  void    beginTag( String tag, String attributeName, String attributeValue ) throws IOException
+        {
+            flushPending();
+
+            if ( _depth == 0 )
+            {
+                push( tag, ROOT );
+                return;
+            }
+
+            if ( (_kinds[ _depth - 1 ] == ROOT) && isContainer( tag ) )
+            {
+                closeRootLine();
+                push( tag, CONTAINER );
+                return;
+            }
+
+            beginField( tag );
+            writeByte( '{' );
+            push( tag, OBJECT );
+
+            if ( attributeName != null ) { writeAttribute( attributeName, attributeValue ); }
+        }
+
+        public  void    endTag() throws IOException
+        {
+            flushPending();
+
+            int     kind = _kinds[ --_depth ];
+
+            if ( kind == ROOT ) { closeRootLine(); }
+            else if ( kind == OBJECT )
+            {
+                writeByte( '}' );
+                endField();
+            }
+        }
+
+        public  void    writeEmptyTag( String tag, String attributeName, String attributeValue ) throws IOException
+        {
+            beginTag( tag, attributeName, attributeValue );
+            endTag();
+        }
+
+        public  void    writeTextElement( String tag, String text ) throws IOException
+        {
+            if ( repeatsPending( tag ) ) { writeByte( ',' ); writeString( text ); return; }
+
+            flushPending();
+            _pendingTag = tag;
+            _pendingText = text;
+            _pendingIsNumber = false;
+        }
+
+        public  void    writeTextElement( String tag, long value ) throws IOException
+        {
+            if ( repeatsPending( tag ) ) { writeByte( ',' ); writeNumber( value ); return; }
+
+            flushPending();
+            _pendingTag = tag;
+            _pendingNumber = value;
+            _pendingIsNumber = true;
+        }
+
+        private boolean isContainer( String tag ) { return contains( CONTAINERS, tag ); }
+        private boolean isList( String tag ) { return contains( LISTS, tag ); }
+
+        private static  boolean contains( String[] tags, String tag )
+        {
+            for ( String candidate : tags ) { if ( candidate.equals( tag ) ) { return true; } }
+
+            return false;
+        }
+
+        private void    push( String tag, int kind )
+        {
+            if ( _depth == _kinds.length )
+            {
+                _kinds = Arrays.copyOf( _kinds, 2 * _depth );
+                _hasFields = Arrays.copyOf( _hasFields, 2 * _depth );
+                _tags = Arrays.copyOf( _tags, 2 * _depth );
+            }
+
+            _kinds[ _depth ] = kind;
+            _hasFields[ _depth ] = false;
+            _tags[ _depth ] = tag;
+            _depth++;
+        }
+
+        /** Returns true if tag repeats the pending leaf, opening an array for them if necessary */
+        private boolean repeatsPending( String tag ) throws IOException
+        {
+            if ( (_pendingTag == null) || !_pendingTag.equals( tag ) ) { return false; }
+
+            if ( !_inArray )
+            {
+                beginField( tag );
+                writeByte( '[' );
+                writePendingValue();
+                _inArray = true;
+            }
+
+            return true;
+        }
+
+        private void    flushPending() throws IOException
+        {
+            if ( _pendingTag == null ) { return; }
+
+            if ( _inArray ) { writeByte( ']' ); }
+            else if ( isList( _pendingTag ) )
+            {
+                beginField( _pendingTag );
+                writeByte( '[' );
+                writePendingValue();
+                writeByte( ']' );
+            }
+            else
+            {
+                beginField( _pendingTag );
+                writePendingValue();
+            }
+            endField();
+
+            _pendingTag = null;
+            _pendingText = null;
+            _inArray = false;
+        }
+
+        private void    writePendingValue() throws IOException
+        {
+            if ( _pendingIsNumber ) { writeNumber( _pendingNumber ); }
+            else { writeString( _pendingText ); }
+        }
+
+        /**
+         * <p>
+         * Write the key of a field in the current element. Children of a container
+         * start a line of their own, and children of the root join the open line of
+         * root fields.
+         * </p>
+         */
+        private void    beginField( String tag ) throws IOException
+        {
+            int     parent = _depth - 1;
+
+            if ( _kinds[ parent ] == CONTAINER ) { writeByte( '{' ); }
+            else
+            {
+                if ( (_kinds[ parent ] == ROOT) && !_rootLineOpen )
+                {
+                    writeByte( '{' );
+                    writeString( _tags[ parent ] );
+                    writeAscii( ":{" );
+                    _rootLineOpen = true;
+                    _hasFields[ parent ] = false;
+                }
+
+                if ( _hasFields[ parent ] ) { writeByte( ',' ); }
+                _hasFields[ parent ] = true;
+            }
+
+            writeString( tag );
+            writeByte( ':' );
+        }
+
+        /** Finish a field, which ends the line if the field is the child of a container */
+        private void    endField() throws IOException
+        {
+            if ( _kinds[ _depth - 1 ] == CONTAINER )
+            {
+                writeAscii( "}\n" );
+            }
+        }
+
+        private void    closeRootLine() throws IOException
+        {
+            if ( !_rootLineOpen ) { return; }
+
+            writeAscii( "}}\n" );
+            _rootLineOpen = false;
+        }
+
+        private void    writeAttribute( String name, String value ) throws IOException
+        {
+            writeString( name );
+            writeByte( ':' );
+            writeString( value );
+            _hasFields[ _depth - 1 ] = true;
+        }
+
+        /** Write a quoted, escaped JSON string. A null is written as null. */
+        private void    writeString( String text ) throws IOException
+        {
+            if ( text == null )
+            {
+                writeAscii( "null" );
+                return;
+            }
+
+            writeByte( '"' );
+
+            int     length = text.length();
+            for ( int i = 0; i < length; i++ )
+            {
+                char    c = text.charAt( i );
+
+                switch ( c )
+                {
+                case '"': writeAscii( "\\\"" ); break;
+                case '\\': writeAscii( "\\\\" ); break;
+                case '\n': writeAscii( "\\n" ); break;
+                case '\r': writeAscii( "\\r" ); break;
+                case '\t': writeAscii( "\\t" ); break;
+                default:
+                    if ( c < 0x20 )
+                    {
+                        writeAscii( "\\u00" );
+                        writeByte( HEX_DIGITS[ c >> 4 ] );
+                        writeByte( HEX_DIGITS[ c & 0xF ] );
+                    }
+                    else if ( Character.isSurrogate( c ) ) { i = writeSurrogates( text, i ); }
+                    else { writeChar( c ); }
+                    break;
+                }
+            }
+
+            writeByte( '"' );
+        }
+    }
+
+    /**
+     * <p>
+     * Writes the element tree as a compact stream of tagged binary events, for
+     * tools which want to ingest the log without parsing text. The stream starts
+     * with the magic bytes DLOG and a version byte. Each event is a one-byte
+     * code followed by its operands:
+     * </p>
+     *
+     * <pre>
+     * 1  BEGIN         tag
+     * 2  BEGIN_ATTR    tag, attribute name, attribute value
+     * 3  END
+     * 4  EMPTY_ATTR    tag, attribute name, attribute value
+     * 5  TEXT          tag, string
+     * 6  NUMBER        tag, zigzag varint
+     * </pre>
+     *
+     * <p>
+     * A tag or attribute name is a varint index into KNOWN_TAGS, or 0 followed by
+     * the name as a string. A string is a varint byte count followed by UTF-8, with
+     * a count of 0xFFFFFFFF (as a varint) standing for null. Because the tag table
+     * is fixed, fragments rendered by parallel workers can be concatenated as is.
+     * </p>
+     */
+    public  static  final   class   BinaryWriter    extends BufferedSink
+    {
+        private static  final   byte[]  MAGIC = { 'D', 'L', 'O', 'G', 1 };
+
+        private static  final   int BEGIN = 1;
+        private static  final   int BEGIN_ATTR = 2;
+        private static  final   int END = 3;
+        private static  final   int EMPTY_ATTR = 4;
+        private static  final   int TEXT = 5;
+        private static  final   int NUMBER = 6;
+
+        private static  final   long    NULL_STRING = 0xFFFFFFFFL;
+
+        // never reorder this table, only append to it; index 0 means "spelled out"
+        public  static  final   String[]    KNOWN_TAGS =
+        {
+            null,
+            "logFile", "logDirectory", "logFiles", "logRecords", "wrapper",
+            "forwardLength", "logInstant", "logFileNumber", "position", "logRecord",
+            "formatableID", "groups", "hexvalue", "flag", "transactionID",
+            "value", "operation", "type", "details", "backwardLength",
+            "recordCount", "obsoleteVersion", "previousLogRecordEndInstant", "fileName", "chainBreak",
+            "message", "expectedInstant", "stackTrace", "logIndex", "indexFile",
+            "entryCount", "logLookup", "transactionReport", "transactions", "transaction",
+            "outcome", "byteCount", "firstInstant", "lastInstant", "operations",
+            "transactionCount", "committedCount", "abortedCount", "incompleteCount", "nonTransactionalRecordCount",
+            "damage", "startPosition", "endPosition", "skippedBytes",
+        };
+
+        private static  final   HashMap<String,Integer>  TAG_IDS = new HashMap<String,Integer>();
+        static
+        {
+            for ( int i = 1; i < KNOWN_TAGS.length; i++ ) { TAG_IDS.put( KNOWN_TAGS[ i ], i ); }
+        }
+
+        public  BinaryWriter( OutputStream outputStream )
+        {
+            super( outputStream );
+        }
+
+        public  void    beginDocument() throws IOException
+        {
+            writeBytes( MAGIC, MAGIC.length );
+        }
+
+        public  void    beginTag( String tag ) throws IOException
+        {
+            writeByte( BEGIN );
+            writeTag( tag );
+        }
+
+        public  void    beginTag( String tag, String attributeName, String attributeValue ) throws IOException
+        {
+            writeByte( BEGIN_ATTR );
+            writeTag( tag );
+            writeTag( attributeName );
+            writeString( attributeValue );
+        }
+
+        public  void    endTag() throws IOException
+        {
+            writeByte( END );
+        }
+
+        public  void    writeEmptyTag( String tag, String attributeName, String attributeValue ) throws IOException
+        {
+            writeByte( EMPTY_ATTR );
+            writeTag( tag );
+            writeTag( attributeName );
+            writeString( attributeValue );
+        }
+
+        public  void    writeTextElement( String tag, String text ) throws IOException
+        {
+            writeByte( TEXT );
+            writeTag( tag );
+            writeString( text );
+        }
+
+        public  void    writeTextElement( String tag, long value ) throws IOException
+        {
+            writeByte( NUMBER );
+            writeTag( tag );
+            writeVarLong( (value << 1) ^ (value >> 63) );
+        }
+
+        private void    writeTag( String tag ) throws IOException
+        {
+            Integer id = TAG_IDS.get( tag );
+
+            if ( id != null ) { writeVarLong( id ); }
+            else
+            {
+                writeVarLong( 0L );
+                writeString( tag );
+            }
+        }
+
+        private void    writeString( String text ) throws IOException
+        {
+            if ( text == null )
+            {
+                writeVarLong( NULL_STRING );
+                return;
+            }
+
+            // measure the UTF-8 encoding first so that the count can go in front
+            int     length = 0;
+            int     charCount = text.length();
+            for ( int i = 0; i < charCount; i++ )
+            {
+                char    c = text.charAt( i );
+
+                if ( c < 0x80 ) { length += 1; }
+                else if ( c < 0x800 ) { length += 2; }
+                else if ( Character.isHighSurrogate( c ) && (i + 1 < charCount) && Character.isLowSurrogate( text.charAt( i + 1 ) ) )
+                {
+                    length += 4;
+                    i++;
+                }
+                else { length += 3; }
+            }
+
+            writeVarLong( length );
+            writeChars( text );
+        }
+
+        private void    writeVarLong( long value ) throws IOException
+        {
+            while ( (value & ~0x7FL) != 0L )
+            {
+                writeByte( (int) ((value & 0x7F) | 0x80) );
+                value >>>= 7;
+            }
+            writeByte( (int) value );
+        }
+    }
+    
+    ////////////////////////////////////////////////////////////////////////
+    //
+    // /dev/null
+    //
+    ////////////////////////////////////////////////////////////////////////
+
+    public  static  final   class   DevNull extends OutputStream { public  void    write( int b ) {} }
+    
+}